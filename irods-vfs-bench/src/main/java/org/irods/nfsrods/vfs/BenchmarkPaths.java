@@ -0,0 +1,53 @@
+package org.irods.nfsrods.vfs;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Generates the paths the benchmarks map, shaped like a zone with many users
+ * and projects.
+ */
+final class BenchmarkPaths
+{
+    static final Path ROOT = Paths.get("/tempZone");
+
+    private static final int USERS = 64;
+    private static final int COLLECTIONS_PER_USER = 128;
+
+    private BenchmarkPaths()
+    {
+    }
+
+    // Returns the path of the data object with the given index. Data objects
+    // are spread over USERS * COLLECTIONS_PER_USER collections.
+    static Path dataObject(int _index)
+    {
+        int user = _index % USERS;
+        int collection = (_index / USERS) % COLLECTIONS_PER_USER;
+
+        return ROOT.resolve("home")
+            .resolve("user" + user)
+            .resolve("project" + collection)
+            .resolve("data" + _index + ".dat");
+    }
+
+    // Returns the path of the data object with the given index, like
+    // dataObject(), except that every collection holds data objects of the same
+    // names ("data0.dat", "data1.dat", ...).
+    static Path dataObjectWithSharedName(int _index)
+    {
+        return dataObject(_index).resolveSibling("data" + (_index / (USERS * COLLECTIONS_PER_USER)) + ".dat");
+    }
+
+    static Path[] dataObjects(int _count)
+    {
+        Path[] paths = new Path[_count];
+
+        for (int i = 0; i < _count; ++i)
+        {
+            paths[i] = dataObject(i);
+        }
+
+        return paths;
+    }
+}
@@ -0,0 +1,164 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+
+import javax.security.auth.Subject;
+
+import org.dcache.nfs.ExportFile;
+import org.dcache.nfs.v3.MountServer;
+import org.dcache.nfs.v3.NfsServerV3;
+import org.dcache.nfs.v4.MDSOperationFactory;
+import org.dcache.nfs.v4.NFSServerV41;
+import org.dcache.oncrpc4j.rpc.OncRpcProgram;
+import org.dcache.oncrpc4j.rpc.OncRpcSvc;
+import org.dcache.oncrpc4j.rpc.OncRpcSvcBuilder;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSName;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.nfsrods.config.ServerConfig;
+import org.irods.nfsrods.utils.JSONUtils;
+
+/**
+ * Runs the NFSRODS file system on top of a FakeIRODS zone.
+ *
+ * The file system, identity mapping and connection pool are built the way
+ * ServerMain builds them. Users are logged in through a test login that
+ * stands in for Kerberos, so no KDC is needed. The inode table and other
+ * state are kept in a temporary directory that is removed on close.
+ */
+public final class BenchmarkServer implements AutoCloseable
+{
+    // @formatter:off
+    private static final String CONFIG =
+        "{" +
+        "  \"nfs_server\": {" +
+        "    \"port\": %d," +
+        "    \"irods_mount_point\": \"/%s\"," +
+        "    \"inode_table_directory\": \"%s\"" +
+        "  }," +
+        "  \"irods_server\": {" +
+        "    \"zone\": \"%2$s\"," +
+        "    \"host\": \"localhost\"," +
+        "    \"port\": 1247," +
+        "    \"default_resource\": \"demoResc\"" +
+        "  }," +
+        "  \"irods_proxy_admin_account\": {" +
+        "    \"username\": \"rods\"," +
+        "    \"password\": \"rods\"" +
+        "  }," +
+        "  \"irods_client\": {" +
+        "  }" +
+        "}";
+    // @formatter:on
+
+    private final Path tempDir_;
+    private final ServerConfig config_;
+    private final IRODSConnectionPool pool_;
+    private final IRODSIdMap idMapper_;
+    private final IRODSVirtualFileSystem vfs_;
+    private OncRpcSvc rpcSvc_;
+    private ExecutorService requestExecutor_;
+
+    public BenchmarkServer(FakeIRODS _irods, int _port) throws IOException, JargonException
+    {
+        tempDir_ = Files.createTempDirectory("nfsrods-bench");
+
+        String config = String.format(CONFIG, _port, _irods.getZone(), tempDir_.toString().replace("\\", "\\\\"));
+
+        config_ = JSONUtils.fromJSON(config, ServerConfig.class);
+        pool_ = new IRODSConnectionPool(config_.getIRODSClientConfig(), _irods.getAccessObjectFactory());
+        idMapper_ = new IRODSIdMap(config_, pool_);
+        vfs_ = new IRODSVirtualFileSystem(config_, idMapper_);
+    }
+
+    public IRODSVirtualFileSystem getFileSystem()
+    {
+        return vfs_;
+    }
+
+    public IRODSIdMap getIdMapper()
+    {
+        return idMapper_;
+    }
+
+    // Logs the user in as if they had authenticated with Kerberos and returns
+    // the subject NFS requests of theirs carry.
+    public Subject login(String _username)
+    {
+        Map<String, Stubs.Answer> answers = new HashMap<>();
+        GSSName principal = Stubs.stub(GSSName.class, answers);
+        answers.put("GSSContext.getSrcName", args -> principal);
+        answers.put("Object.toString", args -> _username + "@EXAMPLE.ORG");
+
+        return idMapper_.login(null, Stubs.stub(GSSContext.class, answers));
+    }
+
+    // Serves NFSv3 and NFSv4.1 on the loopback interface with the RPC stack
+    // of ServerMain, running requests in the execution mode. Requests use
+    // AUTH_SYS, so only users logged in through login() are recognized, by
+    // their iRODS user ids.
+    public void serve(String _executionMode, int _maxThreads) throws IOException
+    {
+        Path exports = tempDir_.resolve("exports");
+        Files.write(exports, "/ 127.0.0.1(rw,no_root_squash,sec=sys)\n".getBytes(StandardCharsets.UTF_8));
+
+        ExportFile exportFile = new ExportFile(exports.toFile());
+
+        requestExecutor_ = RequestExecutors.create(_executionMode, _maxThreads);
+
+        // @formatter:off
+        OncRpcSvcBuilder rpcSvcBuilder = new OncRpcSvcBuilder()
+            .withBindAddress("127.0.0.1")
+            .withPort(config_.getNfsServerConfig().getPort())
+            .withTCP()
+            .withoutAutoPublish()
+            .withSubjectPropagation();
+
+        rpcSvc_ = RequestExecutors.configure(rpcSvcBuilder, requestExecutor_).build();
+
+        NFSServerV41 nfs4 = new NFSServerV41.Builder()
+            .withExportFile(exportFile)
+            .withVfs(vfs_)
+            .withOperationFactory(new MDSOperationFactory())
+            .build();
+        // @formatter:on
+
+        rpcSvc_.register(new OncRpcProgram(100003, 4), nfs4);
+        rpcSvc_.register(new OncRpcProgram(100003, 3), new NfsServerV3(exportFile, vfs_));
+        rpcSvc_.register(new OncRpcProgram(100005, 3), new MountServer(exportFile, vfs_));
+
+        rpcSvc_.start();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (rpcSvc_ != null)
+        {
+            rpcSvc_.stop();
+        }
+
+        if (requestExecutor_ != null)
+        {
+            requestExecutor_.shutdown();
+        }
+
+        vfs_.close();
+        idMapper_.close();
+        pool_.close();
+
+        try (Stream<Path> paths = Files.walk(tempDir_))
+        {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
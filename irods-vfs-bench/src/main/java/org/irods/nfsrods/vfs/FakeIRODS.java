@@ -0,0 +1,937 @@
+package org.irods.nfsrods.vfs;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.DataNotFoundException;
+import org.irods.jargon.core.exception.FileNotFoundException;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.DataObjInp.OpenFlags;
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.protovalues.UserTypeEnum;
+import org.irods.jargon.core.pub.CollectionAO;
+import org.irods.jargon.core.pub.CollectionAndDataObjectListAndSearchAO;
+import org.irods.jargon.core.pub.DataObjectAO;
+import org.irods.jargon.core.pub.EnvironmentalInfoAO;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.IRODSFileSystemAO;
+import org.irods.jargon.core.pub.RuleProcessingAO;
+import org.irods.jargon.core.pub.UserAO;
+import org.irods.jargon.core.pub.UserGroupAO;
+import org.irods.jargon.core.pub.domain.ObjStat;
+import org.irods.jargon.core.pub.domain.User;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+import org.irods.jargon.core.pub.io.FileIOOperations;
+import org.irods.jargon.core.pub.io.FileIOOperations.SeekWhenceType;
+import org.irods.jargon.core.pub.io.IRODSFile;
+import org.irods.jargon.core.pub.io.IRODSFileFactory;
+import org.irods.jargon.core.pub.io.IRODSFileInputStream;
+import org.irods.jargon.core.pub.io.IRODSFileOutputStream;
+import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry.ObjectType;
+
+/**
+ * An iRODS zone held in memory, for running NFSRODS without an iRODS server.
+ *
+ * The zone keeps users, collections, data objects and their contents, owners
+ * and access permissions. It is reached through the access object factory
+ * returned by getAccessObjectFactory(), which answers the calls NFSRODS makes
+ * and checks permissions the way iRODS does: a path is visible to a user with
+ * any permission on it, reading needs READ, writing and creating need WRITE,
+ * and removing needs OWN.
+ *
+ * Every call that would be a round trip to iRODS waits for the configured
+ * latency first and is counted, so a workload's numbers include the cost of
+ * talking to a server at that distance.
+ */
+public final class FakeIRODS
+{
+    private static final String ADMIN = "rods";
+
+    // The number of entries in a page of a listing, as returned by iRODS.
+    private static final int PAGE_SIZE = 5000;
+
+    private final String zone_;
+    private final String home_;
+    private final long latencyInNanos_;
+    private final NavigableMap<String, Node> nodes_ = new ConcurrentSkipListMap<>();
+    private final Map<String, User> usersByName_ = new ConcurrentHashMap<>();
+    private final Map<String, User> usersById_ = new ConcurrentHashMap<>();
+    private final Map<Integer, OpenFile> openFiles_ = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessions_ = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUserId_ = new AtomicInteger(10000);
+    private final AtomicInteger nextDataId_ = new AtomicInteger(20000);
+    private final AtomicInteger nextFd_ = new AtomicInteger(3);
+    private final LongAdder calls_ = new LongAdder();
+    private final FileIOOperations ioOperations_;
+    private final IRODSAccessObjectFactory factory_;
+
+    public FakeIRODS(String _zone, long _latency, TimeUnit _unit)
+    {
+        zone_ = _zone;
+        home_ = "/" + _zone + "/home";
+        latencyInNanos_ = _unit.toNanos(_latency);
+        ioOperations_ = proxy(FileIOOperations.class, this::io);
+        factory_ = proxy(IRODSAccessObjectFactory.class, this::session);
+
+        addUser(ADMIN);
+
+        Node root = new Node(true, ADMIN, nextDataId_.getAndIncrement());
+        root.acl_.put(ADMIN, FilePermissionEnum.OWN);
+        nodes_.put("/", root);
+
+        mkdirs(home_, ADMIN);
+    }
+
+    public String getZone()
+    {
+        return zone_;
+    }
+
+    public IRODSAccessObjectFactory getAccessObjectFactory()
+    {
+        return factory_;
+    }
+
+    // The number of round trips made to the zone.
+    public long getCallCount()
+    {
+        return calls_.sum();
+    }
+
+    // Adds a user with a home collection they own. Every user can read the
+    // collections above the home collections.
+    public void addUser(String _name)
+    {
+        User user = new User();
+        user.setId(Integer.toString(nextUserId_.getAndIncrement()));
+        user.setName(_name);
+        user.setZone(zone_);
+
+        usersByName_.put(_name, user);
+        usersById_.put(user.getId(), user);
+
+        if (nodes_.containsKey(home_))
+        {
+            grant("/", _name, FilePermissionEnum.READ);
+            grant("/" + zone_, _name, FilePermissionEnum.READ);
+            grant(home_, _name, FilePermissionEnum.READ);
+            mkdirs(home_ + "/" + _name, _name);
+        }
+    }
+
+    // Creates the collection and its missing parents, owned by the user.
+    public synchronized void mkdirs(String _path, String _owner)
+    {
+        Path path = Paths.get(_path);
+
+        for (int i = 1; i <= path.getNameCount(); ++i)
+        {
+            String collection = "/" + path.subpath(0, i);
+
+            if (!nodes_.containsKey(collection))
+            {
+                Node node = new Node(true, _owner, nextDataId_.getAndIncrement());
+                node.acl_.put(_owner, FilePermissionEnum.OWN);
+                nodes_.put(collection, node);
+            }
+        }
+    }
+
+    // Creates or replaces a data object owned by the user. Its collection
+    // must exist.
+    public synchronized void put(String _path, String _owner, byte[] _data)
+    {
+        Node parent = nodes_.get(parentOf(_path));
+
+        if (parent == null || !parent.collection_)
+        {
+            throw new IllegalArgumentException("No collection for [" + _path + "]");
+        }
+
+        Node node = new Node(false, _owner, nextDataId_.getAndIncrement());
+        node.acl_.put(_owner, FilePermissionEnum.OWN);
+        node.write(0, _data, 0, _data.length);
+        nodes_.put(_path, node);
+    }
+
+    // Sets the user's permission on the path. NULL removes it.
+    public void grant(String _path, String _user, FilePermissionEnum _perm)
+    {
+        Node node = nodes_.get(_path);
+
+        if (node == null)
+        {
+            throw new IllegalArgumentException("No collection or data object at [" + _path + "]");
+        }
+
+        if (_perm == FilePermissionEnum.NULL)
+        {
+            node.acl_.remove(_user);
+        }
+        else
+        {
+            node.acl_.put(_user, _perm);
+        }
+    }
+
+    //
+    // Access objects
+    //
+
+    // Answers the factory's calls. Access objects are created once per user
+    // and shared, like Jargon's are per connection.
+    private Object session(Object _proxy, Method _method, Object[] _args)
+    {
+        IRODSAccount account = (_args != null && _args.length > 0 && _args[0] instanceof IRODSAccount)
+            ? (IRODSAccount) _args[0] : null;
+
+        if (account == null)
+        {
+            return objectMethod(_proxy, _method, _args, "IRODSAccessObjectFactory");
+        }
+
+        Session session = sessions_.computeIfAbsent(account.getUserName(), Session::new);
+
+        // @formatter:off
+        switch (_method.getName())
+        {
+            case "getCollectionAndDataObjectListAndSearchAO": return session.listAndSearchAO_;
+            case "getCollectionAO":                           return session.collectionAO_;
+            case "getDataObjectAO":                           return session.dataObjectAO_;
+            case "getIRODSFileFactory":                       return session.fileFactory_;
+            case "getIRODSFileSystemAO":                      return session.fileSystemAO_;
+            case "getUserAO":                                 return session.userAO_;
+            case "getUserGroupAO":                            return session.userGroupAO_;
+            case "getEnvironmentalInfoAO":                    return session.environmentalInfoAO_;
+            case "getRuleProcessingAO":                       return session.ruleProcessingAO_;
+            default:                                          return Stubs.defaultValue(_method.getReturnType());
+        }
+        // @formatter:on
+    }
+
+    private final class Session
+    {
+        private final String user_;
+        private final CollectionAndDataObjectListAndSearchAO listAndSearchAO_;
+        private final CollectionAO collectionAO_;
+        private final DataObjectAO dataObjectAO_;
+        private final IRODSFileFactory fileFactory_;
+        private final IRODSFileSystemAO fileSystemAO_;
+        private final UserAO userAO_;
+        private final UserGroupAO userGroupAO_;
+        private final EnvironmentalInfoAO environmentalInfoAO_;
+        private final RuleProcessingAO ruleProcessingAO_;
+
+        Session(String _user)
+        {
+            user_ = _user;
+            listAndSearchAO_ = proxy(CollectionAndDataObjectListAndSearchAO.class, this::call);
+            collectionAO_ = proxy(CollectionAO.class, this::call);
+            dataObjectAO_ = proxy(DataObjectAO.class, this::call);
+            fileFactory_ = proxy(IRODSFileFactory.class, this::call);
+            fileSystemAO_ = proxy(IRODSFileSystemAO.class, this::call);
+            userAO_ = proxy(UserAO.class, this::call);
+            userGroupAO_ = proxy(UserGroupAO.class, this::call);
+            environmentalInfoAO_ = proxy(EnvironmentalInfoAO.class, this::call);
+            ruleProcessingAO_ = proxy(RuleProcessingAO.class, this::call);
+        }
+
+        private Object call(Object _proxy, Method _method, Object[] _args) throws Exception
+        {
+            String type = _method.getDeclaringClass().getSimpleName();
+
+            if (type.equals("Object"))
+            {
+                return objectMethod(_proxy, _method, _args, user_);
+            }
+
+            // Files are opened by the factory, which is a round trip of its
+            // own. Creating an IRODSFile is not.
+            if (!(type.equals("IRODSFileFactory") && _method.getName().equals("instanceIRODSFile")))
+            {
+                roundTrip();
+            }
+
+            // @formatter:off
+            switch (type + "." + _method.getName())
+            {
+                case "CollectionAndDataObjectListAndSearchAO.retrieveObjectStatForPath":
+                    return stat(user_, (String) _args[0]);
+
+                case "CollectionAndDataObjectListAndSearchAO.listCollectionsUnderPathWithPermissions":
+                    return list(user_, (String) _args[0], (Integer) _args[1], true);
+
+                case "CollectionAndDataObjectListAndSearchAO.listDataObjectsUnderPathWithPermissions":
+                    return list(user_, (String) _args[0], (Integer) _args[1], false);
+
+                case "CollectionAO.listPermissionsForCollection":
+                case "DataObjectAO.listPermissionsForDataObject":
+                    return permissions(visible(user_, (String) _args[0]));
+
+                case "DataObjectAO.getPermissionForDataObject":
+                    return permission(visible(user_, (String) _args[0]), (String) _args[1]);
+
+                case "DataObjectAO.setAccessPermission":
+                    setPermission(user_, (String) _args[1], (String) _args[2], (FilePermissionEnum) _args[3]);
+                    return null;
+
+                case "IRODSFileFactory.instanceIRODSFile":
+                    return file(user_, (_args.length == 1) ? (String) _args[0] : _args[0] + "/" + _args[1]);
+
+                case "IRODSFileFactory.instanceIRODSRandomAccessFile":
+                    return instantiate(IRODSRandomAccessFile.class, open(user_, _args));
+
+                case "IRODSFileFactory.instanceIRODSFileInputStream":
+                    return instantiate(IRODSFileInputStream.class, open(user_, new Object[] { _args[0], OpenFlags.READ }));
+
+                case "IRODSFileFactory.instanceIRODSFileOutputStream":
+                    return instantiate(IRODSFileOutputStream.class,
+                                       open(user_, new Object[] { _args[0], (_args.length > 1) ? _args[1] : OpenFlags.WRITE_TRUNCATE }));
+
+                case "IRODSFileSystemAO.renameFile":
+                case "IRODSFileSystemAO.renameDirectory":
+                    rename(user_, ((IRODSFile) _args[0]).getAbsolutePath(), ((IRODSFile) _args[1]).getAbsolutePath());
+                    return null;
+
+                case "UserAO.findAll":          return new ArrayList<>(usersByName_.values());
+                case "UserAO.findByName":       return findUser(usersByName_, (String) _args[0]);
+                case "UserAO.findById":         return findUser(usersById_, (String) _args[0]);
+                case "UserGroupAO.findAll":     return Collections.emptyList();
+
+                case "EnvironmentalInfoAO.getIRODSServerCurrentTime":
+                    return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+
+                // NFSRODS falls back to other ways of truncating data objects.
+                case "RuleProcessingAO.executeRule":
+                    throw new JargonException("Rules are not supported");
+
+                default:
+                    return Stubs.defaultValue(_method.getReturnType());
+            }
+            // @formatter:on
+        }
+    }
+
+    private ObjStat stat(String _user, String _path) throws JargonException
+    {
+        Node node = visible(_user, _path);
+
+        ObjStat objStat = new ObjStat();
+        objStat.setAbsolutePath(_path);
+        objStat.setObjectType(node.collection_ ? ObjectType.COLLECTION : ObjectType.DATA_OBJECT);
+        objStat.setObjSize(node.size());
+        objStat.setCreatedAt(node.createdAt_);
+        objStat.setModifiedAt(node.modifiedAt_);
+        objStat.setOwnerName(node.owner_);
+        objStat.setOwnerZone(zone_);
+        objStat.setDataId(node.id_);
+
+        return objStat;
+    }
+
+    // Lists the children of the collection that are visible to the user, one
+    // page at a time. Collections are reported by absolute path and data
+    // objects by name, like iRODS does.
+    private List<CollectionAndDataObjectListingEntry> list(String _user, String _path, int _offset, boolean _collections)
+        throws JargonException
+    {
+        Node collection = visible(_user, _path);
+
+        if (!collection.collection_)
+        {
+            throw new FileNotFoundException("[" + _path + "] is not a collection");
+        }
+
+        String prefix = _path.endsWith("/") ? _path : _path + "/";
+        List<CollectionAndDataObjectListingEntry> page = new ArrayList<>();
+        int count = 0;
+        boolean more = false;
+
+        // The descendants of the collection sort between "path/" and "path0".
+        for (Map.Entry<String, Node> e : nodes_.subMap(prefix, prefix.substring(0, prefix.length() - 1) + "0").entrySet())
+        {
+            String name = e.getKey().substring(prefix.length());
+            Node node = e.getValue();
+
+            if (name.isEmpty() || name.indexOf('/') >= 0 || node.collection_ != _collections
+                || permission(node, _user) == null)
+            {
+                continue;
+            }
+
+            if (count++ < _offset)
+            {
+                continue;
+            }
+
+            if (page.size() == PAGE_SIZE)
+            {
+                more = true;
+                break;
+            }
+
+            CollectionAndDataObjectListingEntry entry = new CollectionAndDataObjectListingEntry();
+            entry.setObjectType(_collections ? ObjectType.COLLECTION : ObjectType.DATA_OBJECT);
+            entry.setParentPath(_path);
+            entry.setPathOrName(_collections ? e.getKey() : name);
+            entry.setDataSize(node.size());
+            entry.setCreatedAt(node.createdAt_);
+            entry.setModifiedAt(node.modifiedAt_);
+            entry.setOwnerName(node.owner_);
+            entry.setOwnerZone(zone_);
+            entry.setId(node.id_);
+            entry.setCount(count);
+            entry.setUserFilePermission(permissions(node));
+            page.add(entry);
+        }
+
+        if (!page.isEmpty())
+        {
+            page.get(page.size() - 1).setLastResult(!more);
+        }
+
+        return page;
+    }
+
+    private void setPermission(String _user, String _path, String _target, FilePermissionEnum _perm)
+        throws JargonException
+    {
+        Node node = visible(_user, _path);
+
+        if (permission(node, _user) != FilePermissionEnum.OWN)
+        {
+            throw new JargonException("CAT_NO_ACCESS_PERMISSION [" + _path + "]");
+        }
+
+        grant(_path, _target, _perm);
+    }
+
+    private synchronized void rename(String _user, String _from, String _to) throws JargonException
+    {
+        Node node = visible(_user, _from);
+        Node destination = visible(_user, parentOf(_to));
+
+        if (nodes_.containsKey(_to))
+        {
+            throw new JargonException("CAT_NAME_EXISTS_AS_DATAOBJ [" + _to + "]");
+        }
+
+        requirePermission(visible(_user, parentOf(_from)), _user, FilePermissionEnum.WRITE, _from);
+        requirePermission(destination, _user, FilePermissionEnum.WRITE, _to);
+
+        String prefix = _from + "/";
+        List<String> descendants = new ArrayList<>(nodes_.subMap(prefix, _from + "0").keySet());
+
+        nodes_.remove(_from);
+        nodes_.put(_to, node);
+
+        for (String path : descendants)
+        {
+            nodes_.put(_to + path.substring(_from.length()), nodes_.remove(path));
+        }
+    }
+
+    private static User findUser(Map<String, User> _users, String _key) throws DataNotFoundException
+    {
+        User user = _users.get(_key);
+
+        if (user == null)
+        {
+            throw new DataNotFoundException("No user [" + _key + "]");
+        }
+
+        return user;
+    }
+
+    private List<UserFilePermission> permissions(Node _node)
+    {
+        List<UserFilePermission> perms = new ArrayList<>(_node.acl_.size());
+
+        _node.acl_.forEach((name, perm) -> {
+            User user = usersByName_.get(name);
+            String id = (user != null) ? user.getId() : "0";
+            perms.add(new UserFilePermission(name, id, perm, UserTypeEnum.RODS_USER, zone_));
+        });
+
+        return perms;
+    }
+
+    //
+    // Files
+    //
+
+    private IRODSFile file(String _user, String _path)
+    {
+        return file(_user, normalize(_path), -1);
+    }
+
+    private IRODSFile file(String _user, String _path, int _fd)
+    {
+        return proxy(IRODSFile.class, (proxy, method, args) -> {
+            // @formatter:off
+            switch (method.getName())
+            {
+                case "getAbsolutePath":
+                case "getPath":           return _path;
+                case "getName":           return _path.substring(_path.lastIndexOf('/') + 1);
+                case "getParent":         return parentOf(_path);
+                case "getFileDescriptor": return _fd;
+                case "isFileOpen":        return _fd >= 0;
+                case "open":
+                case "openReadOnly":      return _fd;
+                case "toString":          return _path;
+                case "hashCode":          return _path.hashCode();
+                case "equals":            return args[0] instanceof IRODSFile && _path.equals(((IRODSFile) args[0]).getAbsolutePath());
+                case "close":             openFiles_.remove(_fd); return null;
+                default:
+            }
+            // @formatter:on
+
+            roundTrip();
+
+            Node node = nodes_.get(_path);
+            boolean visible = node != null && permission(node, _user) != null;
+
+            // @formatter:off
+            switch (method.getName())
+            {
+                case "exists":        return visible;
+                case "isFile":        return visible && !node.collection_;
+                case "isDirectory":   return visible && node.collection_;
+                case "length":        return visible ? node.size() : 0L;
+                case "lastModified":  return visible ? node.modifiedAt_.getTime() : 0L;
+                case "canRead":       return visible;
+                case "canWrite":      return visible && atLeast(permission(node, _user), FilePermissionEnum.WRITE);
+                case "createNewFile": return create(_user, _path, false);
+                case "mkdir":         return create(_user, _path, true);
+                case "mkdirs":        return create(_user, _path, true);
+                case "delete":        return delete(_user, _path);
+                case "renameTo":      return renameTo(_user, _path, ((IRODSFile) args[0]).getAbsolutePath());
+                default:              return Stubs.defaultValue(method.getReturnType());
+            }
+            // @formatter:on
+        });
+    }
+
+    private synchronized boolean create(String _user, String _path, boolean _collection) throws JargonException
+    {
+        Node parent = nodes_.get(parentOf(_path));
+
+        if (parent == null || !parent.collection_ || nodes_.containsKey(_path))
+        {
+            return false;
+        }
+
+        requirePermission(parent, _user, FilePermissionEnum.WRITE, _path);
+
+        Node node = new Node(_collection, _user, nextDataId_.getAndIncrement());
+        node.acl_.put(_user, FilePermissionEnum.OWN);
+        nodes_.put(_path, node);
+
+        return true;
+    }
+
+    private synchronized boolean delete(String _user, String _path) throws JargonException
+    {
+        Node node = nodes_.get(_path);
+
+        if (node == null || permission(node, _user) == null)
+        {
+            return false;
+        }
+
+        requirePermission(node, _user, FilePermissionEnum.OWN, _path);
+
+        // Only empty collections can be removed.
+        if (node.collection_ && !nodes_.subMap(_path + "/", _path + "0").isEmpty())
+        {
+            return false;
+        }
+
+        nodes_.remove(_path);
+
+        return true;
+    }
+
+    private boolean renameTo(String _user, String _from, String _to)
+    {
+        try
+        {
+            rename(_user, _from, _to);
+            return true;
+        }
+        catch (JargonException e)
+        {
+            return false;
+        }
+    }
+
+    // Opens a data object. The arguments are those of the factory method:
+    // a path or file, optionally followed by the open flags.
+    private IRODSFile open(String _user, Object[] _args) throws JargonException
+    {
+        String path = (_args[0] instanceof IRODSFile) ? ((IRODSFile) _args[0]).getAbsolutePath() : (String) _args[0];
+        OpenFlags flags = (_args.length > 1) ? (OpenFlags) _args[1] : OpenFlags.READ_WRITE;
+
+        path = normalize(path);
+
+        if (flags == OpenFlags.READ_WRITE_CREATE_IF_NOT_EXISTS || flags == OpenFlags.WRITE_TRUNCATE)
+        {
+            create(_user, path, false);
+        }
+
+        Node node = visible(_user, path);
+
+        if (node.collection_)
+        {
+            throw new JargonException("[" + path + "] is a collection");
+        }
+
+        boolean writable = flags != OpenFlags.READ;
+
+        requirePermission(node, _user, writable ? FilePermissionEnum.WRITE : FilePermissionEnum.READ, path);
+
+        if (flags == OpenFlags.WRITE_TRUNCATE)
+        {
+            node.truncate(0);
+        }
+
+        int fd = nextFd_.getAndIncrement();
+        openFiles_.put(fd, new OpenFile(node, writable));
+
+        return file(_user, path, fd);
+    }
+
+    // Creates a Jargon stream or random access file over an open file. Their
+    // I/O is done through the zone's FileIOOperations.
+    private <T> T instantiate(Class<T> _type, IRODSFile _file) throws JargonException
+    {
+        for (Constructor<?> constructor : _type.getDeclaredConstructors())
+        {
+            Class<?>[] params = constructor.getParameterTypes();
+
+            if (params.length < 2 || params[0] != IRODSFile.class || params[1] != FileIOOperations.class)
+            {
+                continue;
+            }
+
+            Object[] args = new Object[params.length];
+            args[0] = _file;
+            args[1] = ioOperations_;
+
+            for (int i = 2; i < params.length; ++i)
+            {
+                args[i] = (params[i] == OpenFlags.class) ? OpenFlags.READ_WRITE : Stubs.defaultValue(params[i]);
+            }
+
+            try
+            {
+                constructor.setAccessible(true);
+                return _type.cast(constructor.newInstance(args));
+            }
+            catch (InstantiationException | IllegalAccessException | InvocationTargetException e)
+            {
+                throw new JargonException("Cannot create a " + _type.getSimpleName(), e);
+            }
+        }
+
+        throw new JargonException("No constructor of " + _type.getName() + " takes a file and its I/O operations");
+    }
+
+    // Answers FileIOOperations. The calls take the file descriptor first,
+    // followed by a buffer, offset and length for reads and writes, or by an
+    // offset and whence for seeks.
+    private Object io(Object _proxy, Method _method, Object[] _args) throws JargonException
+    {
+        String name = _method.getName();
+
+        if (_method.getDeclaringClass() == Object.class)
+        {
+            return objectMethod(_proxy, _method, _args, "FileIOOperations");
+        }
+
+        roundTrip();
+
+        OpenFile file = (_args != null && _args.length > 0 && _args[0] instanceof Number)
+            ? openFiles_.get(((Number) _args[0]).intValue()) : null;
+
+        if (file == null)
+        {
+            throw new JargonException("Invalid file descriptor for " + name);
+        }
+
+        Class<?> returnType = _method.getReturnType();
+
+        if (name.startsWith("seek"))
+        {
+            return toReturnType(file.seek(((Number) _args[1]).longValue(), (SeekWhenceType) _args[2]), returnType);
+        }
+
+        if (_args.length < 2 || !(_args[1] instanceof byte[]))
+        {
+            return Stubs.defaultValue(returnType);
+        }
+
+        byte[] buffer = (byte[]) _args[1];
+        int offset = (_args.length > 2) ? ((Number) _args[2]).intValue() : 0;
+        int length = (_args.length > 3) ? ((Number) _args[3]).intValue() : buffer.length - offset;
+
+        if (name.startsWith("read"))
+        {
+            return toReturnType(file.read(buffer, offset, length), returnType);
+        }
+
+        if (name.startsWith("write"))
+        {
+            return toReturnType(file.write(buffer, offset, length), returnType);
+        }
+
+        return Stubs.defaultValue(returnType);
+    }
+
+    private static Object toReturnType(long _value, Class<?> _type)
+    {
+        // @formatter:off
+        if (_type == int.class)  { return (int) _value; }
+        if (_type == long.class) { return _value; }
+        // @formatter:on
+
+        return Stubs.defaultValue(_type);
+    }
+
+    private static final class OpenFile
+    {
+        private final Node node_;
+        private final boolean writable_;
+        private long position_;
+
+        OpenFile(Node _node, boolean _writable)
+        {
+            node_ = _node;
+            writable_ = _writable;
+        }
+
+        synchronized long seek(long _offset, SeekWhenceType _whence)
+        {
+            // @formatter:off
+            switch (_whence)
+            {
+                case SEEK_CURRENT: position_ += _offset; break;
+                case SEEK_END:     position_ = node_.size() + _offset; break;
+                default:           position_ = _offset; break;
+            }
+            // @formatter:on
+
+            return position_;
+        }
+
+        synchronized int read(byte[] _buffer, int _offset, int _length)
+        {
+            int count = node_.read(position_, _buffer, _offset, _length);
+
+            if (count > 0)
+            {
+                position_ += count;
+            }
+
+            return count;
+        }
+
+        synchronized int write(byte[] _buffer, int _offset, int _length) throws JargonException
+        {
+            if (!writable_)
+            {
+                throw new JargonException("The data object is open for reading only");
+            }
+
+            node_.write(position_, _buffer, _offset, _length);
+            position_ += _length;
+
+            return _length;
+        }
+    }
+
+    //
+    // Catalog
+    //
+
+    private static final class Node
+    {
+        private final boolean collection_;
+        private final String owner_;
+        private final int id_;
+        private final Date createdAt_ = new Date();
+        private final Map<String, FilePermissionEnum> acl_ = new ConcurrentHashMap<>();
+        private volatile Date modifiedAt_ = createdAt_;
+        private byte[] data_ = new byte[0];
+        private int size_;
+
+        Node(boolean _collection, String _owner, int _id)
+        {
+            collection_ = _collection;
+            owner_ = _owner;
+            id_ = _id;
+        }
+
+        synchronized long size()
+        {
+            return size_;
+        }
+
+        synchronized int read(long _position, byte[] _buffer, int _offset, int _length)
+        {
+            if (_position >= size_)
+            {
+                return -1;
+            }
+
+            int count = (int) Math.min(_length, size_ - _position);
+            System.arraycopy(data_, (int) _position, _buffer, _offset, count);
+
+            return count;
+        }
+
+        synchronized void write(long _position, byte[] _buffer, int _offset, int _length)
+        {
+            int end = Math.toIntExact(_position + _length);
+
+            if (end > data_.length)
+            {
+                data_ = Arrays.copyOf(data_, Math.max(end, data_.length * 2));
+            }
+
+            System.arraycopy(_buffer, _offset, data_, (int) _position, _length);
+            size_ = Math.max(size_, end);
+            modifiedAt_ = new Date();
+        }
+
+        synchronized void truncate(int _size)
+        {
+            if (_size < size_)
+            {
+                Arrays.fill(data_, _size, size_, (byte) 0);
+            }
+            else if (_size > data_.length)
+            {
+                data_ = Arrays.copyOf(data_, _size);
+            }
+
+            size_ = _size;
+            modifiedAt_ = new Date();
+        }
+    }
+
+    // Returns the node at the path, which must be visible to the user.
+    private Node visible(String _user, String _path) throws FileNotFoundException
+    {
+        Node node = nodes_.get(normalize(_path));
+
+        if (node == null || permission(node, _user) == null)
+        {
+            throw new FileNotFoundException("[" + _path + "] does not exist or is not accessible");
+        }
+
+        return node;
+    }
+
+    private static FilePermissionEnum permission(Node _node, String _user)
+    {
+        return _node.acl_.get(_user);
+    }
+
+    private static void requirePermission(Node _node, String _user, FilePermissionEnum _perm, String _path)
+        throws JargonException
+    {
+        if (!atLeast(permission(_node, _user), _perm))
+        {
+            throw new JargonException("CAT_NO_ACCESS_PERMISSION [" + _path + "]");
+        }
+    }
+
+    private static boolean atLeast(FilePermissionEnum _perm, FilePermissionEnum _required)
+    {
+        return rank(_perm) >= rank(_required);
+    }
+
+    private static int rank(FilePermissionEnum _perm)
+    {
+        if (_perm == null)
+        {
+            return 0;
+        }
+
+        // @formatter:off
+        switch (_perm)
+        {
+            case READ:  return 1;
+            case WRITE: return 2;
+            case OWN:   return 3;
+            default:    return 0;
+        }
+        // @formatter:on
+    }
+
+    private static String normalize(String _path)
+    {
+        return Paths.get(_path).normalize().toString();
+    }
+
+    private static String parentOf(String _path)
+    {
+        Path parent = Paths.get(_path).getParent();
+        return (parent != null) ? parent.toString() : "/";
+    }
+
+    //
+    // Helpers
+    //
+
+    private void roundTrip()
+    {
+        calls_.increment();
+
+        if (latencyInNanos_ > 0)
+        {
+            LockSupport.parkNanos(latencyInNanos_);
+        }
+    }
+
+    private static <T> T proxy(Class<T> _type, InvocationHandler _handler)
+    {
+        return _type.cast(Proxy.newProxyInstance(FakeIRODS.class.getClassLoader(), new Class<?>[] { _type }, _handler));
+    }
+
+    private static Object objectMethod(Object _proxy, Method _method, Object[] _args, String _name)
+    {
+        // @formatter:off
+        switch (_method.getName())
+        {
+            case "hashCode": return System.identityHashCode(_proxy);
+            case "equals":   return _proxy == _args[0];
+            case "toString": return _name;
+            default:         return Stubs.defaultValue(_method.getReturnType());
+        }
+        // @formatter:on
+    }
+}
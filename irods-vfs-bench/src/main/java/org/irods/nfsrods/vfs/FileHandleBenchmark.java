@@ -0,0 +1,49 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dcache.nfs.vfs.Inode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures converting between inode numbers and file handles, which happens
+ * on every NFS call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileHandleBenchmark
+{
+    private long inodeNumber_ = 123_456_789;
+    private Inode inode_;
+
+    @Setup
+    public void setup()
+    {
+        inode_ = IRODSVirtualFileSystem.toFh(inodeNumber_);
+    }
+
+    @Benchmark
+    public Inode toFh()
+    {
+        return IRODSVirtualFileSystem.toFh(inodeNumber_);
+    }
+
+    @Benchmark
+    public long toInodeNumber()
+    {
+        return IRODSVirtualFileSystem.toInodeNumber(inode_);
+    }
+}
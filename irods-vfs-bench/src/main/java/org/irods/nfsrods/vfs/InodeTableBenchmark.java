@@ -0,0 +1,94 @@
+package org.irods.nfsrods.vfs;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures resolving, mapping and unmapping paths in an inode table on a
+ * single thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InodeTableBenchmark
+{
+    @Param({ "10000", "1000000" })
+    private int entries_;
+
+    private InodeTable table_;
+    private Path[] paths_;
+    private Path[] newPaths_;
+    private long[] inodeNumbers_;
+    private int next_;
+
+    @Setup
+    public void setup()
+    {
+        table_ = new InodeTable(BenchmarkPaths.ROOT);
+        paths_ = BenchmarkPaths.dataObjects(entries_);
+        inodeNumbers_ = new long[entries_];
+        newPaths_ = new Path[Math.min(entries_, 4096)];
+
+        for (int i = 0; i < entries_; ++i)
+        {
+            inodeNumbers_[i] = table_.map(paths_[i]);
+        }
+
+        // Paths that are not mapped, next to ones that are.
+        for (int i = 0; i < newPaths_.length; ++i)
+        {
+            newPaths_[i] = paths_[i].resolveSibling("new.dat");
+        }
+    }
+
+    @Benchmark
+    public long getInodeNumber()
+    {
+        return table_.getInodeNumber(paths_[nextIndex(paths_.length)]);
+    }
+
+    @Benchmark
+    public Path getPath()
+    {
+        return table_.getPath(inodeNumbers_[nextIndex(inodeNumbers_.length)]);
+    }
+
+    @Benchmark
+    public long mapExisting()
+    {
+        return table_.map(paths_[nextIndex(paths_.length)]);
+    }
+
+    @Benchmark
+    public long mapAndUnmap()
+    {
+        Path path = newPaths_[nextIndex(newPaths_.length)];
+        long inodeNumber = table_.map(path);
+        table_.unmap(inodeNumber, path);
+
+        return inodeNumber;
+    }
+
+    // Strides through the entries, so consecutive calls touch unrelated parts
+    // of the table.
+    private int nextIndex(int _length)
+    {
+        next_ = (next_ + 7919) % _length;
+        return next_;
+    }
+}
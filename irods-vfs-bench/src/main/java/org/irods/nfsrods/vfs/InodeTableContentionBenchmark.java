@@ -0,0 +1,109 @@
+package org.irods.nfsrods.vfs;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Measures an inode table shared by many threads, the way the NFS worker
+ * threads share it.
+ *
+ * In the read-mostly group, most threads resolve handles while a few create
+ * and remove files. In the mapping group, every thread maps paths that are
+ * already mapped, which is what lookups and directory listings do.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InodeTableContentionBenchmark
+{
+    private static final int ENTRIES = 1_000_000;
+
+    private InodeTable table_;
+    private Path[] paths_;
+    private long[] inodeNumbers_;
+
+    @Setup
+    public void setup()
+    {
+        table_ = new InodeTable(BenchmarkPaths.ROOT);
+        paths_ = BenchmarkPaths.dataObjects(ENTRIES);
+        inodeNumbers_ = new long[ENTRIES];
+
+        for (int i = 0; i < ENTRIES; ++i)
+        {
+            inodeNumbers_[i] = table_.map(paths_[i]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private Path[] newPaths_;
+        private int next_;
+
+        // Each thread creates files in a collection of its own.
+        @Setup
+        public void setup(ThreadParams _params)
+        {
+            newPaths_ = new Path[1024];
+
+            for (int i = 0; i < newPaths_.length; ++i)
+            {
+                newPaths_[i] = BenchmarkPaths.dataObject(i).resolveSibling("new" + _params.getThreadIndex() + ".dat");
+            }
+
+            next_ = _params.getThreadIndex() * 104729;
+        }
+
+        int nextIndex(int _length)
+        {
+            next_ = (next_ + 7919) % _length;
+            return next_;
+        }
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(6)
+    public Path resolve(Cursor _cursor)
+    {
+        return table_.getPath(inodeNumbers_[_cursor.nextIndex(inodeNumbers_.length)]);
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(2)
+    public long createAndRemove(Cursor _cursor)
+    {
+        Path path = _cursor.newPaths_[_cursor.nextIndex(_cursor.newPaths_.length)];
+        long inodeNumber = table_.map(path);
+        table_.unmap(inodeNumber, path);
+
+        return inodeNumber;
+    }
+
+    @Benchmark
+    @Group("mapping")
+    @GroupThreads(8)
+    public long mapExisting(Cursor _cursor)
+    {
+        return table_.map(paths_[_cursor.nextIndex(paths_.length)]);
+    }
+}
@@ -0,0 +1,98 @@
+package org.irods.nfsrods.vfs;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+
+/**
+ * Compares the heap used by an inode table with the heap used by the pair of
+ * maps (inode number to path, path to inode number) that IRODSUser used to
+ * keep.
+ *
+ * The table is measured twice: once with a distinct name for every data
+ * object, where the interned names take most of the space, and once with the
+ * same names in every collection, where they take almost none.
+ *
+ * This is not a JMH benchmark, because JMH measures time and allocation rate,
+ * not retained memory. Run it with
+ *
+ *     java -cp target/benchmarks.jar org.irods.nfsrods.vfs.InodeTableFootprint [entries]
+ */
+public class InodeTableFootprint
+{
+    public static void main(String[] _args)
+    {
+        int entries = (_args.length > 0) ? Integer.parseInt(_args[0]) : 1_000_000;
+
+        long before = usedMemory();
+        InodeTable table = new InodeTable(BenchmarkPaths.ROOT);
+
+        for (int i = 0; i < entries; ++i)
+        {
+            table.map(BenchmarkPaths.dataObject(i));
+        }
+
+        long tableBytes = usedMemory() - before;
+
+        before = usedMemory();
+        InodeTable sharedNamesTable = new InodeTable(BenchmarkPaths.ROOT);
+
+        for (int i = 0; i < entries; ++i)
+        {
+            sharedNamesTable.map(BenchmarkPaths.dataObjectWithSharedName(i));
+        }
+
+        long sharedNamesTableBytes = usedMemory() - before;
+
+        before = usedMemory();
+        Map<Long, Path> inodeToPath = new NonBlockingHashMap<>();
+        Map<Path, Long> pathToInode = new NonBlockingHashMap<>();
+
+        for (int i = 0; i < entries; ++i)
+        {
+            Path path = BenchmarkPaths.dataObject(i);
+            Long inodeNumber = Long.valueOf(i + 2);
+            inodeToPath.put(inodeNumber, path);
+            pathToInode.put(path, inodeNumber);
+        }
+
+        long mapBytes = usedMemory() - before;
+
+        System.out.printf("entries:                  %d (%d in the table, including collections)%n", entries,
+                          table.size());
+        System.out.printf("InodeTable:               %,d bytes (%.1f bytes per entry)%n", tableBytes,
+                          (double) tableBytes / table.size());
+        System.out.printf("InodeTable, shared names: %,d bytes (%.1f bytes per entry)%n", sharedNamesTableBytes,
+                          (double) sharedNamesTableBytes / sharedNamesTable.size());
+        System.out.printf("NonBlockingHashMap x2:    %,d bytes (%.1f bytes per entry)%n", mapBytes,
+                          (double) mapBytes / entries);
+
+        // Keeps both alive until they have been measured.
+        if (table.size() + sharedNamesTable.size() + inodeToPath.size() + pathToInode.size() == 0)
+        {
+            System.out.println();
+        }
+    }
+
+    private static long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 4; ++i)
+        {
+            System.gc();
+
+            try
+            {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,91 @@
+package org.irods.nfsrods.vfs;
+
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.dcache.nfs.vfs.DirectoryEntry;
+import org.dcache.nfs.vfs.DirectoryStream;
+import org.dcache.nfs.vfs.Inode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures listing a collection through the file system, from the listing
+ * returned by iRODS to the directory entries handed to the NFS server.
+ *
+ * The collection lives in a FakeIRODS zone without latency, so the numbers
+ * are the cost of NFSRODS itself: handing the listing calls to the
+ * connection threads, mapping the entries, building their stat information
+ * and filling the attribute cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark
+{
+    private static final String USERNAME = "bench";
+
+    // The number of data objects in the collection.
+    @Param({ "100", "1000" })
+    private int entries_;
+
+    private BenchmarkServer server_;
+    private IRODSVirtualFileSystem vfs_;
+    private Subject subject_;
+    private Inode collection_;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        FakeIRODS irods = new FakeIRODS("tempZone", 0, TimeUnit.NANOSECONDS);
+        irods.addUser(USERNAME);
+
+        for (int i = 0; i < entries_; ++i)
+        {
+            irods.put(String.format("/tempZone/home/%s/data%06d.dat", USERNAME, i), USERNAME, new byte[0]);
+        }
+
+        server_ = new BenchmarkServer(irods, 2050);
+        vfs_ = server_.getFileSystem();
+        subject_ = server_.login(USERNAME);
+
+        collection_ = Subject.doAs(subject_, (PrivilegedExceptionAction<Inode>) () -> {
+            return vfs_.lookup(vfs_.lookup(vfs_.getRootInode(), "home"), USERNAME);
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        server_.close();
+    }
+
+    @Benchmark
+    public void list(Blackhole _blackhole) throws Exception
+    {
+        Subject.doAs(subject_, (PrivilegedExceptionAction<Void>) () -> {
+            for (DirectoryEntry entry : vfs_.list(collection_, DirectoryStream.ZERO_VERIFIER, 0))
+            {
+                _blackhole.consume(entry);
+            }
+
+            return null;
+        });
+    }
+}
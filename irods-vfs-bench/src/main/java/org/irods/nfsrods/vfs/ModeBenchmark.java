@@ -0,0 +1,75 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.protovalues.UserTypeEnum;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry.ObjectType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures turning iRODS permissions into mode bits, which happens for every
+ * stat'd path and every directory entry.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModeBenchmark
+{
+    private static final FilePermissionEnum[] PERMISSIONS = {
+        FilePermissionEnum.OWN, FilePermissionEnum.READ, FilePermissionEnum.WRITE, FilePermissionEnum.NULL
+    };
+
+    // The number of users and groups with access to the path.
+    @Param({ "1", "4", "16" })
+    private int permissions_;
+
+    private List<UserFilePermission> perms_;
+
+    @Setup
+    public void setup()
+    {
+        perms_ = new ArrayList<>();
+
+        for (int i = 0; i < permissions_; ++i)
+        {
+            perms_.add(new UserFilePermission("user" + i, Integer.toString(10000 + i),
+                                              PERMISSIONS[i % PERMISSIONS.length], UserTypeEnum.RODS_USER,
+                                              "tempZone"));
+        }
+    }
+
+    @Benchmark
+    public int calcMode()
+    {
+        return IRODSVirtualFileSystem.calcMode(perms_);
+    }
+
+    @Benchmark
+    public int toModeCollection()
+    {
+        return IRODSVirtualFileSystem.toMode(ObjectType.COLLECTION, perms_);
+    }
+
+    @Benchmark
+    public int toModeDataObject()
+    {
+        return IRODSVirtualFileSystem.toMode(ObjectType.DATA_OBJECT, perms_);
+    }
+}
@@ -0,0 +1,76 @@
+package org.irods.nfsrods.vfs;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Builds stand-ins for iRODS access objects out of dynamic proxies.
+ *
+ * Answers are looked up by the simple name of the interface declaring the
+ * method and the method's name, e.g. "UserAO.findByName". A method without an
+ * answer that returns an iRODS interface returns another stand-in, so chains
+ * such as factory.getUserAO(account).findByName(name) need only their last
+ * step answered. Everything else returns null, zero or false.
+ */
+final class Stubs
+{
+    @FunctionalInterface
+    interface Answer
+    {
+        Object answer(Object[] _args) throws Exception;
+    }
+
+    private Stubs()
+    {
+    }
+
+    static <T> T stub(Class<T> _type, Map<String, Answer> _answers)
+    {
+        Object stub = Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] { _type }, (proxy, method, args) -> {
+            String name = method.getDeclaringClass().getSimpleName() + "." + method.getName();
+            Answer answer = _answers.get(name);
+
+            if (answer != null)
+            {
+                return answer.answer((args != null) ? args : new Object[0]);
+            }
+
+            // @formatter:off
+            switch (method.getName())
+            {
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals":   return proxy == args[0];
+                case "toString": return _type.getSimpleName() + "Stub";
+                default:
+            }
+            // @formatter:on
+
+            Class<?> returnType = method.getReturnType();
+
+            if (returnType.isInterface() && returnType.getName().startsWith("org.irods."))
+            {
+                return stub(returnType, _answers);
+            }
+
+            return defaultValue(returnType);
+        });
+
+        return _type.cast(stub);
+    }
+
+    static Object defaultValue(Class<?> _type)
+    {
+        // @formatter:off
+        if (_type == boolean.class) { return false; }
+        if (_type == char.class)    { return '\0'; }
+        if (_type == byte.class)    { return (byte) 0; }
+        if (_type == short.class)   { return (short) 0; }
+        if (_type == int.class)     { return 0; }
+        if (_type == long.class)    { return 0L; }
+        if (_type == float.class)   { return 0f; }
+        if (_type == double.class)  { return 0d; }
+        // @formatter:on
+
+        return null;
+    }
+}
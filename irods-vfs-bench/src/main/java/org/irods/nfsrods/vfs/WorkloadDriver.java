@@ -0,0 +1,573 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.security.auth.Subject;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.dcache.nfs.vfs.DirectoryEntry;
+import org.dcache.nfs.vfs.DirectoryStream;
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.nfs.vfs.VirtualFileSystem.StabilityLevel;
+
+/**
+ * Drives NFS workloads against NFSRODS running on a FakeIRODS zone and reports
+ * the throughput and latency percentiles of every operation.
+ *
+ * Worker threads call the file system the way the NFS server does for each
+ * request, as the subject of one of the logged-in users. Every iRODS call
+ * waits for the configured latency, so the results show how NFSRODS behaves
+ * in front of a server at that distance. Run it with
+ *
+ *     java -cp target/benchmarks.jar org.irods.nfsrods.vfs.WorkloadDriver [options]
+ *
+ * The options are
+ *
+ *     --workload metadata|bulk  the operations to run (default: metadata)
+ *     --threads N               the number of worker threads (default: 8)
+ *     --users N                 the number of users the threads act as (default: 4)
+ *     --latency-us N            the latency of every iRODS call (default: 500)
+ *     --warmup S                seconds to run before measuring (default: 5)
+ *     --duration S              seconds to measure (default: 30)
+ *     --files N                 data objects per user for metadata (default: 1000)
+ *     --file-size N             bytes per data object for bulk (default: 16777216)
+ *     --io-size N               bytes per read or write for bulk (default: 1048576)
+ *     --outstanding N           keep N requests in flight instead of running
+ *                               worker threads (default: 0, off)
+ *     --execution-mode MODE     where requests run when N is set or the zone is
+ *                               served: worker_threads, elastic_pool or
+ *                               virtual_threads (default: worker_threads)
+ *     --max-threads N           the maximum size of the elastic pool (default: 1024)
+ *     --serve PORT              serve the zone over NFSv3 and NFSv4.1 on loopback
+ *                               instead of running a workload
+ *
+ * The metadata workload looks up, stats, lists, creates and removes entries.
+ * The bulk workload writes data objects sequentially and commits them, then
+ * reads them back.
+ *
+ * With --outstanding, a dispatcher hands single metadata requests (lookups,
+ * stats and listings) to an executor the way the RPC layer does, starting a
+ * new one whenever one completes. In worker_threads mode the executor is a
+ * fixed pool of --threads threads, like the worker pool of the RPC layer. The
+ * other modes use the executors of RequestExecutors. Latencies include the
+ * time requests wait for a thread, so running each mode with, say,
+ *
+ *     --outstanding 2000 --users 64 --latency-us 20000
+ *
+ * compares the throughput of the modes in front of a distant iRODS server.
+ */
+public class WorkloadDriver
+{
+    private static final String ZONE = "tempZone";
+
+    private final Map<String, String> options_;
+    private final FakeIRODS irods_;
+    private final BenchmarkServer server_;
+    private final IRODSVirtualFileSystem vfs_;
+    private final List<Subject> subjects_ = new ArrayList<>();
+    private final List<String> usernames_ = new ArrayList<>();
+    private volatile boolean measuring_;
+    private volatile boolean stopped_;
+
+    public static void main(String[] _args) throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+
+        // @formatter:off
+        options.put("workload",   "metadata");
+        options.put("threads",    "8");
+        options.put("users",      "4");
+        options.put("latency-us", "500");
+        options.put("warmup",     "5");
+        options.put("duration",   "30");
+        options.put("files",      "1000");
+        options.put("file-size",  Integer.toString(16 * 1024 * 1024));
+        options.put("io-size",    Integer.toString(1024 * 1024));
+        options.put("outstanding",    "0");
+        options.put("execution-mode", RequestExecutors.WORKER_THREADS);
+        options.put("max-threads",    "1024");
+        // @formatter:on
+
+        for (int i = 0; i < _args.length; ++i)
+        {
+            boolean known = options.containsKey(_args[i].substring(2)) || _args[i].equals("--serve");
+
+            if (!_args[i].startsWith("--") || !known || i + 1 == _args.length)
+            {
+                System.err.println("Unknown or incomplete option [" + _args[i] + "]. See the class documentation.");
+                System.exit(1);
+            }
+
+            options.put(_args[i].substring(2), _args[++i]);
+        }
+
+        WorkloadDriver driver = new WorkloadDriver(options);
+
+        try
+        {
+            if (options.containsKey("serve"))
+            {
+                driver.serve();
+            }
+            else if (driver.intOption("outstanding") > 0)
+            {
+                driver.runOutstanding();
+            }
+            else
+            {
+                driver.run();
+            }
+        }
+        finally
+        {
+            driver.server_.close();
+        }
+    }
+
+    private WorkloadDriver(Map<String, String> _options) throws Exception
+    {
+        options_ = _options;
+        irods_ = new FakeIRODS(ZONE, intOption("latency-us"), TimeUnit.MICROSECONDS);
+
+        int port = options_.containsKey("serve") ? intOption("serve") : 2050;
+        boolean bulk = options_.get("workload").equals("bulk");
+        byte[] data = bulk ? new byte[intOption("file-size")] : new byte[0];
+
+        ThreadLocalRandom.current().nextBytes(data);
+
+        for (int u = 0; u < intOption("users"); ++u)
+        {
+            String username = "user" + u;
+            String home = String.format("/%s/home/%s", ZONE, username);
+
+            irods_.addUser(username);
+            irods_.mkdirs(home + "/data", username);
+
+            for (int i = 0; i < (bulk ? intOption("threads") : intOption("files")); ++i)
+            {
+                irods_.put(String.format("%s/data/file%06d", home, i), username, data);
+            }
+
+            usernames_.add(username);
+        }
+
+        server_ = new BenchmarkServer(irods_, port);
+        vfs_ = server_.getFileSystem();
+
+        for (String username : usernames_)
+        {
+            subjects_.add(server_.login(username));
+        }
+    }
+
+    private void serve() throws IOException, InterruptedException
+    {
+        server_.serve(options_.get("execution-mode"), intOption("max-threads"));
+
+        System.out.printf("Serving /%s on 127.0.0.1:%s. Mount it with%n%n", ZONE, options_.get("serve"));
+        System.out.printf("    mount -t nfs -o vers=4.1,sec=sys,port=%s 127.0.0.1:/ /mnt%n%n", options_.get("serve"));
+
+        for (String username : usernames_)
+        {
+            System.out.printf("and access it as uid %d for %s.%n",
+                              server_.getIdMapper().principalToUid(username), username);
+        }
+
+        Thread.currentThread().join();
+    }
+
+    private void run() throws Exception
+    {
+        int threads = intOption("threads");
+        List<Worker> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; ++t)
+        {
+            Worker worker = new Worker(t, subjects_.get(t % subjects_.size()), usernames_.get(t % usernames_.size()));
+            worker.setName("workload-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+
+        TimeUnit.SECONDS.sleep(intOption("warmup"));
+
+        long calls = irods_.getCallCount();
+        long start = System.nanoTime();
+        measuring_ = true;
+
+        TimeUnit.SECONDS.sleep(intOption("duration"));
+
+        measuring_ = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        calls = irods_.getCallCount() - calls;
+        stopped_ = true;
+
+        Map<String, Histogram> results = new TreeMap<>();
+
+        for (Worker worker : workers)
+        {
+            worker.join();
+
+            if (worker.error_ != null)
+            {
+                throw worker.error_;
+            }
+
+            worker.latencies_.forEach((op, histogram) -> results.computeIfAbsent(op, k -> new Histogram(3)).add(histogram));
+        }
+
+        report(results, seconds, calls);
+    }
+
+    private void report(Map<String, Histogram> _results, double _seconds, long _calls)
+    {
+        long ops = 0;
+
+        System.out.printf("workload=%s threads=%s users=%s latency=%sus duration=%.1fs", options_.get("workload"),
+                          options_.get("threads"), options_.get("users"), options_.get("latency-us"), _seconds);
+
+        if (intOption("outstanding") > 0)
+        {
+            System.out.printf(" outstanding=%s execution-mode=%s", options_.get("outstanding"),
+                              options_.get("execution-mode"));
+        }
+
+        System.out.printf("%n%n");
+        System.out.printf("%-10s %12s %10s %10s %10s %10s %10s%n", "op", "ops/s", "p50(us)", "p90(us)", "p99(us)",
+                          "p99.9(us)", "max(us)");
+
+        for (Map.Entry<String, Histogram> e : _results.entrySet())
+        {
+            Histogram h = e.getValue();
+            ops += h.getTotalCount();
+
+            System.out.printf("%-10s %12.1f %10d %10d %10d %10d %10d%n", e.getKey(), h.getTotalCount() / _seconds,
+                              micros(h.getValueAtPercentile(50)), micros(h.getValueAtPercentile(90)),
+                              micros(h.getValueAtPercentile(99)), micros(h.getValueAtPercentile(99.9)),
+                              micros(h.getMaxValue()));
+        }
+
+        System.out.printf("%n%-10s %12.1f%n", "total", ops / _seconds);
+
+        if (options_.get("workload").equals("bulk"))
+        {
+            Histogram read = _results.get("read");
+            Histogram write = _results.get("write");
+            double mib = intOption("io-size") / (1024.0 * 1024.0);
+
+            System.out.printf("%-10s %12.1f MiB/s%n", "read", (read != null) ? read.getTotalCount() * mib / _seconds : 0);
+            System.out.printf("%-10s %12.1f MiB/s%n", "write", (write != null) ? write.getTotalCount() * mib / _seconds : 0);
+        }
+
+        System.out.printf("%-10s %12.2f%n", "iRODS calls per op", (ops > 0) ? (double) _calls / ops : 0);
+    }
+
+    private void runOutstanding() throws Exception
+    {
+        int files = intOption("files");
+        List<Inode> dirs = new ArrayList<>();
+        List<AtomicReferenceArray<Inode>> inodes = new ArrayList<>();
+
+        for (int u = 0; u < usernames_.size(); ++u)
+        {
+            String username = usernames_.get(u);
+
+            dirs.add(Subject.doAs(subjects_.get(u), (PrivilegedExceptionAction<Inode>) () -> {
+                return vfs_.lookup(vfs_.lookup(vfs_.lookup(vfs_.getRootInode(), "home"), username), "data");
+            }));
+            inodes.add(new AtomicReferenceArray<>(files));
+        }
+
+        String mode = options_.get("execution-mode");
+        ExecutorService executor = RequestExecutors.WORKER_THREADS.equals(mode)
+            ? Executors.newFixedThreadPool(intOption("threads"))
+            : RequestExecutors.create(mode, intOption("max-threads"));
+        Semaphore outstanding = new Semaphore(intOption("outstanding"));
+        Map<String, Histogram> results = new ConcurrentHashMap<>();
+        AtomicReference<Exception> error = new AtomicReference<>();
+
+        Thread dispatcher = new Thread(() -> {
+            while (!stopped_)
+            {
+                outstanding.acquireUninterruptibly();
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int u = random.nextInt(subjects_.size());
+                int roll = random.nextInt(80);
+                int i = random.nextInt(files);
+                long start = System.nanoTime();
+
+                executor.execute(() -> {
+                    try
+                    {
+                        String op = runRequest(subjects_.get(u), dirs.get(u), inodes.get(u), i, roll);
+
+                        if (measuring_)
+                        {
+                            results.computeIfAbsent(op, k -> new ConcurrentHistogram(3))
+                                .recordValue(System.nanoTime() - start);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        error.compareAndSet(null, e);
+                        stopped_ = true;
+                    }
+                    finally
+                    {
+                        outstanding.release();
+                    }
+                });
+            }
+        }, "workload-dispatcher");
+
+        dispatcher.start();
+
+        TimeUnit.SECONDS.sleep(intOption("warmup"));
+
+        long calls = irods_.getCallCount();
+        long start = System.nanoTime();
+        measuring_ = true;
+
+        TimeUnit.SECONDS.sleep(intOption("duration"));
+
+        measuring_ = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        calls = irods_.getCallCount() - calls;
+        stopped_ = true;
+
+        dispatcher.join();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        if (error.get() != null)
+        {
+            throw error.get();
+        }
+
+        report(new TreeMap<>(results), seconds, calls);
+    }
+
+    // Runs a single metadata request as the subject and returns its name.
+    // Data objects are stat'd once they have been looked up.
+    private String runRequest(Subject _subject, Inode _dir, AtomicReferenceArray<Inode> _inodes, int _index, int _roll)
+        throws Exception
+    {
+        Inode inode = _inodes.get(_index);
+
+        try
+        {
+            if (_roll < 40 || (_roll < 75 && inode == null))
+            {
+                String name = String.format("file%06d", _index);
+                Inode found = Subject.doAs(_subject, (PrivilegedExceptionAction<Inode>) () -> vfs_.lookup(_dir, name));
+                _inodes.set(_index, found);
+                return "lookup";
+            }
+
+            if (_roll < 75)
+            {
+                Subject.doAs(_subject, (PrivilegedExceptionAction<Stat>) () -> vfs_.getattr(inode));
+                return "getattr";
+            }
+
+            Subject.doAs(_subject, (PrivilegedExceptionAction<Integer>) () -> {
+                int count = 0;
+
+                for (DirectoryEntry entry : vfs_.list(_dir, DirectoryStream.ZERO_VERIFIER, 0))
+                {
+                    count += entry.getName().length();
+                }
+
+                return count;
+            });
+
+            return "list";
+        }
+        catch (PrivilegedActionException e)
+        {
+            throw e.getException();
+        }
+    }
+
+    private final class Worker extends Thread
+    {
+        private final int id_;
+        private final Subject subject_;
+        private final String username_;
+        private final Map<String, Histogram> latencies_ = new HashMap<>();
+        private volatile Exception error_;
+
+        Worker(int _id, Subject _subject, String _username)
+        {
+            id_ = _id;
+            subject_ = _subject;
+            username_ = _username;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                Inode home = call("lookup", () -> vfs_.lookup(vfs_.lookup(vfs_.getRootInode(), "home"), username_));
+                Inode data = call("lookup", () -> vfs_.lookup(home, "data"));
+
+                if (options_.get("workload").equals("bulk"))
+                {
+                    runBulk(home, data);
+                }
+                else
+                {
+                    runMetadata(home, data);
+                }
+            }
+            catch (Exception e)
+            {
+                error_ = e;
+                stopped_ = true;
+            }
+        }
+
+        private void runMetadata(Inode _home, Inode _data) throws Exception
+        {
+            int files = intOption("files");
+            Inode[] inodes = new Inode[files];
+            String scratchName = "scratch-" + id_;
+            Inode scratch = call("mkdir", () -> vfs_.mkdir(_home, scratchName, subject_, 0755));
+            List<String> created = new ArrayList<>();
+            int next = 0;
+
+            while (!stopped_)
+            {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int roll = random.nextInt(100);
+                int i = random.nextInt(files);
+                String name = String.format("file%06d", i);
+
+                if (roll < 40 || inodes[i] == null)
+                {
+                    inodes[i] = call("lookup", () -> vfs_.lookup(_data, name));
+                }
+                else if (roll < 75)
+                {
+                    call("getattr", () -> vfs_.getattr(inodes[i]));
+                }
+                else if (roll < 80)
+                {
+                    call("list", () -> {
+                        int count = 0;
+
+                        for (DirectoryEntry entry : vfs_.list(_data, DirectoryStream.ZERO_VERIFIER, 0))
+                        {
+                            count += entry.getName().length();
+                        }
+
+                        return count;
+                    });
+                }
+                else if (roll < 90 || created.isEmpty())
+                {
+                    String newName = "new-" + next++;
+                    call("create", () -> vfs_.create(scratch, Stat.Type.REGULAR, newName, subject_, 0644));
+                    created.add(newName);
+                }
+                else
+                {
+                    String oldName = created.remove(created.size() - 1);
+                    call("remove", () -> {
+                        vfs_.remove(scratch, oldName);
+                        return null;
+                    });
+                }
+            }
+        }
+
+        private void runBulk(Inode _home, Inode _data) throws Exception
+        {
+            int fileSize = intOption("file-size");
+            int ioSize = intOption("io-size");
+            byte[] buffer = new byte[ioSize];
+            String outName = "out-" + id_;
+            String inName = String.format("file%06d", id_);
+
+            ThreadLocalRandom.current().nextBytes(buffer);
+
+            Inode out = call("create", () -> vfs_.create(_home, Stat.Type.REGULAR, outName, subject_, 0644));
+            Inode in = call("lookup", () -> vfs_.lookup(_data, inName));
+
+            while (!stopped_)
+            {
+                for (long offset = 0; offset < fileSize && !stopped_; offset += ioSize)
+                {
+                    long position = offset;
+                    int count = (int) Math.min(ioSize, fileSize - offset);
+                    call("write", () -> vfs_.write(out, buffer, position, count, StabilityLevel.UNSTABLE));
+                }
+
+                call("commit", () -> {
+                    vfs_.commit(out, 0, fileSize);
+                    return null;
+                });
+
+                for (long offset = 0; offset < fileSize && !stopped_; offset += ioSize)
+                {
+                    long position = offset;
+                    int count = (int) Math.min(ioSize, fileSize - offset);
+                    call("read", () -> vfs_.read(in, buffer, position, count));
+                }
+            }
+        }
+
+        // Runs the operation as the worker's user and records its latency.
+        private <T> T call(String _op, PrivilegedExceptionAction<T> _action) throws Exception
+        {
+            boolean measuring = measuring_;
+            long start = System.nanoTime();
+            T result;
+
+            try
+            {
+                result = Subject.doAs(subject_, _action);
+            }
+            catch (PrivilegedActionException e)
+            {
+                throw e.getException();
+            }
+
+            if (measuring)
+            {
+                latencies_.computeIfAbsent(_op, k -> new Histogram(3)).recordValue(System.nanoTime() - start);
+            }
+
+            return result;
+        }
+    }
+
+    private int intOption(String _name)
+    {
+        return Integer.parseInt(options_.get(_name));
+    }
+
+    private static long micros(long _nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(_nanos);
+    }
+}
@@ -0,0 +1,49 @@
+package org.irods.nfsrods.config;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class IRODSClientConfig
+{
+    // @formatter:off
+    @JsonProperty("connection_pool_max_connections")                     private int connPoolMaxConns_ = 200;
+    @JsonProperty("connection_pool_max_connections_per_user")            private int connPoolMaxConnsPerUser_ = 16;
+    @JsonProperty("connection_pool_idle_timeout_in_milliseconds")        private long connPoolIdleTimeout_ = 300_000;
+    @JsonProperty("connection_pool_validation_interval_in_milliseconds") private long connPoolValidationInterval_ = 30_000;
+    @JsonProperty("connection_pool_wait_timeout_in_milliseconds")        private long connPoolWaitTimeout_ = 5000;
+    
+    IRODSClientConfig() {}
+    // @formatter:on
+
+    @JsonIgnore
+    public int getConnectionPoolMaxConnections()
+    {
+        return connPoolMaxConns_;
+    }
+
+    @JsonIgnore
+    public int getConnectionPoolMaxConnectionsPerUser()
+    {
+        return connPoolMaxConnsPerUser_;
+    }
+
+    @JsonIgnore
+    public long getConnectionPoolIdleTimeoutInMilliseconds()
+    {
+        return connPoolIdleTimeout_;
+    }
+
+    @JsonIgnore
+    public long getConnectionPoolValidationIntervalInMilliseconds()
+    {
+        return connPoolValidationInterval_;
+    }
+
+    @JsonIgnore
+    public long getConnectionPoolWaitTimeoutInMilliseconds()
+    {
+        return connPoolWaitTimeout_;
+    }
+}
@@ -12,6 +12,7 @@ public class IRODSServerConfig
     @JsonProperty("port")             private int port_;
     @JsonProperty("zone")             private String zone_;
     @JsonProperty("default_resource") private String defResc_;
+    @JsonProperty("truncate_rule")    private String truncateRule_;
     
     IRODSServerConfig() {}
     // @formatter:on
@@ -39,4 +40,10 @@ public class IRODSServerConfig
     {
         return defResc_;
     }
+
+    @JsonIgnore
+    public String getTruncateRule()
+    {
+        return truncateRule_;
+    }
 }
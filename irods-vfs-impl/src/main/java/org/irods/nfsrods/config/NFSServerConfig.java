@@ -8,10 +8,41 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 public class NFSServerConfig
 {
     // @formatter:off
-    @JsonProperty("port")                       private int port_;
-    @JsonProperty("kerberos_service_principal") private String krb5SvcPrincipal_;
-    @JsonProperty("kerberos_keytab")            private String krb5Keytab_;
-    @JsonProperty("irods_mount_point")          private String iRODSMntPoint_;
+    @JsonProperty("port")                                            private int port_;
+    @JsonProperty("kerberos_service_principal")                      private String krb5SvcPrincipal_;
+    @JsonProperty("kerberos_keytab")                                 private String krb5Keytab_;
+    @JsonProperty("irods_mount_point")                               private String iRODSMntPoint_;
+    @JsonProperty("execution_mode")                                  private String execMode_ = "worker_threads";
+    @JsonProperty("execution_max_threads")                           private int execMaxThreads_ = 1024;
+    @JsonProperty("attribute_cache_timeout_in_milliseconds")         private long attrCacheTimeout_ = 1000;
+    @JsonProperty("attribute_cache_max_entries")                     private long attrCacheMaxEntries_ = 100_000;
+    @JsonProperty("identity_cache_refresh_interval_in_milliseconds") private long idCacheRefreshInterval_ = 300_000;
+    @JsonProperty("login_cache_timeout_in_milliseconds")             private long loginCacheTimeout_ = 300_000;
+    @JsonProperty("user_idle_timeout_in_milliseconds")               private long userIdleTimeout_ = 3_600_000;
+    @JsonProperty("user_max_count")                                  private int maxUsers_ = 10_000;
+    @JsonProperty("negative_lookup_cache_timeout_in_milliseconds")   private long negLookupCacheTimeout_ = 1000;
+    @JsonProperty("negative_lookup_cache_max_entries")               private long negLookupCacheMaxEntries_ = 10_000;
+    @JsonProperty("open_handle_cache_idle_timeout_in_milliseconds")  private long openHandleCacheIdleTimeout_ = 5000;
+    @JsonProperty("open_handle_cache_max_handles_per_file")          private int openHandleCacheMaxHandlesPerFile_ = 4;
+    @JsonProperty("open_handle_cache_max_handles_per_user")          private int openHandleCacheMaxHandlesPerUser_ = 8;
+    @JsonProperty("read_ahead_block_size_in_bytes")                  private int readAheadBlockSize_ = 1048576;
+    @JsonProperty("read_ahead_max_window_in_blocks")                 private int readAheadMaxWindow_ = 8;
+    @JsonProperty("read_ahead_max_memory_in_bytes")                  private long readAheadMaxMemory_ = 268435456;
+    @JsonProperty("parallel_read_max_streams")                       private int parallelReadMaxStreams_ = 4;
+    @JsonProperty("parallel_read_min_file_size_in_bytes")            private long parallelReadMinFileSize_ = 67108864;
+    @JsonProperty("parallel_read_min_part_size_in_bytes")            private int parallelReadMinPartSize_ = 262144;
+    @JsonProperty("write_behind_max_bytes_per_file")                 private long writeBehindMaxBytesPerFile_ = 8388608;
+    @JsonProperty("write_behind_max_memory_in_bytes")                private long writeBehindMaxMemory_ = 268435456;
+    @JsonProperty("write_behind_flush_interval_in_milliseconds")     private long writeBehindFlushInterval_ = 2000;
+    @JsonProperty("block_cache_directory")                           private String blockCacheDir_ = "";
+    @JsonProperty("block_cache_size_in_bytes")                       private long blockCacheSize_ = 0;
+    @JsonProperty("block_cache_block_size_in_bytes")                 private int blockCacheBlockSize_ = 1048576;
+    @JsonProperty("inode_table_directory")                           private String inodeTableDir_ = "";
+    @JsonProperty("inode_table_sync_interval_in_milliseconds")       private long inodeTableSyncInterval_ = 1000;
+    @JsonProperty("slow_operation_threshold_in_milliseconds")        private long slowOpThreshold_ = 1000;
+    @JsonProperty("slow_operation_trace_sample_rate")                private double slowOpTraceSampleRate_ = 0.1;
+    @JsonProperty("fs_stat_refresh_interval_in_milliseconds")        private long fsStatRefreshInterval_ = 300_000;
+    @JsonProperty("fs_stat_assumed_free_space_in_bytes")             private long fsStatAssumedFreeSpace_ = 1_125_899_906_842_624L;
     
     NFSServerConfig() {}
     // @formatter:on
@@ -39,4 +70,190 @@ public class NFSServerConfig
     {
         return iRODSMntPoint_;
     }
+
+    @JsonIgnore
+    public String getExecutionMode()
+    {
+        return execMode_;
+    }
+
+    @JsonIgnore
+    public int getExecutionMaxThreads()
+    {
+        return execMaxThreads_;
+    }
+
+    @JsonIgnore
+    public long getAttributeCacheTimeoutInMilliseconds()
+    {
+        return attrCacheTimeout_;
+    }
+
+    @JsonIgnore
+    public long getAttributeCacheMaxEntries()
+    {
+        return attrCacheMaxEntries_;
+    }
+
+    @JsonIgnore
+    public long getIdentityCacheRefreshIntervalInMilliseconds()
+    {
+        return idCacheRefreshInterval_;
+    }
+
+    @JsonIgnore
+    public long getLoginCacheTimeoutInMilliseconds()
+    {
+        return loginCacheTimeout_;
+    }
+
+    @JsonIgnore
+    public long getUserIdleTimeoutInMilliseconds()
+    {
+        return userIdleTimeout_;
+    }
+
+    @JsonIgnore
+    public int getMaxUsers()
+    {
+        return maxUsers_;
+    }
+
+    @JsonIgnore
+    public long getNegativeLookupCacheTimeoutInMilliseconds()
+    {
+        return negLookupCacheTimeout_;
+    }
+
+    @JsonIgnore
+    public long getNegativeLookupCacheMaxEntries()
+    {
+        return negLookupCacheMaxEntries_;
+    }
+
+    @JsonIgnore
+    public long getOpenHandleCacheIdleTimeoutInMilliseconds()
+    {
+        return openHandleCacheIdleTimeout_;
+    }
+
+    @JsonIgnore
+    public int getOpenHandleCacheMaxHandlesPerFile()
+    {
+        return openHandleCacheMaxHandlesPerFile_;
+    }
+
+    @JsonIgnore
+    public int getOpenHandleCacheMaxHandlesPerUser()
+    {
+        return openHandleCacheMaxHandlesPerUser_;
+    }
+
+    @JsonIgnore
+    public int getReadAheadBlockSizeInBytes()
+    {
+        return readAheadBlockSize_;
+    }
+
+    @JsonIgnore
+    public int getReadAheadMaxWindowInBlocks()
+    {
+        return readAheadMaxWindow_;
+    }
+
+    @JsonIgnore
+    public long getReadAheadMaxMemoryInBytes()
+    {
+        return readAheadMaxMemory_;
+    }
+
+    @JsonIgnore
+    public int getParallelReadMaxStreams()
+    {
+        return parallelReadMaxStreams_;
+    }
+
+    @JsonIgnore
+    public long getParallelReadMinFileSizeInBytes()
+    {
+        return parallelReadMinFileSize_;
+    }
+
+    @JsonIgnore
+    public int getParallelReadMinPartSizeInBytes()
+    {
+        return parallelReadMinPartSize_;
+    }
+
+    @JsonIgnore
+    public long getWriteBehindMaxBytesPerFile()
+    {
+        return writeBehindMaxBytesPerFile_;
+    }
+
+    @JsonIgnore
+    public long getWriteBehindMaxMemoryInBytes()
+    {
+        return writeBehindMaxMemory_;
+    }
+
+    @JsonIgnore
+    public long getWriteBehindFlushIntervalInMilliseconds()
+    {
+        return writeBehindFlushInterval_;
+    }
+
+    @JsonIgnore
+    public String getBlockCacheDirectory()
+    {
+        return blockCacheDir_;
+    }
+
+    @JsonIgnore
+    public long getBlockCacheSizeInBytes()
+    {
+        return blockCacheSize_;
+    }
+
+    @JsonIgnore
+    public int getBlockCacheBlockSizeInBytes()
+    {
+        return blockCacheBlockSize_;
+    }
+
+    @JsonIgnore
+    public String getInodeTableDirectory()
+    {
+        return inodeTableDir_;
+    }
+
+    @JsonIgnore
+    public long getInodeTableSyncIntervalInMilliseconds()
+    {
+        return inodeTableSyncInterval_;
+    }
+
+    @JsonIgnore
+    public long getSlowOperationThresholdInMilliseconds()
+    {
+        return slowOpThreshold_;
+    }
+
+    @JsonIgnore
+    public double getSlowOperationTraceSampleRate()
+    {
+        return slowOpTraceSampleRate_;
+    }
+
+    @JsonIgnore
+    public long getFsStatRefreshIntervalInMilliseconds()
+    {
+        return fsStatRefreshInterval_;
+    }
+
+    @JsonIgnore
+    public long getFsStatAssumedFreeSpaceInBytes()
+    {
+        return fsStatAssumedFreeSpace_;
+    }
 }
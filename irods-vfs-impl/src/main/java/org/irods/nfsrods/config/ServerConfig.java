@@ -11,6 +11,7 @@ public class ServerConfig
     @JsonProperty("nfs_server")                private NFSServerConfig nfsServerConfig_;
     @JsonProperty("irods_server")              private IRODSServerConfig iRODSServerConfig_;
     @JsonProperty("irods_proxy_admin_account") private IRODSProxyAdminAccountConfig iRODSProxyAdminAcctConfig_;
+    @JsonProperty("irods_client")              private IRODSClientConfig iRODSClientConfig_ = new IRODSClientConfig();
     
     ServerConfig() {}
     // @formatter:on
@@ -32,4 +33,10 @@ public class ServerConfig
     {
         return iRODSProxyAdminAcctConfig_;
     }
+
+    @JsonIgnore
+    public IRODSClientConfig getIRODSClientConfig()
+    {
+        return iRODSClientConfig_;
+    }
 }
@@ -0,0 +1,110 @@
+package org.irods.nfsrods.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * The latencies, failures and iRODS calls of one kind of request.
+ *
+ * Recording is wait-free and does not allocate once the histogram covers the
+ * latencies seen, so it is cheap enough to do for every request. Readers fold
+ * the values recorded since the last read into a cumulative histogram.
+ */
+public class LatencyStats implements LatencyStatsMBean
+{
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final Recorder recorder_ = new Recorder(SIGNIFICANT_DIGITS);
+    private final LongAdder errors_ = new LongAdder();
+    private final LongAdder irodsCalls_ = new LongAdder();
+    private final Histogram total_ = new Histogram(SIGNIFICANT_DIGITS);
+    private Histogram interval_;
+
+    public void record(long _latencyInNanos, boolean _failed, long _irodsCalls)
+    {
+        recorder_.recordValue(TimeUnit.NANOSECONDS.toMicros(_latencyInNanos));
+
+        if (_failed)
+        {
+            errors_.increment();
+        }
+
+        if (_irodsCalls > 0)
+        {
+            irodsCalls_.add(_irodsCalls);
+        }
+    }
+
+    @Override
+    public long getCount()
+    {
+        return snapshot().getTotalCount();
+    }
+
+    @Override
+    public long getErrors()
+    {
+        return errors_.sum();
+    }
+
+    @Override
+    public long getIRODSCalls()
+    {
+        return irodsCalls_.sum();
+    }
+
+    @Override
+    public double getLatencyMean()
+    {
+        return snapshot().getMean();
+    }
+
+    @Override
+    public long getLatencyP50()
+    {
+        return snapshot().getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getLatencyP90()
+    {
+        return snapshot().getValueAtPercentile(90);
+    }
+
+    @Override
+    public long getLatencyP99()
+    {
+        return snapshot().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getLatencyP999()
+    {
+        return snapshot().getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getLatencyMax()
+    {
+        return snapshot().getMaxValue();
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        interval_ = recorder_.getIntervalHistogram(interval_);
+        total_.reset();
+        errors_.reset();
+        irodsCalls_.reset();
+    }
+
+    private synchronized Histogram snapshot()
+    {
+        interval_ = recorder_.getIntervalHistogram(interval_);
+        total_.add(interval_);
+        return total_;
+    }
+}
@@ -0,0 +1,27 @@
+package org.irods.nfsrods.metrics;
+
+/**
+ * The JMX view of a LatencyStats. Latencies are in microseconds.
+ */
+public interface LatencyStatsMBean
+{
+    long getCount();
+
+    long getErrors();
+
+    long getIRODSCalls();
+
+    double getLatencyMean();
+
+    long getLatencyP50();
+
+    long getLatencyP90();
+
+    long getLatencyP99();
+
+    long getLatencyP999();
+
+    long getLatencyMax();
+
+    void reset();
+}
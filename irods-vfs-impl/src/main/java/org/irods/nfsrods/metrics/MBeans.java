@@ -0,0 +1,66 @@
+package org.irods.nfsrods.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers metrics with the platform MBean server under the
+ * "org.irods.nfsrods" domain.
+ *
+ * Metrics are never essential, so failures are logged and otherwise ignored.
+ */
+public final class MBeans
+{
+    private static final Logger log_ = LoggerFactory.getLogger(MBeans.class);
+
+    private static final String DOMAIN = "org.irods.nfsrods";
+
+    private MBeans()
+    {
+    }
+
+    // Registers the object as "org.irods.nfsrods:type=<type>,name=<name>",
+    // exposing the attributes and operations of the interface. The name is
+    // quoted, so it may contain any character.
+    public static <T> void register(T _mbean, Class<T> _interface, String _type, String _name)
+    {
+        try
+        {
+            ObjectName name = objectName(_type, _name);
+
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(_mbean, _interface), name);
+        }
+        catch (JMException | RuntimeException e)
+        {
+            log_.warn("register :: Cannot register metrics [{}/{}]. {}", _type, _name, e.getMessage());
+        }
+    }
+
+    public static void unregister(String _type, String _name)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(_type, _name));
+        }
+        catch (JMException | RuntimeException e)
+        {
+            log_.debug("unregister :: Cannot unregister metrics [{}/{}]. {}", _type, _name, e.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(String _type, String _name) throws JMException
+    {
+        return new ObjectName(DOMAIN + ":type=" + _type + ",name=" + ObjectName.quote(_name));
+    }
+}
@@ -26,6 +26,11 @@ public class JSONUtils
         return mapper_.writeValueAsString(_object);
     }
 
+    public static String toSingleLineJSON(Object _object) throws JsonProcessingException
+    {
+        return mapper_.writer().without(SerializationFeature.INDENT_OUTPUT).writeValueAsString(_object);
+    }
+
     public static <T> T fromJSON(String _string, Class<T> _class)
         throws JsonParseException,
         JsonMappingException,
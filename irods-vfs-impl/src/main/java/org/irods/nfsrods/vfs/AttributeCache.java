@@ -0,0 +1,137 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.domain.ObjStat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Caches the results of stat'ing iRODS paths.
+ *
+ * The iRODS stat information (size, times, owner and type) is shared between
+ * all users. The mode bits depend on the permissions visible to the user that
+ * computed them, so they are stored per user on top of the shared information,
+ * along with whether the user's own permission lets them read the object. All
+ * layers expire together.
+ */
+public class AttributeCache
+{
+    private static final Logger log_ = LoggerFactory.getLogger(AttributeCache.class);
+
+    private final Cache<String, Entry> cache_;
+
+    public AttributeCache(long _timeoutInMillis, long _maxEntries)
+    {
+        // @formatter:off
+        cache_ = CacheBuilder.newBuilder()
+            .expireAfterWrite(_timeoutInMillis, TimeUnit.MILLISECONDS)
+            .maximumSize(_maxEntries)
+            .build();
+        // @formatter:on
+    }
+
+    public ObjStat getObjStat(String _path, Callable<ObjStat> _loader) throws IOException, JargonException
+    {
+        try
+        {
+            return cache_.get(_path, () -> new Entry(_loader.call())).objStat_;
+        }
+        catch (ExecutionException | UncheckedExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+
+            if (e.getCause() instanceof JargonException)
+            {
+                throw (JargonException) e.getCause();
+            }
+
+            throw new JargonException(e.getCause());
+        }
+    }
+
+    public void putObjStat(String _path, ObjStat _objStat)
+    {
+        cache_.put(_path, new Entry(_objStat));
+    }
+
+    public Integer getMode(String _path, int _userID)
+    {
+        Entry entry = cache_.getIfPresent(_path);
+        return (entry != null) ? entry.modes_.get(_userID) : null;
+    }
+
+    public void putMode(String _path, int _userID, int _mode)
+    {
+        Entry entry = cache_.getIfPresent(_path);
+
+        if (entry != null)
+        {
+            entry.modes_.put(_userID, _mode);
+        }
+    }
+
+    // Returns whether the user may read the object, or null if that has not
+    // been checked yet.
+    public Boolean getReadable(String _path, int _userID)
+    {
+        Entry entry = cache_.getIfPresent(_path);
+        return (entry != null) ? entry.readable_.get(_userID) : null;
+    }
+
+    public void putReadable(String _path, int _userID, boolean _readable)
+    {
+        Entry entry = cache_.getIfPresent(_path);
+
+        if (entry != null)
+        {
+            entry.readable_.put(_userID, _readable);
+        }
+    }
+
+    public void invalidate(String _path)
+    {
+        log_.debug("invalidate :: invalidating [{}]", _path);
+        cache_.invalidate(_path);
+    }
+
+    public void invalidateTree(String _path)
+    {
+        log_.debug("invalidateTree :: invalidating [{}] and all descendants", _path);
+
+        final String prefix = _path + "/";
+        cache_.asMap().keySet().removeIf(key -> key.equals(_path) || key.startsWith(prefix));
+    }
+
+    public void invalidateAll()
+    {
+        cache_.invalidateAll();
+    }
+
+    private static final class Entry
+    {
+        private final ObjStat objStat_;
+        private final ConcurrentMap<Integer, Integer> modes_;
+        private final ConcurrentMap<Integer, Boolean> readable_;
+
+        Entry(ObjStat _objStat)
+        {
+            objStat_ = _objStat;
+            modes_ = new ConcurrentHashMap<>(4);
+            readable_ = new ConcurrentHashMap<>(4);
+        }
+    }
+}
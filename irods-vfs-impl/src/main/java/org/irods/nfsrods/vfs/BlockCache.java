@@ -0,0 +1,1002 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.domain.ObjStat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps blocks of data objects on local disk.
+ *
+ * Blocks are stored in fixed-size slots of a memory-mapped file. A second
+ * memory-mapped file describes each slot: the data object id and block index it
+ * holds, the modify time, size and checksum of the data object when the block
+ * was fetched, and a CRC32 of the block. A third file records the path of each
+ * data object id, so that blocks can still be dropped by path after a restart.
+ * The files survive restarts. Blocks of data objects whose path was not
+ * recorded are dropped when the cache is opened.
+ *
+ * A block is only served while the data object's modify time, size and
+ * checksum still match, and the CRC32 of a block loaded from a previous run is
+ * checked before its first use. iRODS keeps modify times in seconds, so the
+ * checksum is what tells apart an overwrite of the same length within the
+ * same second. Stat information built from directory listings does not carry
+ * checksums. When a block has one and the stat information does not, the data
+ * object is stat'd again to get it.
+ *
+ * When the cache is full, the least recently used block is replaced, but only
+ * if the new block has been requested more often recently than the block it
+ * would replace (TinyLFU admission). Blocks that are not admitted are read
+ * from iRODS as usual.
+ */
+public class BlockCache
+{
+    private static final Logger log_ = LoggerFactory.getLogger(BlockCache.class);
+
+    // The block was not found in the cache and was not admitted.
+    public static final int MISS = Integer.MIN_VALUE;
+
+    // @formatter:off
+    private static final long MAGIC           = 0x4e46535242433033L; // "NFSRBC03"
+    private static final int  HEADER_SIZE     = 16;
+    private static final int  RECORD_SIZE     = 56;
+    private static final int  MAX_REGION_SIZE = 1 << 30;
+    private static final int  MAX_VICTIMS     = 8;
+
+    // Offsets of the fields in an index record.
+    private static final int  STATE           = 0;
+    private static final int  LENGTH          = 4;
+    private static final int  DATA_ID         = 8;
+    private static final int  BLOCK_INDEX     = 16;
+    private static final int  MTIME           = 24;
+    private static final int  SIZE            = 32;
+    private static final int  CRC             = 40;
+    private static final int  CHECKSUM        = 48;
+
+    private static final int  EMPTY           = 0;
+    private static final int  VALID           = 1;
+
+    // Returned by acquire() when the block can only be checked against the
+    // checksum of the data object.
+    private static final int  CHECKSUM_NEEDED = -2;
+
+    // The hash of a missing checksum.
+    private static final long NO_CHECKSUM     = 0;
+
+    // The paths file is rewritten once it holds this many more records than
+    // twice the number of paths.
+    private static final int  MIN_OBSOLETE_PATH_RECORDS = 10_000;
+    // @formatter:on
+
+    private final ParallelReader reader_;
+    private final int blockSize_;
+    private final int slots_;
+    private final int slotsPerRegion_;
+    private final Object lock_;
+
+    // Guarded by the lock.
+    private final LinkedHashMap<BlockKey, Integer> entries_;
+    private final Map<Integer, Set<Long>> blocksByDataId_;
+    private final Map<String, Integer> dataIds_;
+    private final Map<Integer, String> paths_;
+    private final ArrayDeque<Integer> freeSlots_;
+    private final int[] pins_;
+    private final boolean[] verified_;
+    private final boolean[] orphaned_;
+    private final FrequencySketch sketch_;
+
+    private RandomAccessFile blocksFile_;
+    private RandomAccessFile indexFile_;
+    private MappedByteBuffer index_;
+    private MappedByteBuffer[] regions_;
+    private Path pathsFile_;
+    private DataOutputStream pathsOut_;
+    private int pathRecords_;
+
+    public BlockCache(Path _directory, long _maxSizeInBytes, int _blockSize, ParallelReader _reader)
+    {
+        reader_ = _reader;
+        blockSize_ = Math.max(4096, _blockSize);
+        slotsPerRegion_ = Math.max(1, MAX_REGION_SIZE / blockSize_);
+        lock_ = new Object();
+
+        int slots = (int) Math.min(Integer.MAX_VALUE, Math.max(0, _maxSizeInBytes) / blockSize_);
+
+        if (slots > 0)
+        {
+            try
+            {
+                open(_directory, slots);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                log_.error("BlockCache :: Error opening the block cache in [{}]. The cache is disabled. {}",
+                           _directory, e.getMessage());
+                close();
+                slots = 0;
+            }
+        }
+
+        slots_ = slots;
+        entries_ = new LinkedHashMap<>(16, 0.75f, true);
+        blocksByDataId_ = new HashMap<>();
+        dataIds_ = new HashMap<>();
+        paths_ = new HashMap<>();
+        freeSlots_ = new ArrayDeque<>();
+        pins_ = new int[slots_];
+        verified_ = new boolean[slots_];
+        orphaned_ = new boolean[slots_];
+        sketch_ = new FrequencySketch(slots_);
+
+        if (slots_ > 0)
+        {
+            loadIndex();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return slots_ > 0;
+    }
+
+    // Reads the range from cached blocks, fetching the blocks that are missing
+    // and admitted. Returns the number of bytes read, which may be less than
+    // requested, or MISS if the first block is not cached and not admitted.
+    public int read(IRODSUser _user,
+                    long _inodeNumber,
+                    Path _path,
+                    ObjStat _objStat,
+                    byte[] _data,
+                    long _offset,
+                    int _count)
+        throws IOException,
+        JargonException
+    {
+        final long size = _objStat.getObjSize();
+
+        if (!isEnabled() || !_objStat.isDataObject() || _count <= 0 || _offset >= size)
+        {
+            return MISS;
+        }
+
+        Version version = new Version(_objStat, false);
+        final long end = Math.min(size, _offset + _count);
+        int bytesRead = 0;
+
+        for (long i = _offset / blockSize_; i * blockSize_ < end; ++i)
+        {
+            BlockKey key = new BlockKey(_objStat.getDataId(), i);
+            int length = (int) Math.min(blockSize_, size - i * blockSize_);
+            int slot = acquire(key, version, length);
+
+            if (slot == CHECKSUM_NEEDED)
+            {
+                Version complete = fetchVersion(_user, _path);
+
+                // The data object changed since it was stat'd.
+                if (complete.mtime_ != version.mtime_ || complete.size_ != version.size_)
+                {
+                    return (bytesRead > 0) ? bytesRead : MISS;
+                }
+
+                version = complete;
+                slot = acquire(key, version, length);
+            }
+
+            if (slot < 0)
+            {
+                slot = load(_user, _inodeNumber, _path, size, key, version, length);
+            }
+
+            if (slot < 0)
+            {
+                return (bytesRead > 0) ? bytesRead : MISS;
+            }
+
+            try
+            {
+                long blockStart = i * blockSize_;
+                long from = Math.max(_offset, blockStart);
+                int n = (int) (Math.min(end, blockStart + length) - from);
+
+                ByteBuffer block = slice(slot);
+                block.position((int) (from - blockStart));
+                block.get(_data, (int) (from - _offset), n);
+                bytesRead += n;
+            }
+            finally
+            {
+                unpin(slot);
+            }
+        }
+
+        return bytesRead;
+    }
+
+    // Drops the blocks of the data object at the path.
+    public void invalidate(String _path)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+
+        synchronized (lock_)
+        {
+            Integer dataId = dataIds_.remove(_path);
+
+            if (dataId != null)
+            {
+                removeDataObject(dataId);
+            }
+        }
+    }
+
+    // Drops the blocks of the data object at the path and of the data objects
+    // under it.
+    public void invalidateTree(String _path)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+
+        final String prefix = _path + "/";
+
+        synchronized (lock_)
+        {
+            List<Integer> dataIds = new ArrayList<>();
+
+            for (Map.Entry<String, Integer> entry : dataIds_.entrySet())
+            {
+                if (entry.getKey().equals(_path) || entry.getKey().startsWith(prefix))
+                {
+                    dataIds.add(entry.getValue());
+                }
+            }
+
+            dataIds.forEach(this::removeDataObject);
+        }
+    }
+
+    public void close()
+    {
+        synchronized (lock_)
+        {
+            if (index_ != null)
+            {
+                index_.force();
+            }
+
+            if (regions_ != null)
+            {
+                for (MappedByteBuffer region : regions_)
+                {
+                    if (region != null)
+                    {
+                        region.force();
+                    }
+                }
+            }
+
+            closeQuietly(blocksFile_);
+            closeQuietly(indexFile_);
+            closeQuietly(pathsOut_);
+            pathsOut_ = null;
+        }
+    }
+
+    private void open(Path _directory, int _slots) throws IOException
+    {
+        Files.createDirectories(_directory);
+
+        File blocks = _directory.resolve("blocks.dat").toFile();
+        File index = _directory.resolve("index.dat").toFile();
+        pathsFile_ = _directory.resolve("paths.dat");
+
+        long blocksSize = (long) _slots * blockSize_;
+        long indexSize = HEADER_SIZE + (long) _slots * RECORD_SIZE;
+
+        blocksFile_ = new RandomAccessFile(blocks, "rw");
+        indexFile_ = new RandomAccessFile(index, "rw");
+
+        boolean reset = indexFile_.length() != indexSize || blocksFile_.length() != blocksSize;
+
+        blocksFile_.setLength(blocksSize);
+        indexFile_.setLength(indexSize);
+
+        index_ = indexFile_.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        regions_ = new MappedByteBuffer[(_slots + slotsPerRegion_ - 1) / slotsPerRegion_];
+
+        for (int i = 0; i < regions_.length; ++i)
+        {
+            long offset = (long) i * slotsPerRegion_ * blockSize_;
+            long length = Math.min((long) slotsPerRegion_ * blockSize_, blocksSize - offset);
+            regions_[i] = blocksFile_.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, length);
+        }
+
+        if (reset || index_.getLong(0) != MAGIC || index_.getInt(8) != blockSize_ || index_.getInt(12) != _slots)
+        {
+            log_.info("open :: Initializing the block cache in [{}] ...", _directory);
+
+            for (int slot = 0; slot < _slots; ++slot)
+            {
+                index_.putInt(recordOffset(slot) + STATE, EMPTY);
+            }
+
+            index_.putLong(0, MAGIC);
+            index_.putInt(8, blockSize_);
+            index_.putInt(12, _slots);
+            index_.force();
+
+            Files.deleteIfExists(pathsFile_);
+        }
+    }
+
+    // Rebuilds the in-memory index from the index and paths files. The CRC32
+    // of each block is checked on its first use.
+    private void loadIndex()
+    {
+        Map<Integer, String> paths = readPaths();
+        int valid = 0;
+
+        for (int slot = 0; slot < slots_; ++slot)
+        {
+            int record = recordOffset(slot);
+
+            if (index_.getInt(record + STATE) != VALID)
+            {
+                freeSlots_.push(slot);
+                continue;
+            }
+
+            BlockKey key = new BlockKey(index_.getInt(record + DATA_ID), index_.getLong(record + BLOCK_INDEX));
+            String path = paths.get(key.dataId_);
+
+            // The block could not be dropped when its data object changes.
+            if (path == null)
+            {
+                index_.putInt(record + STATE, EMPTY);
+                freeSlots_.push(slot);
+                continue;
+            }
+
+            entries_.put(key, slot);
+            blocksByDataId_.computeIfAbsent(key.dataId_, k -> new HashSet<>()).add(key.blockIndex_);
+            dataIds_.put(path, key.dataId_);
+            paths_.put(key.dataId_, path);
+            ++valid;
+        }
+
+        rewritePaths();
+
+        log_.info("loadIndex :: Block cache has [{}] of [{}] blocks in use.", valid, slots_);
+    }
+
+    // Returns the path of each data object id in the paths file. Later records
+    // replace earlier ones. A record cut short by a crash ends the file.
+    private Map<Integer, String> readPaths()
+    {
+        Map<Integer, String> paths = new HashMap<>();
+
+        if (!Files.exists(pathsFile_))
+        {
+            return paths;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(pathsFile_))))
+        {
+            while (true)
+            {
+                int dataId = in.readInt();
+                paths.put(dataId, in.readUTF());
+            }
+        }
+        catch (EOFException e)
+        {
+            return paths;
+        }
+        catch (IOException e)
+        {
+            log_.error("readPaths :: Error reading [{}]. {}", pathsFile_, e.getMessage());
+            return paths;
+        }
+    }
+
+    // Replaces the paths file with the paths of the cached data objects.
+    // Must be called while holding the lock, or before the cache is used.
+    private void rewritePaths()
+    {
+        closeQuietly(pathsOut_);
+        pathsOut_ = null;
+
+        Path tempFile = pathsFile_.resolveSibling(pathsFile_.getFileName() + ".tmp");
+
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile))))
+            {
+                for (Map.Entry<Integer, String> entry : paths_.entrySet())
+                {
+                    out.writeInt(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+            }
+
+            Files.move(tempFile, pathsFile_, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // @formatter:off
+            pathsOut_ = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(pathsFile_, StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+            // @formatter:on
+            pathRecords_ = paths_.size();
+        }
+        catch (IOException e)
+        {
+            log_.error("rewritePaths :: Error writing [{}]. Cached blocks will be dropped on restart. {}",
+                       pathsFile_, e.getMessage());
+        }
+    }
+
+    // Remembers the path of the data object id, and records it in the paths
+    // file before any of its blocks become valid. Must be called while holding
+    // the lock.
+    private void putPath(int _dataId, String _path)
+    {
+        if (_path.equals(paths_.get(_dataId)))
+        {
+            return;
+        }
+
+        String oldPath = paths_.put(_dataId, _path);
+
+        if (oldPath != null)
+        {
+            dataIds_.remove(oldPath, _dataId);
+        }
+
+        dataIds_.put(_path, _dataId);
+
+        if (pathRecords_ > 2 * paths_.size() + MIN_OBSOLETE_PATH_RECORDS)
+        {
+            rewritePaths();
+            return;
+        }
+
+        if (pathsOut_ == null)
+        {
+            return;
+        }
+
+        try
+        {
+            pathsOut_.writeInt(_dataId);
+            pathsOut_.writeUTF(_path);
+            pathsOut_.flush();
+            ++pathRecords_;
+        }
+        catch (IOException e)
+        {
+            log_.error("putPath :: Error writing [{}]. {}", pathsFile_, e.getMessage());
+        }
+    }
+
+    // Stats the data object to get its checksum.
+    private static Version fetchVersion(IRODSUser _user, Path _path) throws IOException, JargonException
+    {
+        // @formatter:off
+        ObjStat objStat = _user.execute(() -> _user.getIRODSAccessObjectFactory()
+            .getCollectionAndDataObjectListAndSearchAO(_user.getAccount())
+            .retrieveObjectStatForPath(_path.toString()));
+        // @formatter:on
+
+        return new Version(objStat, true);
+    }
+
+    // Returns the slot of the block, pinned, -1 if the block is not cached or no
+    // longer matches the data object, or CHECKSUM_NEEDED if the block has a
+    // checksum and the version does not.
+    private int acquire(BlockKey _key, Version _version, int _length)
+    {
+        int slot;
+        boolean verified;
+
+        synchronized (lock_)
+        {
+            sketch_.increment(_key);
+
+            Integer entry = entries_.get(_key);
+
+            if (entry == null)
+            {
+                return -1;
+            }
+
+            slot = entry;
+            int record = recordOffset(slot);
+            long checksum = index_.getLong(record + CHECKSUM);
+
+            if (checksum != NO_CHECKSUM && _version.checksum_ == NO_CHECKSUM && !_version.complete_)
+            {
+                return CHECKSUM_NEEDED;
+            }
+
+            // A complete version without a checksum means that iRODS dropped it
+            // when the data object was modified.
+            // @formatter:off
+            if (index_.getInt(record + LENGTH) != _length         ||
+                index_.getLong(record + MTIME) != _version.mtime_ ||
+                index_.getLong(record + SIZE)  != _version.size_  ||
+                (checksum != NO_CHECKSUM && checksum != _version.checksum_))
+            // @formatter:on
+            {
+                log_.debug("acquire :: Block [{}] of data object [{}] is out of date.", _key.blockIndex_, _key.dataId_);
+                remove(_key, slot);
+                return -1;
+            }
+
+            ++pins_[slot];
+            verified = verified_[slot];
+        }
+
+        if (!verified)
+        {
+            CRC32 crc = new CRC32();
+            crc.update(slice(slot));
+
+            synchronized (lock_)
+            {
+                if ((int) crc.getValue() != index_.getInt(recordOffset(slot) + CRC))
+                {
+                    log_.warn("acquire :: Block [{}] of data object [{}] is corrupt.", _key.blockIndex_, _key.dataId_);
+                    unpinLocked(slot);
+
+                    if (Objects.equals(entries_.get(_key), slot))
+                    {
+                        remove(_key, slot);
+                    }
+
+                    return -1;
+                }
+
+                verified_[slot] = true;
+            }
+        }
+
+        return slot;
+    }
+
+    // Fetches the block from iRODS into a free or replaced slot. Returns the
+    // slot, pinned, or -1 if the block was not admitted or could not be read
+    // completely.
+    private int load(IRODSUser _user, long _inodeNumber, Path _path, long _size, BlockKey _key, Version _version, int _length)
+        throws IOException,
+        JargonException
+    {
+        int slot = reserve(_key);
+
+        if (slot < 0)
+        {
+            return -1;
+        }
+
+        boolean loaded = false;
+
+        try
+        {
+            byte[] buffer = new byte[_length];
+            long blockStart = _key.blockIndex_ * blockSize_;
+            int filled = 0;
+
+            while (filled < _length)
+            {
+                int n = reader_.read(_user, _inodeNumber, _path, _size, buffer, filled, blockStart + filled,
+                                     _length - filled);
+
+                if (n <= 0)
+                {
+                    break;
+                }
+
+                filled += n;
+            }
+
+            // The data object changed since it was stat'd.
+            if (filled < _length)
+            {
+                return -1;
+            }
+
+            ByteBuffer block = slice(slot);
+            block.put(buffer);
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer, 0, _length);
+
+            synchronized (lock_)
+            {
+                putPath(_key.dataId_, _path.toString());
+            }
+
+            // The state is written last, so a block is never valid before its
+            // record is complete.
+            int record = recordOffset(slot);
+            index_.putInt(record + LENGTH, _length);
+            index_.putInt(record + DATA_ID, _key.dataId_);
+            index_.putLong(record + BLOCK_INDEX, _key.blockIndex_);
+            index_.putLong(record + MTIME, _version.mtime_);
+            index_.putLong(record + SIZE, _version.size_);
+            index_.putInt(record + CRC, (int) crc.getValue());
+            index_.putLong(record + CHECKSUM, _version.checksum_);
+            index_.putInt(record + STATE, VALID);
+
+            loaded = true;
+        }
+        finally
+        {
+            synchronized (lock_)
+            {
+                if (loaded && !entries_.containsKey(_key))
+                {
+                    entries_.put(_key, slot);
+                    blocksByDataId_.computeIfAbsent(_key.dataId_, k -> new HashSet<>()).add(_key.blockIndex_);
+                    verified_[slot] = true;
+                }
+                else
+                {
+                    // The block could not be read, or another reader loaded
+                    // it first.
+                    index_.putInt(recordOffset(slot) + STATE, EMPTY);
+                    orphaned_[slot] = true;
+                    unpinLocked(slot);
+                    loaded = false;
+
+                    if (!blocksByDataId_.containsKey(_key.dataId_))
+                    {
+                        removeDataObject(_key.dataId_);
+                    }
+                }
+            }
+        }
+
+        return loaded ? slot : -1;
+    }
+
+    // Takes a free slot, or the slot of the least recently used block if the
+    // new block is requested more often than it. Returns the slot, pinned, or
+    // -1 if the block is not admitted.
+    private int reserve(BlockKey _key)
+    {
+        synchronized (lock_)
+        {
+            Integer slot = freeSlots_.poll();
+
+            if (slot == null)
+            {
+                BlockKey victim = null;
+                int checked = 0;
+
+                for (Map.Entry<BlockKey, Integer> entry : entries_.entrySet())
+                {
+                    if (pins_[entry.getValue()] == 0)
+                    {
+                        victim = entry.getKey();
+                        slot = entry.getValue();
+                        break;
+                    }
+
+                    if (++checked >= MAX_VICTIMS)
+                    {
+                        break;
+                    }
+                }
+
+                if (victim == null || sketch_.frequency(_key) <= sketch_.frequency(victim))
+                {
+                    return -1;
+                }
+
+                remove(victim, slot);
+                freeSlots_.remove(slot);
+            }
+
+            index_.putInt(recordOffset(slot) + STATE, EMPTY);
+            verified_[slot] = false;
+            orphaned_[slot] = false;
+            pins_[slot] = 1;
+
+            return slot;
+        }
+    }
+
+    private void unpin(int _slot)
+    {
+        synchronized (lock_)
+        {
+            unpinLocked(_slot);
+        }
+    }
+
+    // Must be called while holding the lock.
+    private void unpinLocked(int _slot)
+    {
+        if (--pins_[_slot] == 0 && orphaned_[_slot])
+        {
+            orphaned_[_slot] = false;
+            freeSlots_.push(_slot);
+        }
+    }
+
+    // Must be called while holding the lock.
+    private void remove(BlockKey _key, int _slot)
+    {
+        entries_.remove(_key);
+
+        Set<Long> blocks = blocksByDataId_.get(_key.dataId_);
+
+        if (blocks != null && blocks.remove(_key.blockIndex_) && blocks.isEmpty())
+        {
+            blocksByDataId_.remove(_key.dataId_);
+
+            String path = paths_.remove(_key.dataId_);
+
+            if (path != null)
+            {
+                dataIds_.remove(path, _key.dataId_);
+            }
+        }
+
+        index_.putInt(recordOffset(_slot) + STATE, EMPTY);
+
+        if (pins_[_slot] == 0)
+        {
+            freeSlots_.push(_slot);
+        }
+        else
+        {
+            orphaned_[_slot] = true;
+        }
+    }
+
+    // Must be called while holding the lock.
+    private void removeDataObject(int _dataId)
+    {
+        Set<Long> blocks = blocksByDataId_.get(_dataId);
+
+        if (blocks == null)
+        {
+            String path = paths_.remove(_dataId);
+
+            if (path != null)
+            {
+                dataIds_.remove(path, _dataId);
+            }
+
+            return;
+        }
+
+        for (Long blockIndex : blocks.toArray(new Long[0]))
+        {
+            BlockKey key = new BlockKey(_dataId, blockIndex);
+            Integer slot = entries_.get(key);
+
+            if (slot != null)
+            {
+                remove(key, slot);
+            }
+        }
+    }
+
+    // Returns a view of the slot's bytes.
+    private ByteBuffer slice(int _slot)
+    {
+        ByteBuffer block = regions_[_slot / slotsPerRegion_].duplicate();
+        int offset = (_slot % slotsPerRegion_) * blockSize_;
+        block.position(offset);
+        block.limit(offset + blockSize_);
+        return block.slice();
+    }
+
+    private static int recordOffset(int _slot)
+    {
+        return HEADER_SIZE + _slot * RECORD_SIZE;
+    }
+
+    private static void closeQuietly(Closeable _file)
+    {
+        if (_file == null)
+        {
+            return;
+        }
+
+        try
+        {
+            _file.close();
+        }
+        catch (IOException e)
+        {
+            log_.error(e.getMessage());
+        }
+    }
+
+    // The state of a data object that its blocks must match. A version is
+    // complete if it comes from stat'ing the data object, which reports its
+    // checksum if it has one.
+    private static final class Version
+    {
+        private final long mtime_;
+        private final long size_;
+        private final long checksum_;
+        private final boolean complete_;
+
+        Version(ObjStat _objStat, boolean _complete)
+        {
+            mtime_ = _objStat.getModifiedAt().getTime();
+            size_ = _objStat.getObjSize();
+            checksum_ = hash(_objStat.getChecksum());
+            complete_ = _complete;
+        }
+
+        // Returns a 64-bit FNV-1a hash of the checksum, which is never
+        // NO_CHECKSUM unless there is no checksum.
+        private static long hash(String _checksum)
+        {
+            if (_checksum == null || _checksum.isEmpty())
+            {
+                return NO_CHECKSUM;
+            }
+
+            long hash = 0xcbf29ce484222325L;
+
+            for (int i = 0; i < _checksum.length(); ++i)
+            {
+                hash ^= _checksum.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+
+            return (hash == NO_CHECKSUM) ? 1 : hash;
+        }
+    }
+
+    private static final class BlockKey
+    {
+        private final int dataId_;
+        private final long blockIndex_;
+
+        BlockKey(int _dataId, long _blockIndex)
+        {
+            dataId_ = _dataId;
+            blockIndex_ = _blockIndex;
+        }
+
+        @Override
+        public boolean equals(Object _other)
+        {
+            if (this == _other)
+            {
+                return true;
+            }
+
+            if (!(_other instanceof BlockKey))
+            {
+                return false;
+            }
+
+            BlockKey other = (BlockKey) _other;
+
+            return dataId_ == other.dataId_ && blockIndex_ == other.blockIndex_;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(dataId_, blockIndex_);
+        }
+    }
+
+    // Estimates how often each block was requested recently. Counters are
+    // 4-bit and are halved once enough requests have been counted, so old
+    // popularity fades.
+    private static final class FrequencySketch
+    {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+        private final byte[][] counters_;
+        private final int mask_;
+        private final int sampleSize_;
+        private int additions_;
+
+        FrequencySketch(int _capacity)
+        {
+            int width = Integer.highestOneBit((int) Math.max(16, Math.min(1 << 24, 4L * _capacity)) - 1) << 1;
+
+            counters_ = new byte[DEPTH][width];
+            mask_ = width - 1;
+            sampleSize_ = Math.max(1, 10 * _capacity);
+        }
+
+        void increment(Object _key)
+        {
+            int hash = _key.hashCode();
+            boolean added = false;
+
+            for (int i = 0; i < DEPTH; ++i)
+            {
+                int index = index(hash, i);
+
+                if (counters_[i][index] < MAX_COUNT)
+                {
+                    ++counters_[i][index];
+                    added = true;
+                }
+            }
+
+            if (added && ++additions_ >= sampleSize_)
+            {
+                reset();
+            }
+        }
+
+        int frequency(Object _key)
+        {
+            int hash = _key.hashCode();
+            int frequency = MAX_COUNT;
+
+            for (int i = 0; i < DEPTH; ++i)
+            {
+                frequency = Math.min(frequency, counters_[i][index(hash, i)]);
+            }
+
+            return frequency;
+        }
+
+        private int index(int _hash, int _row)
+        {
+            int h = _hash * SEEDS[_row];
+            h ^= h >>> 16;
+            return h & mask_;
+        }
+
+        private void reset()
+        {
+            for (byte[] row : counters_)
+            {
+                for (int i = 0; i < row.length; ++i)
+                {
+                    row[i] >>= 1;
+                }
+            }
+
+            additions_ /= 2;
+        }
+    }
+}
@@ -0,0 +1,589 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.io.FileIOOperations;
+import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps iRODS data objects open across consecutive READ and WRITE calls.
+ *
+ * Handles are keyed by user and inode number. Each handle holds a leased
+ * connection for as long as it is open, because an open data object belongs to
+ * the connection that opened it. A handle remembers its position, so reads and
+ * writes that continue where the previous call stopped do not seek.
+ *
+ * iRODS updates the size of a data object when it is closed. Until then, the
+ * size written through open handles is reported by {@link #getWrittenSize}.
+ *
+ * Handles are closed when they stay idle too long, when the file is committed,
+ * or when the data object is removed, renamed or has its attributes changed.
+ * They are also closed when the connection pool runs out of connections for
+ * their user, so that idle handles never make other requests wait.
+ */
+public class DataObjectHandleCache
+{
+    private static final Logger log_ = LoggerFactory.getLogger(DataObjectHandleCache.class);
+
+    private final AttributeCache attrCache_;
+    private final long idleTimeout_;
+    private final int maxHandlesPerFile_;
+    private final int maxHandlesPerUser_;
+    private final Object lock_;
+    private final Map<Key, List<Handle>> handles_;
+    private final Map<Integer, Integer> handlesPerUser_;
+    private final Map<String, Long> writtenSizes_;
+    private final ScheduledExecutorService reaper_;
+
+    public DataObjectHandleCache(long _idleTimeoutInMillis,
+                                 int _maxHandlesPerFile,
+                                 int _maxHandlesPerUser,
+                                 AttributeCache _attrCache)
+    {
+        attrCache_ = _attrCache;
+        idleTimeout_ = _idleTimeoutInMillis;
+        maxHandlesPerFile_ = Math.max(1, _maxHandlesPerFile);
+        maxHandlesPerUser_ = Math.max(1, _maxHandlesPerUser);
+        lock_ = new Object();
+        handles_ = new HashMap<>();
+        handlesPerUser_ = new HashMap<>();
+        writtenSizes_ = new ConcurrentHashMap<>();
+
+        // @formatter:off
+        reaper_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("data-object-handle-reaper")
+            .setDaemon(true)
+            .build());
+        // @formatter:on
+
+        long reapInterval = Math.max(1000, idleTimeout_ / 2);
+        reaper_.scheduleWithFixedDelay(this::closeIdleHandles, reapInterval, reapInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public int read(IRODSUser _user, long _inodeNumber, Path _path, byte[] _data, long _offset, int _count)
+        throws IOException,
+        JargonException
+    {
+        return read(_user, _inodeNumber, _path, _data, 0, _offset, _count);
+    }
+
+    // Reads into the buffer starting at the buffer offset.
+    public int read(IRODSUser _user,
+                    long _inodeNumber,
+                    Path _path,
+                    byte[] _data,
+                    int _dataOffset,
+                    long _offset,
+                    int _count)
+        throws IOException,
+        JargonException
+    {
+        Handle handle = acquire(_user, _inodeNumber, _path, _offset);
+        boolean ok = false;
+
+        try
+        {
+            int bytesRead = handle.lease_.execute(() -> {
+                handle.seek(_offset);
+
+                int n = handle.file_.read(_data, _dataOffset, _count);
+
+                if (n > 0)
+                {
+                    handle.position_ += n;
+                }
+
+                return n;
+            });
+
+            ok = true;
+
+            return bytesRead;
+        }
+        finally
+        {
+            release(handle, ok);
+        }
+    }
+
+    public void write(IRODSUser _user, long _inodeNumber, Path _path, byte[] _data, long _offset, int _count)
+        throws IOException,
+        JargonException
+    {
+        Handle handle = acquire(_user, _inodeNumber, _path, _offset);
+        boolean ok = false;
+
+        try
+        {
+            handle.lease_.execute(() -> {
+                handle.seek(_offset);
+                handle.file_.write(_data, 0, _count);
+                handle.position_ += _count;
+                return null;
+            });
+
+            synchronized (lock_)
+            {
+                handle.writtenSize_ = Math.max(handle.writtenSize_, _offset + _count);
+                writtenSizes_.merge(handle.path_, handle.writtenSize_, Math::max);
+            }
+
+            ok = true;
+        }
+        finally
+        {
+            release(handle, ok);
+        }
+    }
+
+    // Returns the size of the data object including the bytes written through
+    // open handles, or -1 if no open handle has written to it.
+    public long getWrittenSize(String _path)
+    {
+        return writtenSizes_.getOrDefault(_path, -1L);
+    }
+
+    // Closes the user's handles for the inode. Handles in use are closed as soon
+    // as they are released.
+    public void close(int _userID, long _inodeNumber)
+    {
+        Key key = new Key(_userID, _inodeNumber);
+        closeMatching(h -> h.key_.equals(key));
+    }
+
+    // Closes every handle for the path or for paths under it, regardless of
+    // the user holding it.
+    public void invalidate(String _path)
+    {
+        final String prefix = _path + "/";
+        closeMatching(h -> h.path_.equals(_path) || h.path_.startsWith(prefix));
+    }
+
+    // Closes the least recently used idle handle holding a connection of the
+    // account, or of any account if it is null. Returns true if a handle was
+    // closed. Called by the connection pool before a borrower waits.
+    public boolean reclaimIdleLease(IRODSAccount _account)
+    {
+        Handle victim = null;
+
+        synchronized (lock_)
+        {
+            for (List<Handle> handles : handles_.values())
+            {
+                for (Handle handle : handles)
+                {
+                    if (handle.inUse_ || handle.lease_ == null || (_account != null && !handle.lease_.isFor(_account)))
+                    {
+                        continue;
+                    }
+
+                    if (victim == null || handle.lastUsed_ < victim.lastUsed_)
+                    {
+                        victim = handle;
+                    }
+                }
+            }
+
+            if (victim == null)
+            {
+                return false;
+            }
+
+            forget(victim);
+            lock_.notifyAll();
+        }
+
+        log_.debug("reclaimIdleLease :: Closing [{}] to free a connection ...", victim.path_);
+        victim.close();
+
+        return true;
+    }
+
+    public void closeAll()
+    {
+        reaper_.shutdownNow();
+        closeMatching(h -> true);
+    }
+
+    private Handle acquire(IRODSUser _user, long _inodeNumber, Path _path, long _offset) throws IOException, JargonException
+    {
+        final Key key = new Key(_user.getUserID(), _inodeNumber);
+        final String path = _path.toString();
+
+        Handle handle = null;
+        Handle victim = null;
+
+        synchronized (lock_)
+        {
+            while (handle == null)
+            {
+                List<Handle> handles = handles_.getOrDefault(key, Collections.emptyList());
+
+                handle = findIdleHandle(handles, path, _offset);
+
+                if (handle != null)
+                {
+                    handle.inUse_ = true;
+                    break;
+                }
+
+                if (handles.size() < maxHandlesPerFile_)
+                {
+                    int userHandles = handlesPerUser_.getOrDefault(key.userID_, 0);
+
+                    if (userHandles >= maxHandlesPerUser_ && victim == null)
+                    {
+                        victim = removeLeastRecentlyUsedIdleHandle(key.userID_);
+                        userHandles = handlesPerUser_.getOrDefault(key.userID_, 0);
+                    }
+
+                    if (userHandles < maxHandlesPerUser_)
+                    {
+                        // Reserve the slot now. The data object is opened below,
+                        // outside of the lock.
+                        handle = new Handle(key, path);
+                        handles_.computeIfAbsent(key, k -> new ArrayList<>(maxHandlesPerFile_)).add(handle);
+                        handlesPerUser_.put(key.userID_, userHandles + 1);
+                        break;
+                    }
+                }
+
+                try
+                {
+                    lock_.wait(idleTimeout_);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a data object handle");
+                }
+            }
+        }
+
+        if (victim != null)
+        {
+            victim.close();
+        }
+
+        if (handle.file_ == null)
+        {
+            try
+            {
+                handle.open(_user);
+            }
+            catch (IOException | JargonException | RuntimeException e)
+            {
+                release(handle, false);
+                throw e;
+            }
+        }
+
+        return handle;
+    }
+
+    private void release(Handle _handle, boolean _ok)
+    {
+        synchronized (lock_)
+        {
+            _handle.inUse_ = false;
+            _handle.lastUsed_ = System.currentTimeMillis();
+
+            if (_ok && !_handle.stale_)
+            {
+                lock_.notifyAll();
+                return;
+            }
+
+            forget(_handle);
+            lock_.notifyAll();
+        }
+
+        _handle.close();
+    }
+
+    private void closeMatching(Predicate<Handle> _predicate)
+    {
+        List<Handle> closed = new ArrayList<>();
+
+        synchronized (lock_)
+        {
+            for (List<Handle> handles : handles_.values())
+            {
+                for (Handle handle : handles)
+                {
+                    if (_predicate.test(handle))
+                    {
+                        handle.stale_ = true;
+
+                        if (!handle.inUse_)
+                        {
+                            closed.add(handle);
+                        }
+                    }
+                }
+            }
+
+            closed.forEach(this::forget);
+        }
+
+        closed.forEach(Handle::close);
+    }
+
+    private void closeIdleHandles()
+    {
+        final long now = System.currentTimeMillis();
+
+        closeMatching(h -> !h.inUse_ && now - h.lastUsed_ >= idleTimeout_);
+    }
+
+    // Prefers a handle positioned at the offset, so sequential access does not
+    // seek. Must be called while holding the lock.
+    private static Handle findIdleHandle(List<Handle> _handles, String _path, long _offset)
+    {
+        Handle candidate = null;
+
+        for (Handle handle : _handles)
+        {
+            if (handle.inUse_ || handle.stale_ || !handle.path_.equals(_path))
+            {
+                continue;
+            }
+
+            if (handle.position_ == _offset)
+            {
+                return handle;
+            }
+
+            if (candidate == null || handle.lastUsed_ > candidate.lastUsed_)
+            {
+                candidate = handle;
+            }
+        }
+
+        return candidate;
+    }
+
+    // Must be called while holding the lock.
+    private Handle removeLeastRecentlyUsedIdleHandle(int _userID)
+    {
+        Handle victim = null;
+
+        for (List<Handle> handles : handles_.values())
+        {
+            for (Handle handle : handles)
+            {
+                if (handle.key_.userID_ != _userID || handle.inUse_)
+                {
+                    continue;
+                }
+
+                if (victim == null || handle.lastUsed_ < victim.lastUsed_)
+                {
+                    victim = handle;
+                }
+            }
+        }
+
+        if (victim != null)
+        {
+            forget(victim);
+        }
+
+        return victim;
+    }
+
+    // Must be called while holding the lock.
+    private void forget(Handle _handle)
+    {
+        List<Handle> handles = handles_.get(_handle.key_);
+
+        if (handles == null || !handles.remove(_handle))
+        {
+            return;
+        }
+
+        if (handles.isEmpty())
+        {
+            handles_.remove(_handle.key_);
+        }
+
+        int userHandles = handlesPerUser_.getOrDefault(_handle.key_.userID_, 1) - 1;
+
+        if (userHandles > 0)
+        {
+            handlesPerUser_.put(_handle.key_.userID_, userHandles);
+        }
+        else
+        {
+            handlesPerUser_.remove(_handle.key_.userID_);
+        }
+    }
+
+    // Must be called while holding the lock.
+    private boolean hasWrittenHandles(String _path)
+    {
+        for (List<Handle> handles : handles_.values())
+        {
+            for (Handle handle : handles)
+            {
+                if (handle.writtenSize_ >= 0 && handle.path_.equals(_path))
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static final class Key
+    {
+        private final int userID_;
+        private final long inodeNumber_;
+
+        Key(int _userID, long _inodeNumber)
+        {
+            userID_ = _userID;
+            inodeNumber_ = _inodeNumber;
+        }
+
+        @Override
+        public boolean equals(Object _other)
+        {
+            if (this == _other)
+            {
+                return true;
+            }
+
+            if (!(_other instanceof Key))
+            {
+                return false;
+            }
+
+            Key other = (Key) _other;
+
+            return userID_ == other.userID_ && inodeNumber_ == other.inodeNumber_;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(userID_, inodeNumber_);
+        }
+    }
+
+    private final class Handle
+    {
+        private final Key key_;
+        private final String path_;
+        private IRODSConnectionPool.Lease lease_;
+        private IRODSRandomAccessFile file_;
+        private long position_;
+
+        // Guarded by the cache lock.
+        private boolean inUse_;
+        private boolean stale_;
+        private long lastUsed_;
+        private long writtenSize_;
+
+        Handle(Key _key, String _path)
+        {
+            key_ = _key;
+            path_ = _path;
+            inUse_ = true;
+            lastUsed_ = System.currentTimeMillis();
+            writtenSize_ = -1;
+        }
+
+        void open(IRODSUser _user) throws IOException, JargonException
+        {
+            log_.debug("open :: Opening [{}] for user [{}] ...", path_, key_.userID_);
+
+            lease_ = _user.getConnectionPool().lease(_user.getAccount());
+
+            try
+            {
+                // @formatter:off
+                file_ = lease_.execute(() -> _user.getIRODSAccessObjectFactory()
+                    .getIRODSFileFactory(_user.getAccount())
+                    .instanceIRODSRandomAccessFile(path_));
+                // @formatter:on
+            }
+            catch (IOException | JargonException | RuntimeException e)
+            {
+                lease_.close();
+                lease_ = null;
+                throw e;
+            }
+        }
+
+        // Must be called on the thread of the leased connection.
+        void seek(long _offset) throws IOException
+        {
+            if (position_ != _offset)
+            {
+                file_.seek(_offset, FileIOOperations.SeekWhenceType.SEEK_START);
+                position_ = _offset;
+            }
+        }
+
+        void close()
+        {
+            if (file_ != null)
+            {
+                log_.debug("close :: Closing [{}] for user [{}] ...", path_, key_.userID_);
+
+                try
+                {
+                    lease_.execute(() -> {
+                        file_.close();
+                        return null;
+                    });
+                }
+                catch (IOException | JargonException | RuntimeException e)
+                {
+                    log_.error("close :: Error closing [{}]. {}", path_, e.getMessage());
+                }
+                finally
+                {
+                    lease_.close();
+                }
+            }
+
+            // The size in the catalog changes when the data object is closed.
+            // The cached stat information is dropped before the written size,
+            // so the size reported never goes backwards.
+            if (writtenSize_ >= 0)
+            {
+                attrCache_.invalidate(path_);
+
+                synchronized (lock_)
+                {
+                    if (!hasWrittenHandles(path_))
+                    {
+                        writtenSizes_.remove(path_);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.DataObjInp.OpenFlags;
+import org.irods.jargon.core.pub.io.IRODSFile;
+import org.irods.jargon.core.pub.io.IRODSFileFactory;
+import org.irods.jargon.core.pub.io.IRODSFileInputStream;
+import org.irods.jargon.core.pub.io.IRODSFileOutputStream;
+import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
+import org.irods.jargon.core.rule.IRODSRuleParameter;
+import org.irods.jargon.core.rule.IrodsRuleInvocationTypeEnum;
+import org.irods.jargon.core.rule.RuleInvocationConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Changes the size of data objects.
+ *
+ * Growing a data object appends zeros to it. Shrinking it runs the truncate
+ * rule, if one is configured, so the data object is truncated in place on the
+ * iRODS server. If there is no rule or the rule fails, the part of the data
+ * object to keep is copied into a new data object which then replaces the
+ * original.
+ */
+public class DataObjectTruncator
+{
+    private static final Logger log_ = LoggerFactory.getLogger(DataObjectTruncator.class);
+
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final String truncateRule_;
+
+    public DataObjectTruncator(String _truncateRule)
+    {
+        truncateRule_ = (_truncateRule == null || _truncateRule.trim().isEmpty()) ? null : _truncateRule;
+    }
+
+    // Must be called on the thread of the user's connection.
+    public void setSize(IRODSUser _user, String _path, long _size, long _inodeNumber)
+        throws IOException,
+        JargonException
+    {
+        IRODSFileFactory ff = _user.getIRODSAccessObjectFactory().getIRODSFileFactory(_user.getAccount());
+        IRODSFile file = ff.instanceIRODSFile(_path);
+
+        try
+        {
+            long size = file.length();
+
+            if (_size > size)
+            {
+                grow(ff, file, size, _size);
+            }
+            else if (_size < size && !truncateOnServer(_user, _path, _size))
+            {
+                truncateByCopy(ff, file, _size, _inodeNumber);
+            }
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    private static void grow(IRODSFileFactory _ff, IRODSFile _file, long _size, long _newSize) throws IOException,
+        JargonException
+    {
+        log_.debug("grow :: Appending [{}] bytes to [{}] ...", _newSize - _size, _file.getAbsolutePath());
+
+        IRODSRandomAccessFile raf = _ff.instanceIRODSRandomAccessFile(_file, OpenFlags.READ_WRITE);
+
+        try
+        {
+            byte[] zeros = new byte[(int) Math.min(BUFFER_SIZE, _newSize - _size)];
+
+            raf.seek(_size);
+
+            for (long remaining = _newSize - _size; remaining > 0;)
+            {
+                int count = (int) Math.min(zeros.length, remaining);
+                raf.write(zeros, 0, count);
+                remaining -= count;
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    // Returns false if the data object must be truncated some other way.
+    private boolean truncateOnServer(IRODSUser _user, String _path, long _size)
+    {
+        if (_size == 0)
+        {
+            // Opening with truncation empties the data object in place.
+            try
+            {
+                IRODSFileFactory ff = _user.getIRODSAccessObjectFactory().getIRODSFileFactory(_user.getAccount());
+                ff.instanceIRODSFileOutputStream(ff.instanceIRODSFile(_path), OpenFlags.WRITE_TRUNCATE).close();
+                return true;
+            }
+            catch (IOException | JargonException e)
+            {
+                log_.error("truncateOnServer :: Error emptying [{}]. {}", _path, e.getMessage());
+                return false;
+            }
+        }
+
+        if (truncateRule_ == null)
+        {
+            return false;
+        }
+
+        log_.debug("truncateOnServer :: Truncating [{}] to [{}] bytes with the truncate rule ...", _path, _size);
+
+        // @formatter:off
+        List<IRODSRuleParameter> params = Arrays.asList(new IRODSRuleParameter("*logical_path", quote(_path)),
+                                                        new IRODSRuleParameter("*size", quote(String.valueOf(_size))));
+        // @formatter:on
+
+        RuleInvocationConfiguration ruleConfig = new RuleInvocationConfiguration();
+        ruleConfig.setIrodsRuleInvocationTypeEnum(IrodsRuleInvocationTypeEnum.AUTO_DETECT);
+
+        try
+        {
+            _user.getIRODSAccessObjectFactory()
+                .getRuleProcessingAO(_user.getAccount())
+                .executeRule(truncateRule_, params, ruleConfig);
+
+            return true;
+        }
+        catch (JargonException e)
+        {
+            log_.warn("truncateOnServer :: The truncate rule failed for [{}]. Falling back to copying. {}",
+                      _path, e.getMessage());
+            return false;
+        }
+    }
+
+    private static void truncateByCopy(IRODSFileFactory _ff, IRODSFile _file, long _size, long _inodeNumber)
+        throws IOException,
+        JargonException
+    {
+        log_.debug("truncateByCopy :: Copying the first [{}] bytes of [{}] ...", _size, _file.getAbsolutePath());
+
+        IRODSFile tempFile = _ff.instanceIRODSFile(_file.getAbsolutePath() + ".temp_" + _inodeNumber);
+
+        try
+        {
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, _size)];
+
+            // @formatter:off
+            try (IRODSFileInputStream fis = _ff.instanceIRODSFileInputStream(_file);
+                 IRODSFileOutputStream fos = _ff.instanceIRODSFileOutputStream(tempFile))
+            // @formatter:on
+            {
+                for (long remaining = _size; remaining > 0;)
+                {
+                    int count = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+                    if (count < 0)
+                    {
+                        break;
+                    }
+
+                    fos.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            }
+
+            _file.delete();
+            tempFile.renameTo(_file);
+        }
+        finally
+        {
+            tempFile.close();
+        }
+    }
+
+    // String rule parameters are passed to the rule engine quoted.
+    private static String quote(String _value)
+    {
+        return '"' + _value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
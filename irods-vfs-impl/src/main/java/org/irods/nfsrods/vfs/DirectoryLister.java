@@ -0,0 +1,235 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Future;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.CollectionAndDataObjectListAndSearchAO;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lists the contents of a collection using paged GenQueries.
+ *
+ * Each entry returned carries the size, times, owner and permissions of the
+ * object, so callers do not need to stat the entries individually.
+ *
+ * Every entry is assigned a cookie derived from its position in the query
+ * results. Sub-collections use their position as the cookie. Data objects use
+ * their position plus {@link #DATA_OBJECT_COOKIE_BASE}. A cookie therefore maps
+ * directly to the query and offset to resume from, so continuing a listing
+ * only fetches the pages following the cookie. Pages are fetched as the
+ * listing is consumed, so a listing never holds more than one page of each
+ * query in memory.
+ *
+ * Pages are fetched on pooled connections of the user, so a listing may be
+ * continued from any thread.
+ */
+public class DirectoryLister
+{
+    private static final Logger log_ = LoggerFactory.getLogger(DirectoryLister.class);
+
+    public static final long DATA_OBJECT_COOKIE_BASE = 1L << 32;
+
+    // Opens a cursor over the entries following the cookie. A cookie of zero
+    // starts at the beginning of the collection. The first page is fetched
+    // before returning so that errors are reported to the caller.
+    public Cursor open(IRODSUser _user, String _path, long _cookie) throws IOException, JargonException
+    {
+        log_.debug("open :: Listing [{}] from cookie [{}] ...", _path, _cookie);
+
+        Cursor cursor = new Cursor(_user, _path, _cookie);
+        cursor.advance();
+
+        return cursor;
+    }
+
+    public static long cookieOf(CollectionAndDataObjectListingEntry _entry)
+    {
+        if (_entry.isCollection())
+        {
+            return _entry.getCount();
+        }
+
+        return DATA_OBJECT_COOKIE_BASE + _entry.getCount();
+    }
+
+    public final class Cursor implements Iterator<CollectionAndDataObjectListingEntry>
+    {
+        private final IRODSUser user_;
+        private final String path_;
+        private boolean collections_;
+        private int offset_;
+        private Future<List<CollectionAndDataObjectListingEntry>> prefetchedPage_;
+        private Iterator<CollectionAndDataObjectListingEntry> page_;
+        private String lastDataObjectName_;
+        private int resumedCount_;
+
+        private Cursor(IRODSUser _user, String _path, long _cookie)
+        {
+            user_ = _user;
+            path_ = _path;
+            collections_ = _cookie < DATA_OBJECT_COOKIE_BASE;
+            offset_ = (int) (collections_ ? _cookie : _cookie - DATA_OBJECT_COOKIE_BASE);
+            page_ = Collections.emptyIterator();
+
+            // The entry at a data object cookie may be followed by more replicas
+            // of the same data object. Its row is fetched again so that its name
+            // is known and those replicas are skipped.
+            if (!collections_ && offset_ > 0)
+            {
+                resumedCount_ = offset_;
+                offset_ = offset_ - 1;
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            try
+            {
+                return advance();
+            }
+            catch (IOException e)
+            {
+                log_.error(e.getMessage());
+                throw new UncheckedIOException(e);
+            }
+            catch (JargonException e)
+            {
+                log_.error(e.getMessage());
+                throw new UncheckedIOException(new IOException(e));
+            }
+        }
+
+        @Override
+        public CollectionAndDataObjectListingEntry next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+
+            CollectionAndDataObjectListingEntry entry = page_.next();
+
+            if (!entry.isCollection())
+            {
+                lastDataObjectName_ = entry.getPathOrName();
+            }
+
+            return entry;
+        }
+
+        private boolean advance() throws IOException, JargonException
+        {
+            while (!page_.hasNext())
+            {
+                if (offset_ == -1)
+                {
+                    if (!collections_)
+                    {
+                        return false;
+                    }
+
+                    collections_ = false;
+                    offset_ = 0;
+                }
+
+                List<CollectionAndDataObjectListingEntry> page = fetchPage();
+                offset_ = nextOffset(page);
+                page_ = collections_ ? page.iterator() : removeDuplicates(page).iterator();
+
+                // The first page of data objects is fetched while the last page of
+                // sub-collections is being returned. It is not fetched earlier, as
+                // most replies are full before the listing gets that far.
+                if (collections_ && offset_ == -1)
+                {
+                    prefetchDataObjects();
+                }
+            }
+
+            return true;
+        }
+
+        private void prefetchDataObjects() throws IOException
+        {
+            prefetchedPage_ = user_.submit(() -> user_.getIRODSAccessObjectFactory()
+                .getCollectionAndDataObjectListAndSearchAO(user_.getAccount())
+                .listDataObjectsUnderPathWithPermissions(path_, 0));
+        }
+
+        private List<CollectionAndDataObjectListingEntry> fetchPage() throws IOException, JargonException
+        {
+            log_.debug("fetchPage :: Fetching {} of [{}] at offset [{}] ...",
+                       collections_ ? "collections" : "data objects", path_, offset_);
+
+            if (!collections_ && prefetchedPage_ != null && offset_ == 0)
+            {
+                Future<List<CollectionAndDataObjectListingEntry>> page = prefetchedPage_;
+                prefetchedPage_ = null;
+                return IRODSConnectionPool.await(page);
+            }
+
+            final boolean collections = collections_;
+            final int offset = offset_;
+
+            return user_.execute(() -> {
+                // @formatter:off
+                CollectionAndDataObjectListAndSearchAO lao = user_.getIRODSAccessObjectFactory()
+                    .getCollectionAndDataObjectListAndSearchAO(user_.getAccount());
+                // @formatter:on
+
+                if (collections)
+                {
+                    return lao.listCollectionsUnderPathWithPermissions(path_, offset);
+                }
+
+                return lao.listDataObjectsUnderPathWithPermissions(path_, offset);
+            });
+        }
+
+        // Data objects with several replicas may be reported more than once.
+        // Duplicates are adjacent because the results are ordered by name.
+        private List<CollectionAndDataObjectListingEntry> removeDuplicates(List<CollectionAndDataObjectListingEntry> _page)
+        {
+            List<CollectionAndDataObjectListingEntry> entries = new ArrayList<>(_page.size());
+            String lastName = lastDataObjectName_;
+
+            for (CollectionAndDataObjectListingEntry entry : _page)
+            {
+                // Rows up to the cookie the listing was resumed from were already
+                // returned.
+                if (entry.getCount() > resumedCount_ && !entry.getPathOrName().equals(lastName))
+                {
+                    entries.add(entry);
+                }
+
+                lastName = entry.getPathOrName();
+            }
+
+            resumedCount_ = 0;
+
+            return entries;
+        }
+    }
+
+    // Returns the offset of the next page, or -1 if there are no more pages.
+    private static int nextOffset(List<CollectionAndDataObjectListingEntry> _page)
+    {
+        if (_page.isEmpty())
+        {
+            return -1;
+        }
+
+        CollectionAndDataObjectListingEntry last = _page.get(_page.size() - 1);
+
+        return last.isLastResult() ? -1 : last.getCount();
+    }
+}
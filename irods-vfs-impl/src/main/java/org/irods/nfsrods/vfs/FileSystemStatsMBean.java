@@ -0,0 +1,26 @@
+package org.irods.nfsrods.vfs;
+
+/**
+ * The JMX view of the data transferred by the file system, of the iRODS
+ * connections it uses and of the users logged in to it.
+ */
+public interface FileSystemStatsMBean
+{
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getIRODSCalls();
+
+    long getOpenedConnections();
+
+    long getClosedConnections();
+
+    int getOpenConnections();
+
+    int getActiveUsers();
+
+    int getLoggedInUsers();
+
+    long getEvictedUsers();
+}
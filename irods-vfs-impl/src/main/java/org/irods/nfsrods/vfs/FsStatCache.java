@@ -0,0 +1,272 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.dcache.nfs.vfs.FsStat;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.QuotaAO;
+import org.irods.jargon.core.pub.domain.Quota;
+import org.irods.jargon.core.pub.domain.Resource;
+import org.irods.jargon.core.query.GenQueryBuilderException;
+import org.irods.jargon.core.query.GenQueryField.SelectFieldTypes;
+import org.irods.jargon.core.query.IRODSGenQueryBuilder;
+import org.irods.jargon.core.query.IRODSGenQueryFromBuilder;
+import org.irods.jargon.core.query.IRODSQueryResultRow;
+import org.irods.jargon.core.query.JargonQueryException;
+import org.irods.jargon.core.query.QueryConditionOperators;
+import org.irods.jargon.core.query.RodsGenQueryEnum;
+import org.irods.nfsrods.config.IRODSProxyAdminAccountConfig;
+import org.irods.nfsrods.config.IRODSServerConfig;
+import org.irods.nfsrods.config.NFSServerConfig;
+import org.irods.nfsrods.config.ServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Answers FSSTAT requests from statistics gathered in the background.
+ *
+ * The used space and file count are the total size and number of data
+ * objects under the mount point. The free space is the sum of the free space
+ * iRODS reports for its resources. Users with a global quota, or a quota on
+ * the default resource, see their quota instead: the limit as the total space
+ * and their usage as the used space. iRODS only updates quota usage when it is
+ * recalculated by an administrator.
+ *
+ * The statistics are replaced as a whole on every refresh, so requests never
+ * wait on iRODS. Until the first refresh completes, the file system is
+ * reported as empty.
+ */
+public class FsStatCache
+{
+    private static final Logger log_ = LoggerFactory.getLogger(FsStatCache.class);
+
+    // There is no limit on the number of data objects. This is reported as the
+    // number of files that can still be created.
+    private static final long FREE_FILES = 1L << 32;
+
+    private static final class Snapshot
+    {
+        private final long usedSpace_;
+        private final long usedFiles_;
+        private final long freeSpace_;
+        private final Map<String, FsStat> quotas_;
+
+        Snapshot(long _usedSpace, long _usedFiles, long _freeSpace, Map<String, FsStat> _quotas)
+        {
+            usedSpace_ = _usedSpace;
+            usedFiles_ = _usedFiles;
+            freeSpace_ = _freeSpace;
+            quotas_ = _quotas;
+        }
+    }
+
+    private final IRODSConnectionPool pool_;
+    private final IRODSAccessObjectFactory factory_;
+    private final IRODSAccount adminAcct_;
+    private final String mountPoint_;
+    private final String defaultResource_;
+    private final long assumedFreeSpace_;
+    private final ScheduledExecutorService scheduler_;
+    private volatile Snapshot snapshot_;
+
+    public FsStatCache(ServerConfig _config, IRODSConnectionPool _pool) throws JargonException
+    {
+        NFSServerConfig nfsSvrConfig = _config.getNfsServerConfig();
+        IRODSProxyAdminAccountConfig proxyConfig = _config.getIRODSProxyAdminAcctConfig();
+        IRODSServerConfig rodsSvrConfig = _config.getIRODSServerConfig();
+
+        String zone = rodsSvrConfig.getZone();
+        String adminUsername = proxyConfig.getUsername();
+
+        pool_ = _pool;
+        factory_ = _pool.getIRODSAccessObjectFactory();
+        adminAcct_ = IRODSAccount.instance(rodsSvrConfig.getHost(), rodsSvrConfig.getPort(), adminUsername,
+                                           proxyConfig.getPassword(), "/" + zone + "/home/" + adminUsername, zone,
+                                           rodsSvrConfig.getDefaultResource());
+        mountPoint_ = nfsSvrConfig.getIRODSMountPoint();
+        defaultResource_ = rodsSvrConfig.getDefaultResource();
+        assumedFreeSpace_ = nfsSvrConfig.getFsStatAssumedFreeSpaceInBytes();
+        snapshot_ = new Snapshot(0, 0, assumedFreeSpace_, Collections.emptyMap());
+
+        // @formatter:off
+        scheduler_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("fs-stat-refresh")
+            .setDaemon(true)
+            .build());
+        // @formatter:on
+
+        long interval = nfsSvrConfig.getFsStatRefreshIntervalInMilliseconds();
+        scheduler_.scheduleWithFixedDelay(this::refresh, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns the statistics seen by the user, or those of the zone if the
+    // user is null.
+    public FsStat get(String _userName)
+    {
+        Snapshot snapshot = snapshot_;
+
+        if (_userName != null)
+        {
+            FsStat quota = snapshot.quotas_.get(_userName);
+
+            if (quota != null)
+            {
+                return quota;
+            }
+        }
+
+        // @formatter:off
+        return new FsStat(snapshot.usedSpace_ + snapshot.freeSpace_,
+                          snapshot.usedFiles_ + FREE_FILES,
+                          snapshot.usedSpace_,
+                          snapshot.usedFiles_);
+        // @formatter:on
+    }
+
+    public void close()
+    {
+        scheduler_.shutdownNow();
+    }
+
+    private void refresh()
+    {
+        log_.debug("refresh :: Gathering file system statistics ...");
+
+        try
+        {
+            long[] usage = pool_.execute(adminAcct_, this::fetchUsage);
+            long freeSpace = pool_.execute(adminAcct_, this::fetchFreeSpace);
+            Map<String, FsStat> quotas = pool_.execute(adminAcct_, () -> fetchQuotas(usage[1]));
+
+            // Resources that do not have their free space set report zero. The
+            // free space is then unknown, and reporting none would stop clients
+            // from writing.
+            if (freeSpace <= 0)
+            {
+                freeSpace = assumedFreeSpace_;
+            }
+
+            snapshot_ = new Snapshot(usage[0], usage[1], freeSpace, quotas);
+
+            log_.debug("refresh :: Used space = {}, used files = {}, free space = {}, quotas = {}.",
+                       usage[0], usage[1], freeSpace, quotas.size());
+        }
+        catch (Exception e)
+        {
+            log_.error("refresh :: Could not gather file system statistics. {}", e.getMessage());
+        }
+    }
+
+    // Returns the total size and the number of data objects under the mount
+    // point.
+    private long[] fetchUsage() throws JargonException
+    {
+        try
+        {
+            // @formatter:off
+            IRODSGenQueryFromBuilder query = new IRODSGenQueryBuilder(true, null)
+                .addSelectAsAgregateGenQueryValue(RodsGenQueryEnum.COL_DATA_SIZE, SelectFieldTypes.SUM)
+                .addSelectAsAgregateGenQueryValue(RodsGenQueryEnum.COL_D_DATA_ID, SelectFieldTypes.COUNT)
+                .addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_NAME, QueryConditionOperators.LIKE, mountPoint_ + "/%")
+                .exportIRODSQueryFromBuilder(1);
+            // @formatter:on
+
+            List<IRODSQueryResultRow> rows = factory_.getIRODSGenQueryExecutor(adminAcct_)
+                .executeIRODSQueryAndCloseResult(query, 0)
+                .getResults();
+
+            if (rows.isEmpty())
+            {
+                return new long[] {0, 0};
+            }
+
+            IRODSQueryResultRow row = rows.get(0);
+
+            return new long[] {parseLong(row.getColumn(0)), parseLong(row.getColumn(1))};
+        }
+        catch (GenQueryBuilderException | JargonQueryException e)
+        {
+            throw new JargonException("Could not query the usage of " + mountPoint_, e);
+        }
+    }
+
+    private long fetchFreeSpace() throws JargonException
+    {
+        long freeSpace = 0;
+
+        for (Resource resource : factory_.getResourceAO(adminAcct_).findAll())
+        {
+            freeSpace += Math.max(0, resource.getFreeSpace());
+        }
+
+        return freeSpace;
+    }
+
+    // Returns the statistics of each user with a quota that applies to the
+    // mount point. The smallest quota of a user wins.
+    private Map<String, FsStat> fetchQuotas(long _usedFiles) throws JargonException
+    {
+        QuotaAO quotaAO = factory_.getQuotaAO(adminAcct_);
+        Map<String, FsStat> quotas = new HashMap<>();
+
+        for (Quota quota : quotaAO.listAllGlobalQuota())
+        {
+            addQuota(quotas, quota, _usedFiles);
+        }
+
+        for (Quota quota : quotaAO.listAllQuota())
+        {
+            if (defaultResource_.equals(quota.getResourceName()))
+            {
+                addQuota(quotas, quota, _usedFiles);
+            }
+        }
+
+        return quotas;
+    }
+
+    private static void addQuota(Map<String, FsStat> _quotas, Quota _quota, long _usedFiles)
+    {
+        long limit = _quota.getQuotaLimit();
+
+        if (limit <= 0)
+        {
+            return;
+        }
+
+        FsStat current = _quotas.get(_quota.getUserName());
+
+        if (current != null && current.getTotalSpace() <= limit)
+        {
+            return;
+        }
+
+        // iRODS reports how far the usage is over the limit. It is negative
+        // while the usage is below the limit.
+        long used = Math.max(0, Math.min(limit, limit + _quota.getQuotaOver()));
+
+        _quotas.put(_quota.getUserName(), new FsStat(limit, _usedFiles + FREE_FILES, used, _usedFiles));
+    }
+
+    private static long parseLong(String _value)
+    {
+        try
+        {
+            return (_value == null || _value.isEmpty()) ? 0 : Long.parseLong(_value);
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,707 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.dcache.nfs.ChimeraNFSException;
+import org.dcache.nfs.status.DelayException;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.nfsrods.config.IRODSClientConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A pool of warm iRODS connections, grouped by account.
+ *
+ * Jargon binds a connection to the thread that opened it. Each pooled
+ * connection therefore owns a thread, and operations are run on the thread of
+ * the connection borrowed for them. Connections are kept open between
+ * operations, so an operation only pays for the request round trip.
+ *
+ * The pool limits the number of connections per account and in total. When
+ * the total limit is reached, the least recently used idle connection of any
+ * account is closed to make room. Connections leased for a long time, such as
+ * those of open data objects, count against the same limits. Before a borrower
+ * waits, the pool asks its {@link LeaseReclaimer} to give back a lease that is
+ * not being used. Connections that stay idle for too long are
+ * closed in the background, and connections that have been idle for a while are
+ * validated before they are handed out again. A validation that does not
+ * complete within the wait timeout discards the connection.
+ *
+ * Borrowers wait on a lock rather than a monitor, so that virtual threads
+ * waiting for a connection do not hold on to their carrier thread.
+ *
+ * The pool counts the operations run on its connections, in total and per
+ * calling thread, so that the cost of a request can be measured in iRODS
+ * round trips. The trace of a sampled request is carried over to the
+ * connection threads, and the time spent waiting for a connection is added
+ * to it.
+ */
+public class IRODSConnectionPool
+{
+    private static final Logger log_ = LoggerFactory.getLogger(IRODSConnectionPool.class);
+
+    private static final ThreadLocal<long[]> callsOfThread_ = ThreadLocal.withInitial(() -> new long[1]);
+
+    // Gives back leases that are held but idle.
+    @FunctionalInterface
+    public interface LeaseReclaimer
+    {
+        // Closes one idle lease of the account, or of any account if it is
+        // null. Returns true if a lease was closed.
+        boolean reclaimIdleLease(IRODSAccount _account);
+    }
+
+    private final IRODSAccessObjectFactory factory_;
+    private final int maxConns_;
+    private final int maxConnsPerUser_;
+    private final long idleTimeout_;
+    private final long validationInterval_;
+    private final long waitTimeout_;
+    private final ReentrantLock lock_;
+    private final Condition available_;
+    private final Map<String, Deque<PooledConnection>> idleConns_;
+    private final Map<String, Integer> connsPerUser_;
+    private final ScheduledExecutorService reaper_;
+    private final AtomicLong connIDs_;
+    private final LongAdder calls_;
+    private final LongAdder connsOpened_;
+    private final LongAdder connsClosed_;
+    private volatile LeaseReclaimer reclaimer_;
+    private int totalConns_;
+    private boolean closed_;
+
+    public IRODSConnectionPool(IRODSClientConfig _config, IRODSAccessObjectFactory _factory)
+    {
+        factory_ = TracedAccessObjectFactory.wrap(_factory);
+        maxConns_ = _config.getConnectionPoolMaxConnections();
+        maxConnsPerUser_ = _config.getConnectionPoolMaxConnectionsPerUser();
+        idleTimeout_ = _config.getConnectionPoolIdleTimeoutInMilliseconds();
+        validationInterval_ = _config.getConnectionPoolValidationIntervalInMilliseconds();
+        waitTimeout_ = _config.getConnectionPoolWaitTimeoutInMilliseconds();
+        lock_ = new ReentrantLock();
+        available_ = lock_.newCondition();
+        idleConns_ = new HashMap<>();
+        connsPerUser_ = new HashMap<>();
+        connIDs_ = new AtomicLong();
+        calls_ = new LongAdder();
+        connsOpened_ = new LongAdder();
+        connsClosed_ = new LongAdder();
+
+        // @formatter:off
+        reaper_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("irods-connection-reaper")
+            .setDaemon(true)
+            .build());
+        // @formatter:on
+
+        long reapInterval = Math.max(1000, idleTimeout_ / 2);
+        reaper_.scheduleWithFixedDelay(this::reapIdleConnections, reapInterval, reapInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public IRODSAccessObjectFactory getIRODSAccessObjectFactory()
+    {
+        return factory_;
+    }
+
+    // The number of operations submitted by the current thread, including
+    // connection validations. Callers measure a request by the difference
+    // between two readings.
+    public static long getCallCountOfCurrentThread()
+    {
+        return callsOfThread_.get()[0];
+    }
+
+    public long getCallCount()
+    {
+        return calls_.sum();
+    }
+
+    public long getOpenedConnectionCount()
+    {
+        return connsOpened_.sum();
+    }
+
+    public long getClosedConnectionCount()
+    {
+        return connsClosed_.sum();
+    }
+
+    public int getConnectionCount()
+    {
+        lock_.lock();
+
+        try
+        {
+            return totalConns_;
+        }
+        finally
+        {
+            lock_.unlock();
+        }
+    }
+
+    // Runs the operation on a pooled connection for the account and waits for
+    // its result.
+    public <T> T execute(IRODSAccount _account, IRODSOperation<T> _op) throws IOException, JargonException
+    {
+        return await(submit(_account, _op));
+    }
+
+    // Runs the operation on a pooled connection for the account without waiting
+    // for its result. Blocks only while waiting for a connection to become
+    // available.
+    public <T> Future<T> submit(IRODSAccount _account, IRODSOperation<T> _op) throws IOException
+    {
+        RequestTrace trace = RequestTrace.current();
+        long start = (trace != null) ? System.nanoTime() : 0;
+
+        PooledConnection conn = borrow(_account);
+
+        if (trace != null)
+        {
+            trace.addCall("IRODSConnectionPool.borrow", start, System.nanoTime());
+        }
+
+        countCall();
+
+        return conn.executor_.submit(() -> {
+            RequestTrace previous = (trace != null) ? RequestTrace.attach(trace) : null;
+            boolean healthy = true;
+
+            try
+            {
+                return _op.run();
+            }
+            catch (Exception e)
+            {
+                healthy = !isConnectionError(e);
+                throw e;
+            }
+            finally
+            {
+                if (trace != null)
+                {
+                    RequestTrace.attach(previous);
+                }
+
+                giveBack(conn, healthy);
+            }
+        });
+    }
+
+    // Borrows a connection for a series of operations. The connection is not
+    // handed to anyone else until the lease is closed.
+    public Lease lease(IRODSAccount _account) throws IOException
+    {
+        return new Lease(borrow(_account));
+    }
+
+    public void setLeaseReclaimer(LeaseReclaimer _reclaimer)
+    {
+        reclaimer_ = _reclaimer;
+    }
+
+    // Closes the idle connections of the account. Connections in use are left
+    // alone and closed by the reaper once they have been idle for too long.
+    public void closeIdleConnections(IRODSAccount _account)
+    {
+        Deque<PooledConnection> idle;
+
+        lock_.lock();
+
+        try
+        {
+            idle = idleConns_.remove(_account.toString());
+
+            if (idle == null)
+            {
+                return;
+            }
+
+            idle.forEach(this::forget);
+        }
+        finally
+        {
+            lock_.unlock();
+        }
+
+        log_.debug("closeIdleConnections :: Closing {} idle connections of [{}].", idle.size(), _account.getUserName());
+        idle.forEach(PooledConnection::close);
+    }
+
+    public void close()
+    {
+        log_.debug("close :: Closing all connections ...");
+
+        List<PooledConnection> conns = new ArrayList<>();
+
+        lock_.lock();
+
+        try
+        {
+            closed_ = true;
+            idleConns_.values().forEach(conns::addAll);
+            idleConns_.clear();
+            available_.signalAll();
+        }
+        finally
+        {
+            lock_.unlock();
+        }
+
+        reaper_.shutdownNow();
+        conns.forEach(PooledConnection::close);
+    }
+
+    private PooledConnection borrow(IRODSAccount _account) throws IOException
+    {
+        final String key = _account.toString();
+        final long deadline = System.currentTimeMillis() + waitTimeout_;
+        boolean reclaimed = false;
+
+        while (true)
+        {
+            PooledConnection conn = null;
+            PooledConnection victim = null;
+            IRODSAccount reclaimFrom = null;
+            boolean reclaim = false;
+
+            lock_.lock();
+
+            try
+            {
+                while (conn == null)
+                {
+                    if (closed_)
+                    {
+                        throw new IOException("Connection pool is closed");
+                    }
+
+                    Deque<PooledConnection> idle = idleConns_.get(key);
+
+                    if (idle != null && !idle.isEmpty())
+                    {
+                        conn = idle.pollFirst();
+                        break;
+                    }
+
+                    int userConns = connsPerUser_.getOrDefault(key, 0);
+
+                    if (userConns < maxConnsPerUser_)
+                    {
+                        if (totalConns_ >= maxConns_ && victim == null)
+                        {
+                            victim = removeLeastRecentlyUsedIdleConnection();
+                        }
+
+                        if (totalConns_ < maxConns_)
+                        {
+                            ++totalConns_;
+                            connsPerUser_.put(key, userConns + 1);
+                            conn = new PooledConnection(_account, key);
+                            log_.debug("borrow :: Opened connection [{}] for [{}].", conn.id_, _account.getUserName());
+                            break;
+                        }
+                    }
+
+                    // Leases held by idle users of connections are given back
+                    // once per borrow before waiting. The lease must be of the
+                    // account if the account is at its limit.
+                    if (!reclaimed && reclaimer_ != null)
+                    {
+                        reclaim = true;
+                        reclaimFrom = (userConns < maxConnsPerUser_) ? null : _account;
+                        break;
+                    }
+
+                    long remaining = deadline - System.currentTimeMillis();
+
+                    if (remaining <= 0)
+                    {
+                        log_.warn("borrow :: No connection available for [{}].", _account.getUserName());
+                        throw new DelayException("No iRODS connection available");
+                    }
+
+                    try
+                    {
+                        available_.await(remaining, TimeUnit.MILLISECONDS);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for an iRODS connection");
+                    }
+                }
+            }
+            finally
+            {
+                lock_.unlock();
+            }
+
+            if (victim != null)
+            {
+                victim.close();
+            }
+
+            if (reclaim)
+            {
+                reclaimed = true;
+                LeaseReclaimer reclaimer = reclaimer_;
+
+                if (reclaimer != null && reclaimer.reclaimIdleLease(reclaimFrom))
+                {
+                    log_.debug("borrow :: Reclaimed an idle lease for [{}].", _account.getUserName());
+                }
+
+                continue;
+            }
+
+            if (System.currentTimeMillis() - conn.lastUsed_ < validationInterval_ || conn.validate())
+            {
+                return conn;
+            }
+
+            discard(conn);
+        }
+    }
+
+    private void giveBack(PooledConnection _conn, boolean _healthy)
+    {
+        lock_.lock();
+
+        try
+        {
+            if (_healthy && !closed_)
+            {
+                _conn.lastUsed_ = System.currentTimeMillis();
+                idleConns_.computeIfAbsent(_conn.key_, k -> new ArrayDeque<>()).addFirst(_conn);
+                available_.signalAll();
+                return;
+            }
+        }
+        finally
+        {
+            lock_.unlock();
+        }
+
+        discard(_conn);
+    }
+
+    private void discard(PooledConnection _conn)
+    {
+        lock_.lock();
+
+        try
+        {
+            forget(_conn);
+            available_.signalAll();
+        }
+        finally
+        {
+            lock_.unlock();
+        }
+
+        _conn.close();
+    }
+
+    // Must be called while holding the lock.
+    private void forget(PooledConnection _conn)
+    {
+        --totalConns_;
+
+        int userConns = connsPerUser_.getOrDefault(_conn.key_, 1) - 1;
+
+        if (userConns > 0)
+        {
+            connsPerUser_.put(_conn.key_, userConns);
+        }
+        else
+        {
+            connsPerUser_.remove(_conn.key_);
+        }
+    }
+
+    // Must be called while holding the lock.
+    private PooledConnection removeLeastRecentlyUsedIdleConnection()
+    {
+        Deque<PooledConnection> victimDeque = null;
+
+        for (Deque<PooledConnection> idle : idleConns_.values())
+        {
+            // The least recently used connection is at the end of each deque.
+            if (!idle.isEmpty() && (victimDeque == null || idle.peekLast().lastUsed_ < victimDeque.peekLast().lastUsed_))
+            {
+                victimDeque = idle;
+            }
+        }
+
+        if (victimDeque == null)
+        {
+            return null;
+        }
+
+        PooledConnection victim = victimDeque.pollLast();
+        forget(victim);
+
+        return victim;
+    }
+
+    private void reapIdleConnections()
+    {
+        final long now = System.currentTimeMillis();
+        List<PooledConnection> expired = new ArrayList<>();
+
+        lock_.lock();
+
+        try
+        {
+            for (Deque<PooledConnection> idle : idleConns_.values())
+            {
+                Iterator<PooledConnection> it = idle.descendingIterator();
+
+                while (it.hasNext())
+                {
+                    PooledConnection conn = it.next();
+
+                    if (now - conn.lastUsed_ < idleTimeout_)
+                    {
+                        break;
+                    }
+
+                    it.remove();
+                    forget(conn);
+                    expired.add(conn);
+                }
+            }
+
+            idleConns_.values().removeIf(Deque::isEmpty);
+        }
+        finally
+        {
+            lock_.unlock();
+        }
+
+        if (!expired.isEmpty())
+        {
+            log_.debug("reapIdleConnections :: Closing {} idle connections.", expired.size());
+            expired.forEach(PooledConnection::close);
+        }
+    }
+
+    private void countCall()
+    {
+        ++callsOfThread_.get()[0];
+        calls_.increment();
+    }
+
+    // NFS status exceptions are ordinary results. Anything else may have left
+    // the connection in an unknown state.
+    private static boolean isConnectionError(Exception _e)
+    {
+        if (_e instanceof ChimeraNFSException)
+        {
+            return false;
+        }
+
+        if (_e instanceof JargonException)
+        {
+            for (Throwable cause = _e.getCause(); cause != null; cause = cause.getCause())
+            {
+                if (cause instanceof IOException)
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    static <T> T await(Future<T> _future) throws IOException, JargonException
+    {
+        try
+        {
+            return _future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an iRODS operation");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            // @formatter:off
+            if (cause instanceof IOException)      { throw (IOException) cause; }
+            if (cause instanceof JargonException)  { throw (JargonException) cause; }
+            if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+            if (cause instanceof Error)            { throw (Error) cause; }
+            // @formatter:on
+
+            throw new IOException(cause);
+        }
+    }
+
+    private final class PooledConnection
+    {
+        private final long id_;
+        private final IRODSAccount account_;
+        private final String key_;
+        private final ExecutorService executor_;
+        private volatile long lastUsed_;
+
+        PooledConnection(IRODSAccount _account, String _key)
+        {
+            id_ = connIDs_.incrementAndGet();
+            connsOpened_.increment();
+            account_ = _account;
+            key_ = _key;
+            lastUsed_ = System.currentTimeMillis();
+
+            // @formatter:off
+            executor_ = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("irods-connection-" + id_)
+                .setDaemon(true)
+                .build());
+            // @formatter:on
+        }
+
+        boolean validate()
+        {
+            log_.debug("validate :: Validating connection [{}] ...", id_);
+
+            countCall();
+
+            Future<?> result = executor_.submit(() -> factory_.getEnvironmentalInfoAO(account_).getIRODSServerCurrentTime());
+
+            try
+            {
+                result.get(waitTimeout_, TimeUnit.MILLISECONDS);
+                return true;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e)
+            {
+                log_.warn("validate :: Connection [{}] is no longer usable. {}", id_, e.getCause().getMessage());
+            }
+            catch (TimeoutException e)
+            {
+                log_.warn("validate :: Connection [{}] did not answer within [{}] ms.", id_, waitTimeout_);
+            }
+
+            result.cancel(true);
+
+            return false;
+        }
+
+        void close()
+        {
+            log_.debug("close :: Closing connection [{}] for [{}].", id_, account_.getUserName());
+            executor_.execute(() -> factory_.closeSessionAndEatExceptions(account_));
+            executor_.shutdown();
+            connsClosed_.increment();
+        }
+    }
+
+    public final class Lease implements AutoCloseable
+    {
+        private final PooledConnection conn_;
+        private final AtomicBoolean closed_;
+        private volatile boolean healthy_;
+
+        private Lease(PooledConnection _conn)
+        {
+            conn_ = _conn;
+            closed_ = new AtomicBoolean();
+            healthy_ = true;
+        }
+
+        public <T> T execute(IRODSOperation<T> _op) throws IOException, JargonException
+        {
+            return await(submit(_op));
+        }
+
+        public <T> Future<T> submit(IRODSOperation<T> _op)
+        {
+            RequestTrace trace = RequestTrace.current();
+
+            countCall();
+
+            return conn_.executor_.submit(() -> {
+                RequestTrace previous = (trace != null) ? RequestTrace.attach(trace) : null;
+
+                try
+                {
+                    return _op.run();
+                }
+                catch (Exception e)
+                {
+                    if (isConnectionError(e))
+                    {
+                        healthy_ = false;
+                    }
+
+                    throw e;
+                }
+                finally
+                {
+                    if (trace != null)
+                    {
+                        RequestTrace.attach(previous);
+                    }
+                }
+            });
+        }
+
+        public boolean isHealthy()
+        {
+            return healthy_;
+        }
+
+        public boolean isFor(IRODSAccount _account)
+        {
+            return conn_.key_.equals(_account.toString());
+        }
+
+        // Gives the connection back to the pool. Connections that failed are
+        // closed instead.
+        @Override
+        public void close()
+        {
+            if (closed_.compareAndSet(false, true))
+            {
+                giveBack(conn_, healthy_);
+            }
+        }
+    }
+}
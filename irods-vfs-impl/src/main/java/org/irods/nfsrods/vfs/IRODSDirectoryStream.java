@@ -0,0 +1,66 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.dcache.nfs.vfs.DirectoryEntry;
+import org.dcache.nfs.vfs.DirectoryStream;
+
+/**
+ * A directory stream that produces its entries while it is being iterated.
+ * The entries are never collected into memory. Each iteration lists the
+ * collection again from the cookie of the stream, so the stream can be
+ * iterated more than once. The entries must be ordered by cookie.
+ */
+public class IRODSDirectoryStream extends DirectoryStream
+{
+    // Lists the entries following a cookie.
+    @FunctionalInterface
+    public interface Lister
+    {
+        Iterator<DirectoryEntry> list(long _cookie) throws IOException;
+    }
+
+    private final long cookie_;
+    private final Lister lister_;
+    private Iterator<DirectoryEntry> opened_;
+
+    // The entries following the cookie may already have been listed, e.g. to
+    // report errors early. They are then returned by the first iteration.
+    public IRODSDirectoryStream(byte[] _verifier, long _cookie, Iterator<DirectoryEntry> _opened, Lister _lister)
+    {
+        super(_verifier, Collections.emptyList());
+        cookie_ = _cookie;
+        lister_ = _lister;
+        opened_ = _opened;
+    }
+
+    @Override
+    public Iterator<DirectoryEntry> iterator()
+    {
+        Iterator<DirectoryEntry> entries = opened_;
+
+        if (entries != null)
+        {
+            opened_ = null;
+            return entries;
+        }
+
+        try
+        {
+            return lister_.list(cookie_);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public DirectoryStream tail(long _fromCookie)
+    {
+        return new IRODSDirectoryStream(getVerifier(), Math.max(cookie_, _fromCookie), null, lister_);
+    }
+}
@@ -1,74 +1,131 @@
 package org.irods.nfsrods.vfs;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import javax.security.auth.Subject;
 import javax.security.auth.kerberos.KerberosPrincipal;
 
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
 import org.dcache.auth.Subjects;
+import org.dcache.nfs.ChimeraNFSException;
+import org.dcache.nfs.status.DelayException;
+import org.dcache.nfs.status.PermException;
 import org.dcache.nfs.v4.NfsIdMapping;
 import org.dcache.oncrpc4j.rpc.RpcLoginService;
 import org.dcache.oncrpc4j.rpc.RpcTransport;
 import org.ietf.jgss.GSSContext;
 import org.ietf.jgss.GSSException;
-import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.nfsrods.config.NFSServerConfig;
 import org.irods.nfsrods.config.ServerConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Maps Kerberos principals to iRODS users and ids to principals.
+ *
+ * Logging in a principal looks up its iRODS user. Concurrent logins of the
+ * same principal share a single lookup, and the result is remembered for a
+ * while so that new GSS sessions of the principal do not wait on iRODS.
+ * Failed logins are not remembered.
+ *
+ * Users that have not made a request for a while are evicted, as are the
+ * least recently active users when there are too many. Their idle
+ * connections are closed. Clients of an evicted user keep their sessions and
+ * file handles; the user is logged in again on their next request.
+ */
 public class IRODSIdMap implements NfsIdMapping, RpcLoginService
 {
     private static final Logger log_ = LoggerFactory.getLogger(IRODSIdMap.class);
 
-    private static final int NOBODY_UID = 65534;
-    private static final int NOBODY_GID = 65534;
+    static final int NOBODY_UID = 65534;
+    static final int NOBODY_GID = 65534;
 
     private final ServerConfig config_;
-    private final IRODSAccessObjectFactory factory_;
-    private Map<String, Integer> principleUidMap_;
-    private Map<Integer, IRODSUser> irodsPrincipleMap_;
+    private final IRODSConnectionPool pool_;
+    private final IRODSIdentityCache identityCache_;
+    private final long loginCacheTimeout_;
+    private final long userIdleTimeout_;
+    private final int maxUsers_;
+    private final Map<String, Login> logins_;
+    private final Map<Integer, IRODSUser> irodsPrincipleMap_;
+    private final List<Consumer<IRODSUser>> evictionListeners_;
+    private final LongAdder evictions_;
+    private final ScheduledExecutorService reaper_;
 
-    public IRODSIdMap(ServerConfig _config, IRODSAccessObjectFactory _factory)
+    // The login of an iRODS user. The first caller looks up the user while
+    // others wait on the same future.
+    private static final class Login
+    {
+        private final CompletableFuture<IRODSUser> user_ = new CompletableFuture<>();
+        private volatile long expiresAt_ = Long.MAX_VALUE;
+    }
+
+    public IRODSIdMap(ServerConfig _config, IRODSConnectionPool _pool) throws JargonException
     {
         config_ = _config;
-        factory_ = _factory;
-        principleUidMap_ = new NonBlockingHashMap<>();
+        pool_ = _pool;
+        identityCache_ = new IRODSIdentityCache(_config, _pool);
+
+        NFSServerConfig nfsSvrConfig = _config.getNfsServerConfig();
+        loginCacheTimeout_ = nfsSvrConfig.getLoginCacheTimeoutInMilliseconds();
+        userIdleTimeout_ = nfsSvrConfig.getUserIdleTimeoutInMilliseconds();
+        maxUsers_ = nfsSvrConfig.getMaxUsers();
+        logins_ = new NonBlockingHashMap<>();
         irodsPrincipleMap_ = new NonBlockingHashMap<>();
+        evictionListeners_ = new CopyOnWriteArrayList<>();
+        evictions_ = new LongAdder();
+
+        // @formatter:off
+        reaper_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("irods-user-reaper")
+            .setDaemon(true)
+            .build());
+        // @formatter:on
+
+        if (userIdleTimeout_ > 0 || maxUsers_ > 0)
+        {
+            long reapInterval = (userIdleTimeout_ > 0) ? Math.max(1000, Math.min(60_000, userIdleTimeout_ / 2)) : 60_000;
+            reaper_.scheduleWithFixedDelay(this::evictUsers, reapInterval, reapInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void close()
+    {
+        reaper_.shutdownNow();
+        identityCache_.close();
     }
 
     @Override
     public int principalToGid(String _principal)
     {
-        try
-        {
-            log_.debug("principalToGid :: _principal = {}", Integer.parseInt(_principal));
-            return Integer.parseInt(_principal);
-        }
-        catch (NumberFormatException e)
-        {
-            log_.error(e.getMessage());
-        }
-
-        return NOBODY_GID;
+        log_.debug("principalToGid :: _principal = {}", _principal);
+        return principalToId(_principal, NOBODY_GID);
     }
 
     @Override
     public int principalToUid(String _principal)
     {
-        try
-        {
-            log_.debug("principalToUid :: _principal = {}", Integer.parseInt(_principal));
-            return Integer.parseInt(_principal);
-        }
-        catch (NumberFormatException e)
-        {
-            log_.error(e.getMessage());
-        }
-
-        return NOBODY_UID;
+        log_.debug("principalToUid :: _principal = {}", _principal);
+        return principalToId(_principal, NOBODY_UID);
     }
 
+    // Ids are handed to clients as numeric strings. Clients map these strings
+    // directly to ids without consulting their own id mapping service.
     @Override
     public String uidToPrincipal(int _id)
     {
@@ -83,52 +140,255 @@ public class IRODSIdMap implements NfsIdMapping, RpcLoginService
         return Integer.toString(_id);
     }
 
+    public IRODSIdentityCache getIdentityCache()
+    {
+        return identityCache_;
+    }
+
+    public IRODSConnectionPool getConnectionPool()
+    {
+        return pool_;
+    }
+
     @Override
     public Subject login(RpcTransport _rpcTransport, GSSContext _gssCtx)
     {
+        String principal = null;
+
         try
         {
-            String principal = _gssCtx.getSrcName().toString();
-            Integer rodsUserID = principleUidMap_.get(principal);
+            principal = _gssCtx.getSrcName().toString();
 
             // printPrincipalType(principal);
 
-            if (rodsUserID == null)
+            IRODSUser user = getLogin(toUserName(principal)).user_.get();
+            int rodsUserID = user.getUserID();
+
+            return Subjects.of(rodsUserID, rodsUserID);
+        }
+        catch (GSSException e)
+        {
+            log_.error(e.getMessage());
+        }
+        catch (ExecutionException e)
+        {
+            log_.error("login :: Could not log in [{}]: {}", principal, e.getCause().getMessage());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        return Subjects.of(NOBODY_UID, NOBODY_GID);
+    }
+
+    // Calls the listener with each user that is evicted.
+    public void addEvictionListener(Consumer<IRODSUser> _listener)
+    {
+        evictionListeners_.add(_listener);
+    }
+
+    public int getUserCount()
+    {
+        return irodsPrincipleMap_.size();
+    }
+
+    public long getEvictedUserCount()
+    {
+        return evictions_.sum();
+    }
+
+    private String toUserName(String _principal)
+    {
+        // If the principal represents a service.
+        if (_principal.startsWith("nfs/"))
+        {
+            return config_.getIRODSProxyAdminAcctConfig().getUsername();
+        }
+
+        // KerberosPrincipal kp = new KerberosPrincipal(principal);
+        // userName = kp.getName();
+        int at = _principal.indexOf('@');
+        String userName = (at == -1) ? _principal : _principal.substring(0, at);
+        log_.debug("toUserName :: userName = {}", userName);
+
+        return userName;
+    }
+
+    // Returns the login of the user, starting one if there is none or if the
+    // last one has expired.
+    private Login getLogin(String _userName)
+    {
+        Login login = logins_.get(_userName);
+
+        if (login != null && login.expiresAt_ < System.currentTimeMillis())
+        {
+            logins_.remove(_userName, login);
+            login = null;
+        }
+
+        if (login == null)
+        {
+            Login newLogin = new Login();
+            login = logins_.putIfAbsent(_userName, newLogin);
+
+            if (login == null)
             {
-                String userName = null;
+                login = newLogin;
+                runLogin(_userName, newLogin);
+            }
+        }
+
+        return login;
+    }
+
+    private void runLogin(String _userName, Login _login)
+    {
+        try
+        {
+            IRODSUser user = new IRODSUser(_userName, config_, pool_);
+            irodsPrincipleMap_.put(user.getUserID(), user);
+            _login.expiresAt_ = System.currentTimeMillis() + loginCacheTimeout_;
+            _login.user_.complete(user);
+        }
+        catch (IOException | JargonException | RuntimeException e)
+        {
+            // Let the next login of the user try again.
+            logins_.remove(_userName, _login);
+            _login.user_.completeExceptionally(e);
+        }
+    }
+
+    // Returns the user with the id, logging them in again if they were evicted.
+    // Throws a PermException if the id does not belong to an iRODS user, and a
+    // DelayException if the user could not be logged in, so that the client
+    // tries again later.
+    public IRODSUser resolveUser(int _userID) throws ChimeraNFSException
+    {
+        IRODSUser user = irodsPrincipleMap_.get(Integer.valueOf(_userID));
+
+        if (user == null)
+        {
+            user = relogin(_userID);
+        }
 
-                // If the principal represents a service.
-                if (principal != null && principal.startsWith("nfs/"))
+        user.touch(System.currentTimeMillis());
+
+        return user;
+    }
+
+    // Logs in a user that was evicted while its clients still hold sessions.
+    private IRODSUser relogin(int _userID) throws ChimeraNFSException
+    {
+        String userName = identityCache_.getNameById(_userID);
+
+        if (userName == null)
+        {
+            log_.error("relogin :: No user found for id [{}]", _userID);
+            throw new PermException("No user found for id " + _userID);
+        }
+
+        log_.debug("relogin :: Logging in [{}] again.", userName);
+
+        try
+        {
+            IRODSUser user = getLogin(userName).user_.get();
+
+            // The login may have completed before the user was evicted.
+            IRODSUser current = irodsPrincipleMap_.putIfAbsent(user.getUserID(), user);
+
+            return (current != null) ? current : user;
+        }
+        catch (ExecutionException e)
+        {
+            log_.error("relogin :: Could not log in [{}]: {}", userName, e.getCause().getMessage());
+            throw new DelayException("Could not log in " + userName, e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new DelayException("Interrupted while logging in " + userName, e);
+        }
+    }
+
+    // Evicts the users that have been idle for too long, then the least
+    // recently active users beyond the maximum number of users.
+    private void evictUsers()
+    {
+        try
+        {
+            final long now = System.currentTimeMillis();
+            List<IRODSUser> users = new ArrayList<>(irodsPrincipleMap_.values());
+            List<IRODSUser> active = new ArrayList<>(users.size());
+
+            for (IRODSUser user : users)
+            {
+                if (userIdleTimeout_ > 0 && now - user.getLastUsedTime() >= userIdleTimeout_)
                 {
-                    userName = config_.getIRODSProxyAdminAcctConfig().getUsername();
+                    evict(user);
                 }
                 else
                 {
-                    // KerberosPrincipal kp = new KerberosPrincipal(principal);
-                    // userName = kp.getName();
-                    userName = principal.substring(0, principal.indexOf('@'));
-                    log_.debug("IRODSIdMap :: userName = {}", userName);
+                    active.add(user);
                 }
-
-                IRODSUser user = new IRODSUser(userName, config_, factory_);
-                rodsUserID = user.getUserID();
-                principleUidMap_.put(principal, rodsUserID);
-                irodsPrincipleMap_.put(rodsUserID, user);
             }
 
-            return Subjects.of(rodsUserID, rodsUserID);
+            if (maxUsers_ > 0 && active.size() > maxUsers_)
+            {
+                active.sort(Comparator.comparingLong(IRODSUser::getLastUsedTime));
+                active.subList(0, active.size() - maxUsers_).forEach(this::evict);
+            }
         }
-        catch (GSSException e)
+        catch (RuntimeException e)
         {
             log_.error(e.getMessage());
         }
+    }
 
-        return Subjects.of(NOBODY_UID, NOBODY_GID);
+    private void evict(IRODSUser _user)
+    {
+        if (!irodsPrincipleMap_.remove(Integer.valueOf(_user.getUserID()), _user))
+        {
+            return;
+        }
+
+        for (Map.Entry<String, Login> entry : logins_.entrySet())
+        {
+            if (entry.getValue().user_.getNow(null) == _user)
+            {
+                logins_.remove(entry.getKey(), entry.getValue());
+            }
+        }
+
+        pool_.closeIdleConnections(_user.getAccount());
+        evictions_.increment();
+        evictionListeners_.forEach(listener -> listener.accept(_user));
+
+        log_.debug("evict :: Evicted [{}].", _user.getAccount().getUserName());
     }
 
-    public IRODSUser resolveUser(int _userID)
+    private int principalToId(String _principal, int _defaultId)
     {
-        return irodsPrincipleMap_.get(Integer.valueOf(_userID));
+        try
+        {
+            return Integer.parseInt(_principal);
+        }
+        catch (NumberFormatException e)
+        {
+            // Not a numeric id. Resolve the principal as an iRODS user or group name.
+        }
+
+        int at = _principal.indexOf('@');
+        String name = (at == -1) ? _principal : _principal.substring(0, at);
+        Integer id = identityCache_.getIdByName(name);
+
+        if (id == null)
+        {
+            log_.error("principalToId :: No id found for [{}]", _principal);
+            return _defaultId;
+        }
+
+        return id;
     }
 
     @SuppressWarnings("unused")
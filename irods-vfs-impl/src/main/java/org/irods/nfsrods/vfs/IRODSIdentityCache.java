@@ -0,0 +1,252 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.cliffc.high_scale_lib.NonBlockingHashSet;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.DataNotFoundException;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.domain.User;
+import org.irods.jargon.core.pub.domain.UserGroup;
+import org.irods.nfsrods.config.IRODSProxyAdminAccountConfig;
+import org.irods.nfsrods.config.IRODSServerConfig;
+import org.irods.nfsrods.config.ServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Maps iRODS user and group names to ids (and back) without talking to iRODS.
+ *
+ * The user and group tables are loaded in bulk at startup and refreshed in
+ * the background. Names or ids that are not known are fetched on demand. When
+ * several threads miss on the same key, only one of them talks to iRODS.
+ */
+public class IRODSIdentityCache
+{
+    private static final Logger log_ = LoggerFactory.getLogger(IRODSIdentityCache.class);
+
+    private final IRODSConnectionPool pool_;
+    private final IRODSAccessObjectFactory factory_;
+    private final IRODSAccount adminAcct_;
+    private final ScheduledExecutorService scheduler_;
+    private final ConcurrentMap<String, CompletableFuture<Integer>> pendingNameLookups_;
+    private final ConcurrentMap<Integer, CompletableFuture<String>> pendingIdLookups_;
+    private volatile Map<String, Integer> nameToId_;
+    private volatile Map<Integer, String> idToName_;
+    private volatile Set<String> unknownNames_;
+    private volatile Set<Integer> unknownIds_;
+
+    public IRODSIdentityCache(ServerConfig _config, IRODSConnectionPool _pool) throws JargonException
+    {
+        IRODSProxyAdminAccountConfig proxyConfig = _config.getIRODSProxyAdminAcctConfig();
+        IRODSServerConfig rodsSvrConfig = _config.getIRODSServerConfig();
+
+        String zone = rodsSvrConfig.getZone();
+        String adminUsername = proxyConfig.getUsername();
+
+        pool_ = _pool;
+        factory_ = _pool.getIRODSAccessObjectFactory();
+        adminAcct_ = IRODSAccount.instance(rodsSvrConfig.getHost(), rodsSvrConfig.getPort(), adminUsername,
+                                           proxyConfig.getPassword(), "/" + zone + "/home/" + adminUsername, zone,
+                                           rodsSvrConfig.getDefaultResource());
+        pendingNameLookups_ = new NonBlockingHashMap<>();
+        pendingIdLookups_ = new NonBlockingHashMap<>();
+        nameToId_ = new NonBlockingHashMap<>();
+        idToName_ = new NonBlockingHashMap<>();
+        unknownNames_ = new NonBlockingHashSet<>();
+        unknownIds_ = new NonBlockingHashSet<>();
+
+        // @formatter:off
+        scheduler_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("identity-cache-refresh")
+            .setDaemon(true)
+            .build());
+        // @formatter:on
+
+        refresh();
+
+        long interval = _config.getNfsServerConfig().getIdentityCacheRefreshIntervalInMilliseconds();
+        scheduler_.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public Integer getIdByName(String _name)
+    {
+        Integer id = nameToId_.get(_name);
+
+        if (id != null || unknownNames_.contains(_name))
+        {
+            return id;
+        }
+
+        return fetch(pendingNameLookups_, _name, () -> fetchIdByName(_name));
+    }
+
+    public String getNameById(int _id)
+    {
+        String name = idToName_.get(_id);
+
+        if (name != null || unknownIds_.contains(_id))
+        {
+            return name;
+        }
+
+        return fetch(pendingIdLookups_, _id, () -> fetchNameById(_id));
+    }
+
+    public void close()
+    {
+        scheduler_.shutdownNow();
+    }
+
+    private void refresh()
+    {
+        log_.debug("refresh :: Loading iRODS users and groups ...");
+
+        try
+        {
+            Map<String, Integer> nameToId = new NonBlockingHashMap<>();
+            Map<Integer, String> idToName = new NonBlockingHashMap<>();
+
+            pool_.execute(adminAcct_, () -> {
+                List<User> users = factory_.getUserAO(adminAcct_).findAll();
+
+                for (User user : users)
+                {
+                    add(nameToId, idToName, user.getName(), user.getId());
+                }
+
+                List<UserGroup> groups = factory_.getUserGroupAO(adminAcct_).findAll();
+
+                for (UserGroup group : groups)
+                {
+                    add(nameToId, idToName, group.getUserGroupName(), group.getUserGroupId());
+                }
+
+                return null;
+            });
+
+            nameToId_ = nameToId;
+            idToName_ = idToName;
+            unknownNames_ = new NonBlockingHashSet<>();
+            unknownIds_ = new NonBlockingHashSet<>();
+
+            log_.debug("refresh :: Loaded {} users and groups.", nameToId.size());
+        }
+        catch (IOException | JargonException | RuntimeException e)
+        {
+            log_.error("refresh :: Error loading iRODS users and groups. " + e.getMessage());
+        }
+    }
+
+    private Integer fetchIdByName(String _name) throws IOException, JargonException
+    {
+        log_.debug("fetchIdByName :: Fetching id for [{}] ...", _name);
+
+        return pool_.execute(adminAcct_, () -> {
+            try
+            {
+                User user = factory_.getUserAO(adminAcct_).findByName(_name);
+                add(nameToId_, idToName_, user.getName(), user.getId());
+                return Integer.valueOf(user.getId());
+            }
+            catch (DataNotFoundException e)
+            {
+                unknownNames_.add(_name);
+                return null;
+            }
+        });
+    }
+
+    private String fetchNameById(int _id) throws IOException, JargonException
+    {
+        log_.debug("fetchNameById :: Fetching name for [{}] ...", _id);
+
+        return pool_.execute(adminAcct_, () -> {
+            try
+            {
+                User user = factory_.getUserAO(adminAcct_).findById(Integer.toString(_id));
+                add(nameToId_, idToName_, user.getName(), user.getId());
+                return user.getName();
+            }
+            catch (DataNotFoundException e)
+            {
+                unknownIds_.add(_id);
+                return null;
+            }
+        });
+    }
+
+    private static void add(Map<String, Integer> _nameToId, Map<Integer, String> _idToName, String _name, String _id)
+    {
+        try
+        {
+            Integer id = Integer.valueOf(_id);
+            _nameToId.put(_name, id);
+            _idToName.put(id, _name);
+        }
+        catch (NumberFormatException e)
+        {
+            log_.error("add :: Invalid id [{}] for [{}]", _id, _name);
+        }
+    }
+
+    private static <K, V> V fetch(ConcurrentMap<K, CompletableFuture<V>> _pending, K _key, Fetcher<V> _fetcher)
+    {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> inflight = _pending.putIfAbsent(_key, future);
+
+        // Another thread is already fetching the value. Wait for its result.
+        if (inflight != null)
+        {
+            try
+            {
+                return inflight.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            catch (ExecutionException e)
+            {
+                return null;
+            }
+        }
+
+        try
+        {
+            V value = _fetcher.fetch();
+            future.complete(value);
+            return value;
+        }
+        catch (IOException | JargonException | RuntimeException e)
+        {
+            log_.error("fetch :: Error fetching [{}]. {}", _key, e.getMessage());
+            future.completeExceptionally(e);
+            return null;
+        }
+        finally
+        {
+            _pending.remove(_key, future);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Fetcher<V>
+    {
+        V fetch() throws IOException, JargonException;
+    }
+}
@@ -0,0 +1,11 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+
+import org.irods.jargon.core.exception.JargonException;
+
+@FunctionalInterface
+public interface IRODSOperation<T>
+{
+    T run() throws IOException, JargonException;
+}
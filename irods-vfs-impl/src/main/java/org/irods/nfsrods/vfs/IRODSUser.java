@@ -1,15 +1,9 @@
 package org.irods.nfsrods.vfs;
 
-import java.nio.file.Path;
+import java.io.IOException;
 import java.nio.file.Paths;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
-
-import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import java.util.concurrent.Future;
+
 import org.irods.jargon.core.connection.IRODSAccount;
 import org.irods.jargon.core.exception.DataNotFoundException;
 import org.irods.jargon.core.exception.JargonException;
@@ -27,22 +21,18 @@ public class IRODSUser
 {
     private static final Logger log_ = LoggerFactory.getLogger(IRODSIdMap.class);
 
-    private Map<Long, Path> inodeToPath_;
-    private Map<Path, Long> pathToInode_;
-    private Set<Long> availableInodeNumbers_;
-    private AtomicLong fileID_;
+    private IRODSConnectionPool pool_;
     private IRODSAccessObjectFactory factory_;
     private IRODSAccount proxiedAcct_;
-    private IRODSFile rootFile_;
     private int userID_;
+    private volatile long lastUsed_;
 
-    public IRODSUser(String _username, ServerConfig _config, IRODSAccessObjectFactory _factory)
+    // Looks up the user in iRODS. The root collection is checked in the
+    // background, so the caller only waits for the lookup.
+    public IRODSUser(String _username, ServerConfig _config, IRODSConnectionPool _pool)
+        throws IOException,
+        JargonException
     {
-        inodeToPath_ = new NonBlockingHashMap<>();
-        pathToInode_ = new NonBlockingHashMap<>();
-        availableInodeNumbers_ = Collections.synchronizedSet(new HashSet<>());
-        fileID_ = new AtomicLong(1); // Inode numbers start at 1
-
         NFSServerConfig nfsSvrConfig = _config.getNfsServerConfig();
         IRODSProxyAdminAccountConfig proxyConfig = _config.getIRODSProxyAdminAcctConfig();
         IRODSServerConfig rodsSvrConfig = _config.getIRODSServerConfig();
@@ -53,29 +43,31 @@ public class IRODSUser
 
         String rootPath = Paths.get(nfsSvrConfig.getIRODSMountPoint()).toString();
         log_.debug("IRODSUser :: iRODS mount point = {}", rootPath);
+
         log_.debug("IRODSUser :: Creating proxy for username [{}] ...", _username);
 
-        try
-        {
-            proxiedAcct_ = IRODSAccount.instanceWithProxy(rodsSvrConfig.getHost(), rodsSvrConfig.getPort(), _username,
-                                                          adminPw, rootPath, zone, rodsSvrConfig.getDefaultResource(),
-                                                          adminAcct, zone);
-            factory_ = _factory;
-            rootFile_ = factory_.getIRODSFileFactory(proxiedAcct_).instanceIRODSFile(rootPath);
+        proxiedAcct_ = IRODSAccount.instanceWithProxy(rodsSvrConfig.getHost(), rodsSvrConfig.getPort(), _username,
+                                                      adminPw, rootPath, zone, rodsSvrConfig.getDefaultResource(),
+                                                      adminAcct, zone);
+        pool_ = _pool;
+        factory_ = _pool.getIRODSAccessObjectFactory();
+        lastUsed_ = System.currentTimeMillis();
 
-            User user = factory_.getUserAO(proxiedAcct_).findByName(_username);
-            userID_ = Integer.parseInt(user.getId());
+        User user = execute(() -> factory_.getUserAO(proxiedAcct_).findByName(_username));
+        userID_ = Integer.parseInt(user.getId());
 
-            establishRoot();
-        }
-        catch (JargonException e)
-        {
-            log_.error(e.getMessage());
-        }
-        finally
-        {
-            factory_.closeSessionAndEatExceptions();
-        }
+        submit(() -> {
+            try
+            {
+                establishRoot(factory_.getIRODSFileFactory(proxiedAcct_).instanceIRODSFile(rootPath));
+            }
+            catch (JargonException e)
+            {
+                log_.error(e.getMessage());
+            }
+
+            return null;
+        });
     }
 
     public int getUserID()
@@ -83,58 +75,60 @@ public class IRODSUser
         return this.userID_;
     }
 
-    public String getAbsolutePath()
+    // The time the user last made a request, with a resolution of a second.
+    public long getLastUsedTime()
     {
-        return rootFile_.getAbsolutePath();
+        return lastUsed_;
     }
 
-    public Map<Long, Path> getInodeToPathMap()
+    // Marks the user as active. The time is only written when it has moved on
+    // by a second, so that requests do not keep writing the same field.
+    void touch(long _now)
     {
-        return inodeToPath_;
+        if (_now - lastUsed_ >= 1000)
+        {
+            lastUsed_ = _now;
+        }
     }
 
-    public Map<Path, Long> getPathToInodeMap()
+    public IRODSAccessObjectFactory getIRODSAccessObjectFactory()
     {
-        return pathToInode_;
+        return factory_;
     }
 
-    public Long getAndIncrementFileID()
+    public IRODSConnectionPool getConnectionPool()
     {
-        if (!availableInodeNumbers_.isEmpty())
-        {
-            Iterator<Long> it = availableInodeNumbers_.iterator();
-            Long inodeNumber = it.next();
-            it.remove();
-            return inodeNumber;
-        }
-
-        return fileID_.getAndIncrement();
+        return pool_;
     }
 
-    public IRODSAccessObjectFactory getIRODSAccessObjectFactory()
+    // Runs the operation on one of the user's pooled connections and waits for
+    // its result.
+    public <T> T execute(IRODSOperation<T> _op) throws IOException, JargonException
     {
-        return factory_;
+        return pool_.execute(proxiedAcct_, _op);
     }
 
-    public IRODSAccount getAccount()
+    // Runs the operation on one of the user's pooled connections without waiting
+    // for its result.
+    public <T> Future<T> submit(IRODSOperation<T> _op) throws IOException
     {
-        return proxiedAcct_;
+        return pool_.submit(proxiedAcct_, _op);
     }
 
-    public IRODSFile getRoot()
+    public IRODSAccount getAccount()
     {
-        return rootFile_;
+        return proxiedAcct_;
     }
 
-    private void establishRoot()
+    private static void establishRoot(IRODSFile _rootFile)
     {
-        if (!rootFile_.exists())
+        if (!_rootFile.exists())
         {
             log_.error("Root file does not exist or it cannot be read");
 
             try
             {
-                throw new DataNotFoundException("Cannot establish root at [" + rootFile_ + "]");
+                throw new DataNotFoundException("Cannot establish root at [" + _rootFile + "]");
             }
             catch (DataNotFoundException e)
             {
@@ -144,75 +138,7 @@ public class IRODSUser
             return;
         }
 
-        log_.debug("establishRoot :: Mapping root to [{}] ...", rootFile_);
-
-        map(getAndIncrementFileID(), rootFile_.getAbsolutePath());
-
-        log_.debug("establishRoot :: Mapping successful.");
-    }
-
-    public void map(Long _inodeNumber, String _path)
-    {
-        map(_inodeNumber, Paths.get(_path));
-    }
-
-    public void map(Long _inodeNumber, Path _path)
-    {
-        log_.debug("map :: mapping inode number to path [{} => {}] ...", _inodeNumber, _path);
-
-        Path otherPath = inodeToPath_.putIfAbsent(_inodeNumber, _path);
-
-        log_.debug("map :: previously mapped path [{}]", otherPath);
-
-        if (otherPath != null)
-        {
-            throw new IllegalStateException("Inode number is already mapped to exisiting path");
-        }
-
-        Long otherInodeNumber = pathToInode_.putIfAbsent(_path, _inodeNumber);
-
-        if (otherInodeNumber != null)
-        {
-            if (inodeToPath_.remove(_inodeNumber) != _path)
-            {
-                throw new IllegalStateException("Failed to rollback mapping");
-            }
-
-            throw new IllegalStateException("Path is already mapped to exisiting inode number");
-        }
-    }
-
-    public void unmap(Long _inodeNumber, Path _path)
-    {
-        final boolean storeInAvailableInodeNumbersSet = true;
-        unmap(_inodeNumber, _path, storeInAvailableInodeNumbersSet);
-    }
-
-    private void unmap(Long _inodeNumber, Path _path, boolean _storeInAvailableInodeNumbersSet)
-    {
-        log_.debug("unmap :: unmapping inode number and path [{} => {}] ...", _inodeNumber, _path);
-
-        if (!_path.equals(inodeToPath_.remove(_inodeNumber)))
-        {
-            throw new IllegalStateException("Invalid mapping");
-        }
-
-        if (pathToInode_.remove(_path) != _inodeNumber)
-        {
-            throw new IllegalStateException("Invalid mapping");
-        }
-
-        if (_storeInAvailableInodeNumbersSet)
-        {
-            availableInodeNumbers_.add(_inodeNumber);
-        }
-    }
-
-    public void remap(Long _inodeNumber, Path _oldPath, Path _newPath)
-    {
-        final boolean storeInAvailableInodeNumbersSet = false;
-        unmap(_inodeNumber, _oldPath, storeInAvailableInodeNumbersSet);
-        map(_inodeNumber, _newPath);
+        log_.debug("establishRoot :: Root is mapped to [{}].", _rootFile);
     }
 
     @Override
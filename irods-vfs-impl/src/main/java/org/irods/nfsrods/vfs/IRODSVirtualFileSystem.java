@@ -4,11 +4,15 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.AccessController;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.security.auth.Subject;
 
+import org.dcache.nfs.ChimeraNFSException;
+import org.dcache.nfs.status.BadCookieException;
 import org.dcache.nfs.status.NoEntException;
 import org.dcache.nfs.v4.NfsIdMapping;
 import org.dcache.nfs.v4.xdr.nfsace4;
@@ -22,29 +26,26 @@ import org.dcache.nfs.vfs.Stat.Type;
 import org.dcache.nfs.vfs.VirtualFileSystem;
 import org.irods.jargon.core.connection.IRODSAccount;
 import org.irods.jargon.core.exception.DataNotFoundException;
+import org.irods.jargon.core.exception.FileNotFoundException;
 import org.irods.jargon.core.exception.JargonException;
-import org.irods.jargon.core.packinstr.DataObjInp.OpenFlags;
 import org.irods.jargon.core.protovalues.FilePermissionEnum;
 import org.irods.jargon.core.pub.CollectionAO;
 import org.irods.jargon.core.pub.CollectionAndDataObjectListAndSearchAO;
 import org.irods.jargon.core.pub.DataObjectAO;
 import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
 import org.irods.jargon.core.pub.IRODSFileSystemAO;
-import org.irods.jargon.core.pub.UserAO;
 import org.irods.jargon.core.pub.domain.ObjStat;
-import org.irods.jargon.core.pub.domain.User;
 import org.irods.jargon.core.pub.domain.UserFilePermission;
-import org.irods.jargon.core.pub.io.FileIOOperations;
 import org.irods.jargon.core.pub.io.IRODSFile;
 import org.irods.jargon.core.pub.io.IRODSFileFactory;
-import org.irods.jargon.core.pub.io.IRODSFileInputStream;
-import org.irods.jargon.core.pub.io.IRODSFileOutputStream;
-import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
 import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
 import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry.ObjectType;
+import org.irods.nfsrods.config.NFSServerConfig;
+import org.irods.nfsrods.config.ServerConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Iterators;
 import com.google.common.primitives.Longs;
 
 public class IRODSVirtualFileSystem implements VirtualFileSystem
@@ -52,15 +53,100 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
     private static final Logger log_ = LoggerFactory.getLogger(IRODSVirtualFileSystem.class);
 
     private final IRODSIdMap idMapper_;
-
-    public IRODSVirtualFileSystem(IRODSIdMap _idMapper) throws DataNotFoundException, JargonException
+    private final AttributeCache attrCache_;
+    private final NegativeLookupCache negativeLookupCache_;
+    private final DirectoryLister lister_;
+    private final DataObjectHandleCache handleCache_;
+    private final ParallelReader parallelReader_;
+    private final ReadAheadCache readAhead_;
+    private final WriteBehindCache writeBehind_;
+    private final DataObjectTruncator truncator_;
+    private final BlockCache blockCache_;
+    private final InodeTable inodes_;
+    private final FsStatCache fsStats_;
+    private final long epoch_;
+
+    public IRODSVirtualFileSystem(ServerConfig _config, IRODSIdMap _idMapper)
+        throws DataNotFoundException,
+        JargonException
     {
+        if (_config == null)
+        {
+            throw new IllegalArgumentException("null config");
+        }
+
         if (_idMapper == null)
         {
             throw new IllegalArgumentException("null idMapper");
         }
 
         idMapper_ = _idMapper;
+
+        NFSServerConfig nfsSvrConfig = _config.getNfsServerConfig();
+        attrCache_ = new AttributeCache(nfsSvrConfig.getAttributeCacheTimeoutInMilliseconds(),
+                                        nfsSvrConfig.getAttributeCacheMaxEntries());
+        negativeLookupCache_ = new NegativeLookupCache(nfsSvrConfig.getNegativeLookupCacheTimeoutInMilliseconds(),
+                                                       nfsSvrConfig.getNegativeLookupCacheMaxEntries());
+        lister_ = new DirectoryLister();
+        handleCache_ = new DataObjectHandleCache(nfsSvrConfig.getOpenHandleCacheIdleTimeoutInMilliseconds(),
+                                                 nfsSvrConfig.getOpenHandleCacheMaxHandlesPerFile(),
+                                                 nfsSvrConfig.getOpenHandleCacheMaxHandlesPerUser(),
+                                                 attrCache_);
+        _idMapper.getConnectionPool().setLeaseReclaimer(handleCache_::reclaimIdleLease);
+
+        // Parallel reads and read-ahead run on threads of their own, each of
+        // which holds a pooled connection while it reads. More threads than
+        // connections would only wait for the pool.
+        int maxConns = _config.getIRODSClientConfig().getConnectionPoolMaxConnections();
+
+        // A stream holds an open handle, so there are never more streams than
+        // handles per file.
+        parallelReader_ = new ParallelReader(Math.min(nfsSvrConfig.getParallelReadMaxStreams(),
+                                                      nfsSvrConfig.getOpenHandleCacheMaxHandlesPerFile()),
+                                             nfsSvrConfig.getParallelReadMinFileSizeInBytes(),
+                                             nfsSvrConfig.getParallelReadMinPartSizeInBytes(),
+                                             maxConns,
+                                             handleCache_);
+        readAhead_ = new ReadAheadCache(nfsSvrConfig.getReadAheadBlockSizeInBytes(),
+                                        nfsSvrConfig.getReadAheadMaxWindowInBlocks(),
+                                        nfsSvrConfig.getReadAheadMaxMemoryInBytes(),
+                                        nfsSvrConfig.getOpenHandleCacheIdleTimeoutInMilliseconds(),
+                                        maxConns,
+                                        parallelReader_);
+        writeBehind_ = new WriteBehindCache(nfsSvrConfig.getWriteBehindMaxBytesPerFile(),
+                                            nfsSvrConfig.getWriteBehindMaxMemoryInBytes(),
+                                            nfsSvrConfig.getWriteBehindFlushIntervalInMilliseconds(),
+                                            handleCache_);
+        truncator_ = new DataObjectTruncator(_config.getIRODSServerConfig().getTruncateRule());
+        blockCache_ = new BlockCache(getBlockCacheDirectory(nfsSvrConfig),
+                                     nfsSvrConfig.getBlockCacheSizeInBytes(),
+                                     nfsSvrConfig.getBlockCacheBlockSizeInBytes(),
+                                     parallelReader_);
+
+        // All users share the inode numbers, so a path has the same inode number
+        // no matter who maps it.
+        inodes_ = new InodeTable(Paths.get(nfsSvrConfig.getIRODSMountPoint()),
+                                 getInodeJournalFile(nfsSvrConfig),
+                                 nfsSvrConfig.getInodeTableSyncIntervalInMilliseconds());
+        fsStats_ = new FsStatCache(_config, _idMapper.getConnectionPool());
+
+        // Identifies this run of the server in change attributes and directory
+        // verifiers, so that clients revalidate what they cached from an
+        // earlier run.
+        epoch_ = System.currentTimeMillis() / 1000;
+    }
+
+    // Writes out buffered data, closes all data objects held open by the file
+    // system and writes the inode table to the disk.
+    public void close()
+    {
+        writeBehind_.close();
+        readAhead_.close();
+        parallelReader_.close();
+        handleCache_.closeAll();
+        blockCache_.close();
+        inodes_.close();
+        fsStats_.close();
     }
 
     @Override
@@ -72,7 +158,29 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
     @Override
     public void commit(Inode _inode, long _offset, int _count) throws IOException
     {
-        // NOP
+        log_.debug("vfs::commit");
+
+        int userID = getUserID();
+        long inodeNumber = toInodeNumber(_inode);
+
+        // Closing the data object makes the written data and the new size
+        // visible to all iRODS clients. Buffered writes are written out first.
+        // If that fails, the commit fails. The write verifier does not change,
+        // so the client does not resend the data and the application sees an
+        // I/O error.
+        try
+        {
+            writeBehind_.flush(userID, inodeNumber);
+        }
+        catch (IOException e)
+        {
+            log_.error(e.getMessage());
+            throw e;
+        }
+        finally
+        {
+            handleCache_.close(userID, inodeNumber);
+        }
     }
 
     @Override
@@ -118,40 +226,53 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
 
         try
         {
-            IRODSAccessObjectFactory aof = user.getIRODSAccessObjectFactory();
-            IRODSFileFactory ff = aof.getIRODSFileFactory(user.getAccount());
-            IRODSFile newFile = ff.instanceIRODSFile(newPath.toString());
+            user.execute(() -> {
+                IRODSAccessObjectFactory aof = user.getIRODSAccessObjectFactory();
+                IRODSFileFactory ff = aof.getIRODSFileFactory(user.getAccount());
+                IRODSFile newFile = ff.instanceIRODSFile(newPath.toString());
 
-            log_.debug("vfs::create - Creating new file at: {}", newFile);
+                log_.debug("vfs::create - Creating new file at: {}", newFile);
 
-            try (AutoClosedIRODSFile ac = new AutoClosedIRODSFile(newFile))
-            {
-                if (!newFile.createNewFile())
+                try (AutoClosedIRODSFile ac = new AutoClosedIRODSFile(newFile))
                 {
-                    throw new IOException("Failed to create new file in iRODS");
+                    if (!newFile.createNewFile())
+                    {
+                        throw new IOException("Failed to create new file in iRODS");
+                    }
                 }
-            }
 
-            long newInodeNumber = user.getAndIncrementFileID();
-            user.map(newInodeNumber, newPath);
+                return null;
+            });
 
-            return toFh(newInodeNumber);
+            attrCache_.invalidate(parentPath.toString());
+            negativeLookupCache_.invalidate(newPath.toString());
+
+            return toFh(inodes_.map(newPath));
         }
         catch (JargonException e)
         {
             log_.error(e.getMessage());
             throw new IOException(e);
         }
-        finally
-        {
-            closeCurrentConnection();
-        }
     }
 
     @Override
     public byte[] directoryVerifier(Inode _inode) throws IOException
     {
-        return DirectoryStream.ZERO_VERIFIER;
+        log_.debug("vfs::directoryVerifier");
+
+        try
+        {
+            IRODSUser user = getCurrentIRODSUser();
+            Path path = getPath(toInodeNumber(_inode));
+
+            return toVerifier(getObjStat(user, path.toString()));
+        }
+        catch (JargonException e)
+        {
+            log_.error(e.getMessage());
+            throw new IOException(e);
+        }
     }
 
     @Override
@@ -169,7 +290,20 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
     @Override
     public FsStat getFsStat() throws IOException
     {
-        throw new UnsupportedOperationException("Not supported yet");
+        // Clients that cannot be mapped to a user see the statistics of the
+        // zone.
+        String userName = null;
+
+        try
+        {
+            userName = getCurrentIRODSUser().getAccount().getUserName();
+        }
+        catch (ChimeraNFSException e)
+        {
+            log_.debug("vfs::getFsStat - {}", e.getMessage());
+        }
+
+        return fsStats_.get(userName);
     }
 
     @Override
@@ -181,7 +315,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
     @Override
     public Inode getRootInode() throws IOException
     {
-        return toFh(1);
+        return toFh(InodeTable.ROOT_INODE_NUMBER);
     }
 
     @Override
@@ -194,14 +328,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
 
         log_.debug("vfs::getattr - _inode = {}", path);
 
-        try
-        {
-            return statPath(path, inodeNumber);
-        }
-        finally
-        {
-            closeCurrentConnection();
-        }
+        return statPath(path, inodeNumber);
     }
 
     @Override
@@ -220,56 +347,59 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
     public DirectoryStream list(Inode _inode, byte[] _verifier, long _cookie) throws IOException
     {
         log_.debug("vfs::list");
-
-        List<DirectoryEntry> list = new ArrayList<>();
+        log_.debug("vfs::list - _cookie = {}", _cookie);
 
         try
         {
             IRODSUser user = getCurrentIRODSUser();
-            CollectionAndDataObjectListAndSearchAO listAO = user.getIRODSAccessObjectFactory()
-                .getCollectionAndDataObjectListAndSearchAO(user.getAccount());
 
             Path parentPath = getPath(toInodeNumber(_inode));
             log_.debug("vfs::list - listing contents of [{}] ...", parentPath);
 
             String irodsAbsPath = parentPath.normalize().toString();
-
-            List<CollectionAndDataObjectListingEntry> entries;
-            entries = listAO.listDataObjectsAndCollectionsUnderPath(irodsAbsPath);
-
-            for (CollectionAndDataObjectListingEntry dataObj : entries)
+            byte[] verifier = toVerifier(getObjStat(user, irodsAbsPath));
+
+            // Cookies are positions in the listing. Continuing the listing of a
+            // collection that changed since the client started it would skip or
+            // repeat entries, so the client is told to start over.
+            if (_cookie != 0 &&
+                _verifier != null &&
+                !Arrays.equals(_verifier, DirectoryStream.ZERO_VERIFIER) &&
+                !Arrays.equals(_verifier, verifier))
             {
-                Path filePath = parentPath.resolve(dataObj.getPathOrName());
-                log_.debug("vfs::list - entry = {}", filePath);
-
-                long inodeNumber;
-
-                if (user.getInodeToPathMap().containsValue(filePath))
-                {
-                    inodeNumber = getInodeNumber(filePath);
-                }
-                else
-                {
-                    inodeNumber = user.getAndIncrementFileID();
-                    user.map(inodeNumber, filePath);
-                }
-
-                Stat stat = statPath(filePath, inodeNumber);
-                Inode inode = toFh(inodeNumber);
-                list.add(new DirectoryEntry(filePath.getFileName().toString(), inode, stat, inodeNumber));
+                throw new BadCookieException("Collection changed since the listing started [" + irodsAbsPath + "]");
             }
+
+            // The first page is fetched now so that errors are reported to the
+            // client. Iterating the stream again lists the collection again.
+            // @formatter:off
+            return new IRODSDirectoryStream(verifier, _cookie, listEntries(user, parentPath, _cookie), cookie ->
+                listEntries(user, parentPath, cookie));
+            // @formatter:on
         }
         catch (JargonException e)
         {
             log_.error(e.getMessage());
             throw new IOException(e);
         }
-        finally
+    }
+
+    // Returns the entries of the collection following the cookie. Entries are
+    // converted while the NFS server builds its reply, so only the entries that
+    // fit in the reply are mapped and stat'd.
+    private Iterator<DirectoryEntry> listEntries(IRODSUser _user, Path _parentPath, long _cookie) throws IOException
+    {
+        try
         {
-            closeCurrentConnection();
-        }
+            DirectoryLister.Cursor cursor = lister_.open(_user, _parentPath.normalize().toString(), _cookie);
 
-        return new DirectoryStream(DirectoryStream.ZERO_VERIFIER, list);
+            return Iterators.transform(cursor, dataObj -> toDirectoryEntry(_user, _parentPath, dataObj));
+        }
+        catch (JargonException e)
+        {
+            log_.error(e.getMessage());
+            throw new IOException(e);
+        }
     }
 
     @Override
@@ -285,45 +415,32 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
         log_.debug("vfs::lookup - Looking up [{}] ...", targetPath);
 
         IRODSUser user = getCurrentIRODSUser();
+        String target = targetPath.toString();
 
-        try
+        if (negativeLookupCache_.contains(user.getUserID(), target))
         {
-            CollectionAndDataObjectListAndSearchAO lao = user.getIRODSAccessObjectFactory()
-                .getCollectionAndDataObjectListAndSearchAO(user.getAccount());
-
-            // @formatter:off
-            boolean isTargetValid = lao.listDataObjectsAndCollectionsUnderPath(parentPath.toString())
-                .stream().anyMatch(obj -> {
-                    if (obj.isCollection())
-                    {
-                        return targetPath.toString().equals(obj.getPathOrName());
-                    }
-
-                    return _path.equals(obj.getPathOrName());
-                });
-            // @formatter:on
-
-            // If the target path is valid, then return an inode object created from
-            // the user's mapped paths. Else, create a new mapping and return an
-            // inode object for the new mapping.
-            if (isTargetValid)
-            {
-                if (user.getPathToInodeMap().containsKey(targetPath))
-                {
-                    return toFh(getInodeNumber(targetPath));
-                }
+            log_.debug("vfs::lookup - [{}] is known not to exist.", targetPath);
+            throw new NoEntException("Path does not exist");
+        }
 
-                long newInodeNumber = user.getAndIncrementFileID();
-                user.map(newInodeNumber, targetPath);
-                return toFh(newInodeNumber);
-            }
+        try
+        {
+            // Throws a FileNotFoundException if the target path does not exist
+            // or is not visible to the user.
+            getObjStatForUser(user, target);
+
+            // The target path is valid, so return an inode object created from
+            // the shared mapped paths. If the path has not been mapped yet, a new
+            // mapping is created.
+            return toFh(inodes_.map(targetPath));
+        }
+        catch (FileNotFoundException e)
+        {
+            negativeLookupCache_.add(user.getUserID(), target);
 
-            // If the target path is not registered in iRODS and NFSRODS has previously
-            // mapped it, then unmap it. This keeps NFSRODS in sync with iRODS.
-            if (user.getPathToInodeMap().containsKey(targetPath))
-            {
-                user.unmap(getInodeNumber(targetPath), targetPath);
-            }
+            // The mapping is kept. The path may only be hidden from this user,
+            // and other users may hold file handles for it. Paths removed
+            // through NFSRODS are unmapped when they are removed.
 
             // It is VERY important that this exception is thrown here.
             // It affects how NFS4J continues processing the request.
@@ -334,10 +451,6 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
             log_.error(e.getMessage());
             throw new IOException(e);
         }
-        finally
-        {
-            closeCurrentConnection();
-        }
     }
 
     @Override
@@ -350,27 +463,27 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
             Path parentPath = getPath(toInodeNumber(_inode));
 
             IRODSUser user = getCurrentIRODSUser();
-            IRODSFile file = user.getIRODSAccessObjectFactory().getIRODSFileFactory(user.getAccount())
-                .instanceIRODSFile(parentPath.toString(), _path);
+            String newPath = user.execute(() -> {
+                IRODSFile file = user.getIRODSAccessObjectFactory().getIRODSFileFactory(user.getAccount())
+                    .instanceIRODSFile(parentPath.toString(), _path);
 
-            file.mkdir();
-            file.close();
+                file.mkdir();
+                file.close();
 
-            long inodeNumber = user.getAndIncrementFileID();
+                return file.getAbsolutePath();
+            });
 
-            user.map(inodeNumber, file.getAbsolutePath());
+            attrCache_.invalidate(parentPath.toString());
+            attrCache_.invalidate(newPath);
+            negativeLookupCache_.invalidate(newPath);
 
-            return toFh(inodeNumber);
+            return toFh(inodes_.map(Paths.get(newPath)));
         }
         catch (JargonException e)
         {
             log_.error(e.getMessage());
             throw new IOException(e);
         }
-        finally
-        {
-            closeCurrentConnection();
-        }
     }
 
     @Override
@@ -393,7 +506,6 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
 
             log_.debug("vfs::move - Parent path = {}", irodsParentPath);
 
-            IRODSFileFactory ff = aof.getIRODSFileFactory(user.getAccount());
             String destPathString = null;
 
             if (_newName != null && !_oldName.equals(_newName))
@@ -407,25 +519,44 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
 
             log_.debug("vfs::move - Destination path = {}", destPathString);
 
-            IRODSFile pathFile = ff.instanceIRODSFile(irodsParentPath);
-            IRODSFile destFile = ff.instanceIRODSFile(destPathString);
+            final String destPathFinal = destPathString;
 
-            try (AutoClosedIRODSFile ac0 = new AutoClosedIRODSFile(pathFile);
-                 AutoClosedIRODSFile ac1 = new AutoClosedIRODSFile(destFile))
-            {
-                IRODSFileSystemAO fsao = aof.getIRODSFileSystemAO(user.getAccount());
+            writeBehind_.flush(irodsParentPath);
+            readAhead_.invalidate(irodsParentPath);
+            blockCache_.invalidateTree(irodsParentPath);
+            handleCache_.invalidate(irodsParentPath);
 
-                log_.debug("vfs::move - Is file? {}", pathFile.isFile());
+            user.execute(() -> {
+                IRODSFileFactory ff = aof.getIRODSFileFactory(user.getAccount());
+                IRODSFile pathFile = ff.instanceIRODSFile(irodsParentPath);
+                IRODSFile destFile = ff.instanceIRODSFile(destPathFinal);
 
-                if (pathFile.isFile())
+                try (AutoClosedIRODSFile ac0 = new AutoClosedIRODSFile(pathFile);
+                     AutoClosedIRODSFile ac1 = new AutoClosedIRODSFile(destFile))
                 {
-                    fsao.renameFile(pathFile, destFile);
-                }
-                else
-                {
-                    fsao.renameDirectory(pathFile, destFile);
+                    IRODSFileSystemAO fsao = aof.getIRODSFileSystemAO(user.getAccount());
+
+                    log_.debug("vfs::move - Is file? {}", pathFile.isFile());
+
+                    if (pathFile.isFile())
+                    {
+                        fsao.renameFile(pathFile, destFile);
+                        attrCache_.invalidate(irodsParentPath);
+                    }
+                    else
+                    {
+                        fsao.renameDirectory(pathFile, destFile);
+                        attrCache_.invalidateTree(irodsParentPath);
+                    }
                 }
-            }
+
+                return null;
+            });
+
+            attrCache_.invalidate(destPathString);
+            negativeLookupCache_.invalidate(destPathString);
+            attrCache_.invalidate(parentPath.toString());
+            attrCache_.invalidate(destPath.toString());
 
             // Remap the inode number to the correct path.
 
@@ -434,9 +565,9 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
 
             log_.debug("vfs::move - Old path     = {}" + oldPath);
             log_.debug("vfs::move - New path     = {}" + newPath);
-            log_.debug("vfs::move - Inode number = {}" + user.getPathToInodeMap().get(oldPath));
+            log_.debug("vfs::move - Inode number = {}" + inodes_.getInodeNumber(oldPath));
 
-            user.remap(user.getPathToInodeMap().get(oldPath), oldPath, newPath);
+            inodes_.remap(getInodeNumber(oldPath), oldPath, newPath);
 
             return true;
         }
@@ -445,10 +576,6 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
             log_.error(e.getMessage());
             throw new IOException(e);
         }
-        finally
-        {
-            closeCurrentConnection();
-        }
     }
 
     @Override
@@ -468,28 +595,63 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
         log_.debug("vfs::read - _count       = {}", _count);
 
         IRODSUser user = getCurrentIRODSUser();
-        IRODSAccessObjectFactory aof = user.getIRODSAccessObjectFactory();
+        long inodeNumber = toInodeNumber(_inode);
+        Path path = getPath(inodeNumber);
 
         try
         {
-            Path path = getPath(toInodeNumber(_inode));
-            IRODSFileFactory ff = aof.getIRODSFileFactory(user.getAccount());
-            IRODSRandomAccessFile file = ff.instanceIRODSRandomAccessFile(path.toString());
-            
-            try (AutoClosedIRODSRandomAccessFile ac = new AutoClosedIRODSRandomAccessFile(file))
+            String pathString = path.toString();
+
+            writeBehind_.flush(pathString);
+
+            // Data written through open handles is not reflected in the
+            // modify time yet, so the block cache cannot tell it apart from
+            // the data it holds. Neither is the size, which decides whether
+            // the data object is read over several streams.
+            boolean written = handleCache_.getWrittenSize(pathString) >= 0;
+            long size = -1;
+
+            if (blockCache_.isEnabled() && !written)
             {
-                file.seek(_offset, FileIOOperations.SeekWhenceType.SEEK_START);
-                return file.read(_data, 0, _count);
+                // Cached blocks are shared by all users, so they are only
+                // served to users whose own permission lets them read the data
+                // object. The mode cannot tell, as it combines the permissions of
+                // every user in the ACL. Others read from iRODS, which decides
+                // whether they may.
+                ObjStat objStat = getObjStatForUser(user, pathString);
+
+                if (canRead(user, pathString))
+                {
+                    int bytesRead = blockCache_.read(user, inodeNumber, path, objStat, _data, _offset, _count);
+
+                    if (bytesRead != BlockCache.MISS)
+                    {
+                        return bytesRead;
+                    }
+                }
+
+                size = objStat.getObjSize();
+            }
+            else if (parallelReader_.isEnabled() && !written)
+            {
+                size = getObjStat(user, pathString).getObjSize();
             }
+
+            return readAhead_.read(user, inodeNumber, path, size, _data, _offset, _count);
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new NoEntException("Path does not exist");
         }
-        catch (IOException | JargonException e)
+        catch (IOException e)
         {
             log_.error(e.getMessage());
-            throw new IOException(e);
+            throw e;
         }
-        finally
+        catch (JargonException e)
         {
-            closeCurrentConnection();
+            log_.error(e.getMessage());
+            throw new IOException(e);
         }
     }
 
@@ -513,20 +675,42 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
         {
             Path parentPath = getPath(toInodeNumber(_parent));
             Path objectPath = parentPath.resolve(_path);
-            IRODSFileFactory ff = aof.getIRODSFileFactory(user.getAccount());
-            IRODSFile file = ff.instanceIRODSFile(parentPath.toString(), _path);
 
             log_.debug("vfs::remove - Removing object ...");
 
-            try (AutoClosedIRODSFile ac = new AutoClosedIRODSFile(file))
+            // Other users' buffered writes are written out in case the delete
+            // fails, e.g. because this user may not delete the data object.
+            // The user's own buffers are only dropped once it is gone.
+            writeBehind_.flushOthers(objectPath.toString(), user.getUserID());
+            readAhead_.invalidate(objectPath.toString());
+            blockCache_.invalidateTree(objectPath.toString());
+            handleCache_.invalidate(objectPath.toString());
+
+            try
             {
-                if (!file.delete())
-                {
-                    throw new IOException("Failed to delete object in iRODS");
-                }
+                user.execute(() -> {
+                    IRODSFileFactory ff = aof.getIRODSFileFactory(user.getAccount());
+                    IRODSFile file = ff.instanceIRODSFile(parentPath.toString(), _path);
+
+                    try (AutoClosedIRODSFile ac = new AutoClosedIRODSFile(file))
+                    {
+                        if (!file.delete())
+                        {
+                            throw new IOException("Failed to delete object in iRODS");
+                        }
+                    }
+
+                    return null;
+                });
+            }
+            finally
+            {
+                attrCache_.invalidateTree(objectPath.toString());
+                attrCache_.invalidate(parentPath.toString());
             }
 
-            user.unmap(getInodeNumber(objectPath), objectPath);
+            writeBehind_.discard(objectPath.toString(), user.getUserID());
+            inodes_.unmap(getInodeNumber(objectPath), objectPath);
 
             log_.debug("vfs::remove - Object removed.");
         }
@@ -535,10 +719,6 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
             log_.error(e.getMessage());
             throw new IOException(e);
         }
-        finally
-        {
-            closeCurrentConnection();
-        }
     }
 
     @Override
@@ -554,6 +734,12 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
         log_.debug("vfs::setattr - _inode = {}", getPath(toInodeNumber(_inode)));
         log_.debug("vfs::setattr - _stat  = {}", _stat);
 
+        String irodsPath = getPath(toInodeNumber(_inode)).toString();
+        writeBehind_.flush(irodsPath);
+        readAhead_.invalidate(irodsPath);
+        blockCache_.invalidate(irodsPath);
+        handleCache_.invalidate(irodsPath);
+
         if (_stat.isDefined(Stat.StatAttribute.MODE))
         {
             log_.debug("vfs::setattr - New mode = {}", Integer.toOctalString(_stat.getMode()));
@@ -565,7 +751,6 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
             {
                 IRODSAccount acct = user.getAccount();
                 Path path = getPath(toInodeNumber(_inode));
-                DataObjectAO dao = aof.getDataObjectAO(acct);
                 FilePermissionEnum perm = null;
 
                 // @formatter:off
@@ -579,17 +764,21 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
                 }
                 // @formatter:on
 
-                dao.setAccessPermission(acct.getZone(), path.toString(), acct.getUserName(), perm);
+                final FilePermissionEnum newPerm = perm;
+
+                user.execute(() -> {
+                    DataObjectAO dao = aof.getDataObjectAO(acct);
+                    dao.setAccessPermission(acct.getZone(), path.toString(), acct.getUserName(), newPerm);
+                    return null;
+                });
+
+                attrCache_.invalidate(path.toString());
             }
             catch (JargonException e)
             {
                 log_.error(e.getMessage());
                 throw new IOException(e);
             }
-            finally
-            {
-                closeCurrentConnection();
-            }
         }
 
         if (_stat.isDefined(Stat.StatAttribute.SIZE))
@@ -597,80 +786,15 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
             log_.debug("vfs::setattr - New size = {}", _stat.getSize());
 
             IRODSUser user = getCurrentIRODSUser();
-            IRODSAccessObjectFactory aof = user.getIRODSAccessObjectFactory();
+            long inodeNumber = toInodeNumber(_inode);
+            Path path = getPath(inodeNumber);
 
             try
             {
-                IRODSFileFactory ff = aof.getIRODSFileFactory(user.getAccount());
-                Path path = getPath(toInodeNumber(_inode));
-                IRODSFile file = ff.instanceIRODSFile(path.toString());
-                
-                try (AutoClosedIRODSFile ac = new AutoClosedIRODSFile(file))
-                {
-                    // Delete everything in the data object.
-                    // TODO See if there is a better way to do this.
-                    if (_stat.getSize() == 0)
-                    {
-                        file.delete();
-                        file.createNewFile();
-                        return;
-                    }
-
-                    final int CHUNK_SIZE = 4096;
-                    final long size_diff = _stat.getSize() - file.length();
-                    final long full_chunks = Math.abs(size_diff) / CHUNK_SIZE;
-                    final long remaining_bytes = Math.abs(size_diff) % CHUNK_SIZE;
-
-                    // Increase the size of the data object.
-                    if (size_diff > 0)
-                    {
-                        byte[] chunk = new byte[CHUNK_SIZE];
-
-                        // Open the data object in append mode.
-                        try (IRODSFileOutputStream fos = ff.instanceIRODSFileOutputStream(file, OpenFlags.READ_WRITE))
-                        {
-                            for (int i = 0; i < full_chunks; ++i)
-                            {
-                                fos.write(chunk);
-                            }
-                            
-                            if (remaining_bytes > 0)
-                            {
-                                fos.write(chunk, 0, (int) remaining_bytes);
-                            }
-                        }
-                    }
-                    else if (size_diff < 0) // Truncate the size of the data object.
-                    {
-                        String newExt = ".temp_" + toInodeNumber(_inode);
-                        IRODSFile tempFile = ff.instanceIRODSFile(path.toString() + newExt);
-
-                        byte[] chunk = new byte[CHUNK_SIZE];
-
-                        // @formatter:off
-                        try (AutoClosedIRODSFile ac1 = new AutoClosedIRODSFile(tempFile);
-                             IRODSFileInputStream fis = ff.instanceIRODSFileInputStream(file);
-                             IRODSFileOutputStream fos = ff.instanceIRODSFileOutputStream(tempFile))
-                        // @formatter:on
-                        {
-                            for (int i = 0; i < full_chunks; ++i)
-                            {
-                                fis.read(chunk);
-                                fos.write(chunk);
-                            }
-
-                            if (remaining_bytes > 0)
-                            {
-                                fis.read(chunk, 0, (int) remaining_bytes);
-                                fos.write(chunk, 0, (int) remaining_bytes);
-                            }
-                        }
-                        
-                        // Rename data objects.
-                        file.delete();
-                        tempFile.renameTo(file);
-                    }
-                }
+                user.execute(() -> {
+                    truncator_.setSize(user, path.toString(), _stat.getSize(), inodeNumber);
+                    return null;
+                });
             }
             catch (JargonException e)
             {
@@ -679,7 +803,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
             }
             finally
             {
-                closeCurrentConnection();
+                attrCache_.invalidate(path.toString());
             }
         }
     }
@@ -701,29 +825,42 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
         log_.debug("vfs::write - _count       = {}", _count);
 
         IRODSUser user = getCurrentIRODSUser();
-        IRODSAccessObjectFactory aof = user.getIRODSAccessObjectFactory();
+        long inodeNumber = toInodeNumber(_inode);
+        Path path = getPath(inodeNumber);
+
+        readAhead_.invalidate(path.toString());
+        blockCache_.invalidate(path.toString());
 
         try
         {
-            Path path = getPath(toInodeNumber(_inode));
-            IRODSFileFactory ff = aof.getIRODSFileFactory(user.getAccount());
-            IRODSRandomAccessFile file = ff.instanceIRODSRandomAccessFile(path.toString());
-            
-            try (AutoClosedIRODSRandomAccessFile ac = new AutoClosedIRODSRandomAccessFile(file))
+            if (!writeBehind_.isEnabled())
             {
-                file.seek(_offset, FileIOOperations.SeekWhenceType.SEEK_START);
-                file.write(_data, 0, _count);
+                handleCache_.write(user, inodeNumber, path, _data, _offset, _count);
                 return new WriteResult(StabilityLevel.FILE_SYNC, _count);
             }
+
+            boolean stable = _stabilityLevel != StabilityLevel.UNSTABLE;
+
+            if (writeBehind_.write(user, inodeNumber, path, _data, _offset, _count, stable))
+            {
+                return new WriteResult(StabilityLevel.FILE_SYNC, _count);
+            }
+
+            return new WriteResult(StabilityLevel.UNSTABLE, _count);
         }
-        catch (IOException | JargonException e)
+        catch (IOException e)
+        {
+            log_.error(e.getMessage());
+            throw e;
+        }
+        catch (JargonException e)
         {
             log_.error(e.getMessage());
             throw new IOException(e);
         }
         finally
         {
-            closeCurrentConnection();
+            attrCache_.invalidate(path.toString());
         }
     }
 
@@ -737,75 +874,253 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
 
         try
         {
-            IRODSAccessObjectFactory aof = user.getIRODSAccessObjectFactory();
+            // File handles are shared by all users, so the path is resolved as
+            // the user before its stat information is returned.
+            String path = _path.toString();
+            ObjStat objStat = getObjStatForUser(user, path);
+
+            return toStat(objStat, getModeForUser(user, path, objStat), _inodeNumber);
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new NoEntException("Path does not exist");
+        }
+        catch (JargonException e)
+        {
+            log_.error(e.getMessage());
+            throw new IOException(e);
+        }
+    }
+
+    // Returns the stat information of the path. The cached stat information
+    // may have been loaded by another user. Unless the user has resolved the
+    // path before, it is resolved again as the user, which throws a
+    // FileNotFoundException if the path is not visible to them. The user's
+    // mode is computed along the way.
+    private ObjStat getObjStatForUser(IRODSUser _user, String _path) throws IOException, JargonException
+    {
+        boolean[] statByUser = { false };
+
+        // @formatter:off
+        ObjStat objStat = attrCache_.getObjStat(_path, () -> {
+            statByUser[0] = true;
+            return _user.execute(() -> _user.getIRODSAccessObjectFactory()
+                .getCollectionAndDataObjectListAndSearchAO(_user.getAccount())
+                .retrieveObjectStatForPath(_path));
+        });
+        // @formatter:on
+
+        if (!statByUser[0] && attrCache_.getMode(_path, _user.getUserID()) == null)
+        {
+            int mode = _user.execute(() -> {
+                _user.getIRODSAccessObjectFactory()
+                    .getCollectionAndDataObjectListAndSearchAO(_user.getAccount())
+                    .retrieveObjectStatForPath(_path);
+
+                return getStatMode(_path, objStat.getObjectType(), _user);
+            });
+
+            attrCache_.putMode(_path, _user.getUserID(), mode);
+        }
+
+        return objStat;
+    }
+
+    // Returns the user's mode for the path, computing it if it is not cached.
+    private int getModeForUser(IRODSUser _user, String _path, ObjStat _objStat) throws IOException, JargonException
+    {
+        Integer mode = attrCache_.getMode(_path, _user.getUserID());
+
+        if (mode == null)
+        {
+            mode = _user.execute(() -> getStatMode(_path, _objStat.getObjectType(), _user));
+            attrCache_.putMode(_path, _user.getUserID(), mode);
+        }
+
+        return mode;
+    }
+
+    // Returns whether the user's own permission on the data object is READ or
+    // higher. The answer is cached with the stat information of the path.
+    private boolean canRead(IRODSUser _user, String _path) throws IOException, JargonException
+    {
+        Boolean readable = attrCache_.getReadable(_path, _user.getUserID());
+
+        if (readable == null)
+        {
+            IRODSAccount acct = _user.getAccount();
+
+            // @formatter:off
+            FilePermissionEnum perm = _user.execute(() -> _user.getIRODSAccessObjectFactory()
+                .getDataObjectAO(acct)
+                .getPermissionForDataObject(_path, acct.getUserName(), acct.getZone()));
+            // @formatter:on
+
+            readable = perm == FilePermissionEnum.READ ||
+                       perm == FilePermissionEnum.WRITE ||
+                       perm == FilePermissionEnum.OWN;
+
+            attrCache_.putReadable(_path, _user.getUserID(), readable);
+        }
+
+        return readable;
+    }
+
+    private ObjStat getObjStat(IRODSUser _user, String _path) throws IOException, JargonException
+    {
+        IRODSAccessObjectFactory aof = _user.getIRODSAccessObjectFactory();
+
+        return attrCache_.getObjStat(_path, () -> _user.execute(() -> {
             CollectionAndDataObjectListAndSearchAO lao = null;
-            lao = aof.getCollectionAndDataObjectListAndSearchAO(user.getAccount());
-            ObjStat objStat = lao.retrieveObjectStatForPath(_path.toString());
-            log_.debug("vfs::statPath - iRODS stat info = {}", objStat);
+            lao = aof.getCollectionAndDataObjectListAndSearchAO(_user.getAccount());
+            return lao.retrieveObjectStatForPath(_path);
+        }));
+    }
 
-            Stat stat = new Stat();
+    private static Path getBlockCacheDirectory(NFSServerConfig _config)
+    {
+        Path nfsrodsHome = Paths.get(String.valueOf(System.getenv("NFSRODS_HOME")));
+        String dir = _config.getBlockCacheDirectory();
 
-            stat.setATime(objStat.getModifiedAt().getTime());
-            stat.setCTime(objStat.getCreatedAt().getTime());
-            stat.setMTime(objStat.getModifiedAt().getTime());
+        if (dir == null || dir.isEmpty())
+        {
+            return nfsrodsHome.resolve("cache");
+        }
 
-            setStatMode(_path.toString(), stat, objStat.getObjectType(), user);
+        return nfsrodsHome.resolve(dir);
+    }
 
-            UserAO uao = aof.getUserAO(user.getAccount());
-            int ownerId = getUserID();
+    private static Path getInodeJournalFile(NFSServerConfig _config)
+    {
+        Path nfsrodsHome = Paths.get(String.valueOf(System.getenv("NFSRODS_HOME")));
+        String dir = _config.getInodeTableDirectory();
 
-            log_.debug("vfs::statPath - Owner name  = {}", objStat.getOwnerName());
+        if (dir == null || dir.isEmpty())
+        {
+            return nfsrodsHome.resolve("inodes").resolve("inodes.log");
+        }
 
-            if (objStat.getOwnerName() != null && !objStat.getOwnerName().isEmpty())
-            {
-                User iuser = uao.findByName(objStat.getOwnerName());
-                ownerId = Integer.parseInt(iuser.getId());
-            }
-            
-            // TODO Postponed until a decision has been made on standardizing metadata
-            // attributes (see https://github.com/irods_rfcs/0004_standard_metadata_attributes.md).
-//            int groupId = getGroupIdFromMetaData(user, _path.toString());
-//            
-//            if (-1 == groupId)
-//            {
-//                groupId = ownerId;
-//            }
-            int groupId = ownerId;
-            
-            stat.setUid(ownerId);
-            stat.setGid(groupId);
-            stat.setNlink(1);
-            stat.setDev(17);
-            stat.setIno((int) _inodeNumber);
-            // stat.setRdev(17);
-            stat.setRdev(0);
-            stat.setSize(objStat.getObjSize());
-            stat.setFileid((int) _inodeNumber);
-            stat.setGeneration(objStat.getModifiedAt().getTime());
-
-            log_.debug("vfs::statPath - Owner ID    = {}", ownerId);
-            log_.debug("vfs::statPath - Group ID    = {}", groupId);
-            log_.debug("vfs::statPath - Permissions = {}", Stat.modeToString(stat.getMode()));
-            log_.debug("vfs::statPath - Stat        = {}", stat);
-
-            return stat;
-        }
-        catch (NumberFormatException | JargonException e)
+        return nfsrodsHome.resolve(dir).resolve("inodes.log");
+    }
+
+    private DirectoryEntry toDirectoryEntry(IRODSUser _user,
+                                            Path _parentPath,
+                                            CollectionAndDataObjectListingEntry _entry)
+    {
+        Path filePath = _parentPath.resolve(_entry.getPathOrName());
+        log_.debug("vfs::list - entry = {}", filePath);
+
+        long inodeNumber = inodes_.map(filePath);
+
+        Stat stat = statListingEntry(_entry, filePath, inodeNumber, _user);
+        Inode inode = toFh(inodeNumber);
+
+        return new DirectoryEntry(filePath.getFileName().toString(), inode, stat, DirectoryLister.cookieOf(_entry));
+    }
+
+    // Builds the stat information from a listing entry. The listing already
+    // contains everything needed, so iRODS is not contacted. The information
+    // is also added to the attribute cache for later calls to getattr.
+    private Stat statListingEntry(CollectionAndDataObjectListingEntry _entry,
+                                  Path _path,
+                                  long _inodeNumber,
+                                  IRODSUser _user)
+    {
+        String path = _path.toString();
+
+        ObjStat objStat = new ObjStat();
+        objStat.setAbsolutePath(path);
+        objStat.setObjectType(_entry.getObjectType());
+        objStat.setObjSize(_entry.getDataSize());
+        objStat.setCreatedAt(_entry.getCreatedAt());
+        objStat.setModifiedAt(_entry.getModifiedAt());
+        objStat.setOwnerName(_entry.getOwnerName());
+        objStat.setDataId(_entry.getId());
+
+        int mode = toMode(_entry.getObjectType(), _entry.getUserFilePermission());
+
+        attrCache_.putObjStat(path, objStat);
+        attrCache_.putMode(path, _user.getUserID(), mode);
+
+        return toStat(objStat, mode, _inodeNumber);
+    }
+
+    private Stat toStat(ObjStat _objStat, int _mode, long _inodeNumber)
+    {
+        log_.debug("vfs::toStat - iRODS stat info = {}", _objStat);
+
+        Stat stat = new Stat();
+
+        stat.setATime(_objStat.getModifiedAt().getTime());
+        stat.setCTime(_objStat.getCreatedAt().getTime());
+        stat.setMTime(_objStat.getModifiedAt().getTime());
+        stat.setMode(_mode);
+
+        int ownerId = getUserID();
+
+        log_.debug("vfs::toStat - Owner name  = {}", _objStat.getOwnerName());
+
+        if (_objStat.getOwnerName() != null && !_objStat.getOwnerName().isEmpty())
         {
-            log_.error(e.getMessage());
-            throw new IOException(e);
+            Integer id = idMapper_.getIdentityCache().getIdByName(_objStat.getOwnerName());
+            ownerId = (id != null) ? id : IRODSIdMap.NOBODY_UID;
         }
+        
+        // TODO Postponed until a decision has been made on standardizing metadata
+        // attributes (see https://github.com/irods_rfcs/0004_standard_metadata_attributes.md).
+//        int groupId = getGroupIdFromMetaData(user, _path.toString());
+//        
+//        if (-1 == groupId)
+//        {
+//            groupId = ownerId;
+//        }
+        int groupId = ownerId;
+        
+        stat.setUid(ownerId);
+        stat.setGid(groupId);
+        stat.setNlink(1);
+        stat.setDev(17);
+        stat.setIno((int) _inodeNumber);
+        // stat.setRdev(17);
+        stat.setRdev(0);
+        String objPath = _objStat.getAbsolutePath();
+        long size = Math.max(handleCache_.getWrittenSize(objPath), writeBehind_.getBufferedSize(objPath));
+        stat.setSize(Math.max(_objStat.getObjSize(), size));
+        stat.setFileid((int) _inodeNumber);
+        stat.setGeneration(toChangeAttribute(_objStat));
+
+        log_.debug("vfs::toStat - Owner ID    = {}", ownerId);
+        log_.debug("vfs::toStat - Group ID    = {}", groupId);
+        log_.debug("vfs::toStat - Permissions = {}", Stat.modeToString(stat.getMode()));
+        log_.debug("vfs::toStat - Stat        = {}", stat);
+
+        return stat;
+    }
+
+    // The change attribute is the modify time in milliseconds combined with
+    // the server epoch. The collection-mtime REP updates the modify time of a
+    // collection whenever its contents change. iRODS keeps modify times in
+    // seconds, so changes made within the same second are not told apart.
+    private long toChangeAttribute(ObjStat _objStat)
+    {
+        return (_objStat.getModifiedAt().getTime() << 16) | (epoch_ & 0xFFFF);
     }
 
-    private static Inode toFh(long _inodeNumber)
+    // The verifier of a collection is its change attribute. It is never zero,
+    // because zero means the client has no verifier.
+    private byte[] toVerifier(ObjStat _objStat)
+    {
+        return Longs.toByteArray(toChangeAttribute(_objStat) | 1L << 63);
+    }
+
+    static Inode toFh(long _inodeNumber)
     {
         return Inode.forFile(Longs.toByteArray(_inodeNumber));
     }
 
     private Path getPath(long _inodeNumber) throws NoEntException
     {
-        IRODSUser user = getCurrentIRODSUser();
-        Path path = user.getInodeToPathMap().get(_inodeNumber);
+        Path path = inodes_.getPath(_inodeNumber);
 
         if (path == null)
         {
@@ -815,12 +1130,19 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
         return path;
     }
 
+    // Returns the path of the inode for diagnostics, or null if the inode is
+    // not known.
+    String getPathOrNull(Inode _inode)
+    {
+        Path path = inodes_.getPath(toInodeNumber(_inode));
+        return (path != null) ? path.toString() : null;
+    }
+
     private long getInodeNumber(Path _path) throws NoEntException
     {
-        IRODSUser user = getCurrentIRODSUser();
-        Long inodeNumber = user.getPathToInodeMap().get(_path);
+        long inodeNumber = inodes_.getInodeNumber(_path);
 
-        if (inodeNumber == null)
+        if (inodeNumber == -1)
         {
             throw new NoEntException("Inode number does not exist for [" + _path + "]");
         }
@@ -828,7 +1150,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
         return inodeNumber;
     }
 
-    private static long toInodeNumber(Inode _inode)
+    static long toInodeNumber(Inode _inode)
     {
         return Longs.fromByteArray(_inode.getFileId());
     }
@@ -861,8 +1183,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
 //        return -1;
 //    }
 
-    private static void setStatMode(String _path, Stat _stat, ObjectType _objType, IRODSUser _user)
-        throws JargonException
+    private static int getStatMode(String _path, ObjectType _objType, IRODSUser _user) throws JargonException
     {
         IRODSAccessObjectFactory aof = _user.getIRODSAccessObjectFactory();
 
@@ -870,21 +1191,33 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
         {
             case COLLECTION:
                 CollectionAO coa = aof.getCollectionAO(_user.getAccount());
-                _stat.setMode(Stat.S_IFDIR | (0055 | calcMode(coa.listPermissionsForCollection(_path))));
-                break;
+                return toMode(_objType, coa.listPermissionsForCollection(_path));
 
             case DATA_OBJECT:
                 DataObjectAO doa = aof.getDataObjectAO(_user.getAccount());
+                return toMode(_objType, doa.listPermissionsForDataObject(_path));
+
+            default:
+                return toMode(_objType, Collections.emptyList());
+        }
+    }
+
+    static int toMode(ObjectType _objType, List<UserFilePermission> _perms)
+    {
+        switch (_objType)
+        {
+            case COLLECTION:
+                return Stat.S_IFDIR | (0055 | calcMode(_perms));
+
+            case DATA_OBJECT:
                 // ~0111 is needed to unset the execute bits. The parentheses aren't needed
                 // really, but they help to emphasize what bits we are interested in.
-                _stat.setMode(Stat.S_IFREG | (~0111 & calcMode(doa.listPermissionsForDataObject(_path))));
-                break;
+                return Stat.S_IFREG | (~0111 & calcMode(_perms));
 
             // This object type comes from the Jargon library.
             // It is encountered when the user accessing iRODS is not a rodsadmin.
             case COLLECTION_HEURISTIC_STANDIN:
-                _stat.setMode(Stat.S_IFDIR | 0777);
-                break;
+                return Stat.S_IFDIR | 0777;
 
             case LOCAL_DIR:
             case LOCAL_FILE:
@@ -892,11 +1225,11 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
             case UNKNOWN:
             case UNKNOWN_FILE:
             default:
-                break;
+                return 0;
         }
     }
 
-    private static int calcMode(List<UserFilePermission> _perms)
+    static int calcMode(List<UserFilePermission> _perms)
     {
         // Permissions are only set for the user.
         // TODO Groups will need investigation.
@@ -929,17 +1262,13 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
         return Integer.parseInt(name);
     }
 
-    private IRODSUser getCurrentIRODSUser()
+    // Never returns null. Throws a ChimeraNFSException if the user cannot be
+    // resolved, which is reported to the client as an NFS status.
+    private IRODSUser getCurrentIRODSUser() throws ChimeraNFSException
     {
         return idMapper_.resolveUser(getUserID());
     }
 
-    private void closeCurrentConnection()
-    {
-        IRODSUser user = getCurrentIRODSUser();
-        user.getIRODSAccessObjectFactory().closeSessionAndEatExceptions(user.getAccount());
-    }
-
     private static class AutoClosedIRODSFile implements AutoCloseable
     {
         private final IRODSFile file_;
@@ -962,27 +1291,4 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem
             }
         }
     }
-
-    private static class AutoClosedIRODSRandomAccessFile implements AutoCloseable
-    {
-        private final IRODSRandomAccessFile file_;
-
-        AutoClosedIRODSRandomAccessFile(IRODSRandomAccessFile _file)
-        {
-            file_ = _file;
-        }
-
-        @Override
-        public void close()
-        {
-            try
-            {
-                file_.close();
-            }
-            catch (IOException e)
-            {
-                log_.error(e.getMessage());
-            }
-        }
-    }
 }
@@ -0,0 +1,461 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of the changes made to an inode table.
+ *
+ * The log is written through memory-mapped chunks of the file, so appending a
+ * record is a copy into memory. Records reach the disk when the operating
+ * system writes the pages back or when the log is synced. They survive the
+ * process exiting or being killed either way. After a crash of the machine,
+ * the records appended since the last sync may be lost.
+ *
+ * Every record carries a checksum. Replaying stops at the first record that
+ * is incomplete or damaged, and appending continues from there.
+ *
+ * If the log cannot be written, it stops recording and the table keeps
+ * working in memory.
+ *
+ * Compacting the log does not hold up appends. They go to the current log as
+ * usual and are copied to the compacted log before it replaces the current
+ * one.
+ */
+final class InodeJournal
+{
+    private static final Logger log_ = LoggerFactory.getLogger(InodeJournal.class);
+
+    private static final int MAGIC = 0x4e464949; // "NFII"
+    private static final int VERSION = 1;
+    private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+    // The size field of the record that marks the rest of a chunk as unused.
+    private static final int END_OF_CHUNK = -1;
+
+    private static final byte MAP = 1;
+    private static final byte UNMAP = 2;
+    private static final byte REMAP = 3;
+
+    // size, op, inode number, parent, name length, crc
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4 + 4 + 2 + 4;
+
+    interface Replayer
+    {
+        void map(int _inodeNumber, int _parent, String _name);
+
+        void unmap(int _inodeNumber);
+
+        void remap(int _inodeNumber, int _parent, String _name);
+    }
+
+    private final Path file_;
+    private final byte[] header_;
+    private final CRC32 crc_ = new CRC32();
+    private FileChannel channel_;
+    private MappedByteBuffer chunk_;
+    private long chunkStart_;
+    private long records_;
+    private boolean failed_;
+
+    // The records appended while the log is rewritten, or null.
+    private List<Record> appendedDuringRewrite_;
+
+    InodeJournal(Path _file, Path _root)
+    {
+        this(_file, _root.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private InodeJournal(Path _file, byte[] _header)
+    {
+        file_ = _file;
+        header_ = _header;
+    }
+
+    // Opens the log and replays its records. A log written for another root is
+    // discarded. Returns false if the log cannot be used.
+    synchronized boolean open(Replayer _replayer)
+    {
+        try
+        {
+            Files.createDirectories(file_.toAbsolutePath().getParent());
+            channel_ = FileChannel.open(file_, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+
+            // Two servers appending to the same log would corrupt it.
+            if (channel_.tryLock() == null)
+            {
+                throw new IOException("The file is in use by another process");
+            }
+
+            if (channel_.size() > 0 && !hasValidHeader())
+            {
+                log_.warn("open :: [{}] was written for another mount point or version. Discarding it.", file_);
+                channel_.truncate(0);
+            }
+
+            if (channel_.size() == 0)
+            {
+                chunkStart_ = 0;
+                chunk_ = channel_.map(MapMode.READ_WRITE, 0, CHUNK_SIZE);
+                writeHeader(chunk_);
+                return true;
+            }
+
+            replay(_replayer);
+
+            log_.info("open :: Replayed [{}] records from [{}].", records_, file_);
+
+            return true;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            log_.error("open :: Cannot use [{}]. File handles will not survive a restart. {}", file_, e.getMessage());
+            failed_ = true;
+            closeQuietly();
+            return false;
+        }
+    }
+
+    synchronized void map(int _inodeNumber, int _parent, String _name)
+    {
+        append(MAP, _inodeNumber, _parent, _name);
+    }
+
+    synchronized void unmap(int _inodeNumber)
+    {
+        append(UNMAP, _inodeNumber, 0, null);
+    }
+
+    synchronized void remap(int _inodeNumber, int _parent, String _name)
+    {
+        append(REMAP, _inodeNumber, _parent, _name);
+    }
+
+    // The number of records in the log, including those made obsolete by
+    // later records.
+    synchronized long getRecordCount()
+    {
+        return records_;
+    }
+
+    // Writes the appended records to the disk.
+    synchronized void sync()
+    {
+        if (!failed_)
+        {
+            chunk_.force();
+        }
+    }
+
+    // Replaces the log with the records written by the writer. The writer
+    // receives the new log and must describe the whole table with map records.
+    // Records appended while the writer runs follow them in the new log, so
+    // they must be harmless to replay on top of what the writer wrote. Must
+    // not be called by more than one thread at a time.
+    void rewrite(Consumer<InodeJournal> _writer)
+    {
+        synchronized (this)
+        {
+            if (failed_)
+            {
+                return;
+            }
+
+            appendedDuringRewrite_ = new ArrayList<>();
+        }
+
+        Path tempFile = file_.resolveSibling(file_.getFileName() + ".compact");
+        InodeJournal compacted = new InodeJournal(tempFile, header_);
+
+        try
+        {
+            Files.deleteIfExists(tempFile);
+
+            compacted.channel_ = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                                                  StandardOpenOption.WRITE);
+            compacted.chunk_ = compacted.channel_.map(MapMode.READ_WRITE, 0, CHUNK_SIZE);
+            writeHeader(compacted.chunk_);
+
+            // The writer runs without holding the log, so appends go on.
+            _writer.accept(compacted);
+
+            synchronized (this)
+            {
+                if (failed_)
+                {
+                    throw new IOException("[" + file_ + "] was closed");
+                }
+
+                for (Record record : appendedDuringRewrite_)
+                {
+                    compacted.append(record.op_, record.inodeNumber_, record.parent_, record.name_);
+                }
+
+                if (compacted.failed_)
+                {
+                    throw new IOException("Error writing [" + tempFile + "]");
+                }
+
+                compacted.chunk_.force();
+                Files.move(tempFile, file_, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                log_.debug("rewrite :: Compacted [{}] from [{}] to [{}] records.", file_, records_, compacted.records_);
+
+                closeQuietly();
+                channel_ = compacted.channel_;
+                chunk_ = compacted.chunk_;
+                chunkStart_ = compacted.chunkStart_;
+                records_ = compacted.records_;
+                appendedDuringRewrite_ = null;
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // The current log is still complete. Keep appending to it.
+            log_.error("rewrite :: Error compacting [{}]. {}", file_, e.getMessage());
+            compacted.closeQuietly();
+
+            synchronized (this)
+            {
+                appendedDuringRewrite_ = null;
+            }
+        }
+    }
+
+    synchronized void close()
+    {
+        if (!failed_)
+        {
+            chunk_.force();
+        }
+
+        closeQuietly();
+        failed_ = true;
+    }
+
+    private boolean hasValidHeader() throws IOException
+    {
+        MappedByteBuffer buffer = channel_.map(MapMode.READ_ONLY, 0, Math.min(channel_.size(), CHUNK_SIZE));
+
+        if (buffer.remaining() < 10 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+        {
+            return false;
+        }
+
+        int length = buffer.getShort() & 0xffff;
+
+        if (length != header_.length || buffer.remaining() < length)
+        {
+            return false;
+        }
+
+        byte[] root = new byte[length];
+        buffer.get(root);
+
+        return Arrays.equals(root, header_);
+    }
+
+    private void writeHeader(MappedByteBuffer _chunk)
+    {
+        _chunk.putInt(MAGIC);
+        _chunk.putInt(VERSION);
+        _chunk.putShort((short) header_.length);
+        _chunk.put(header_);
+    }
+
+    private void replay(Replayer _replayer) throws IOException
+    {
+        long fileSize = channel_.size();
+
+        chunkStart_ = 0;
+        chunk_ = channel_.map(MapMode.READ_WRITE, 0, CHUNK_SIZE);
+        chunk_.position(10 + header_.length);
+
+        while (true)
+        {
+            int position = chunk_.position();
+            int size = (chunk_.remaining() >= 4) ? chunk_.getInt() : END_OF_CHUNK;
+
+            if (size == END_OF_CHUNK && chunkStart_ + CHUNK_SIZE < fileSize)
+            {
+                chunkStart_ += CHUNK_SIZE;
+                chunk_ = channel_.map(MapMode.READ_WRITE, chunkStart_, CHUNK_SIZE);
+                continue;
+            }
+
+            if (size < RECORD_OVERHEAD - 4 || size > chunk_.remaining() || !apply(_replayer, size))
+            {
+                // The end of the log, or a record that was not completely
+                // written. Everything after it is erased, so that records
+                // appended from here on are never followed by stale ones.
+                chunk_.position(position);
+                erase(position);
+                channel_.truncate(chunkStart_ + CHUNK_SIZE);
+                return;
+            }
+        }
+    }
+
+    // Applies the record at the current position if it is intact.
+    private boolean apply(Replayer _replayer, int _size)
+    {
+        int start = chunk_.position();
+
+        crc_.reset();
+        crc_.update(slice(start, start + _size - 4));
+
+        byte op = chunk_.get();
+        int inodeNumber = chunk_.getInt();
+        int parent = chunk_.getInt();
+        int length = chunk_.getShort() & 0xffff;
+
+        if (length != _size - RECORD_OVERHEAD + 4)
+        {
+            return false;
+        }
+
+        byte[] name = new byte[length];
+        chunk_.get(name);
+
+        if (chunk_.getInt() != (int) crc_.getValue())
+        {
+            return false;
+        }
+
+        // @formatter:off
+        switch (op)
+        {
+            case MAP:   _replayer.map(inodeNumber, parent, new String(name, StandardCharsets.UTF_8)); break;
+            case UNMAP: _replayer.unmap(inodeNumber); break;
+            case REMAP: _replayer.remap(inodeNumber, parent, new String(name, StandardCharsets.UTF_8)); break;
+            default:    return false;
+        }
+        // @formatter:on
+
+        ++records_;
+
+        return true;
+    }
+
+    private void append(byte _op, int _inodeNumber, int _parent, String _name)
+    {
+        if (failed_)
+        {
+            return;
+        }
+
+        byte[] name = (_name == null) ? new byte[0] : _name.getBytes(StandardCharsets.UTF_8);
+
+        int size = RECORD_OVERHEAD + name.length;
+
+        try
+        {
+            if (chunk_.remaining() < size + 4)
+            {
+                chunk_.putInt(END_OF_CHUNK);
+                chunk_.force();
+                chunkStart_ += CHUNK_SIZE;
+                chunk_ = channel_.map(MapMode.READ_WRITE, chunkStart_, CHUNK_SIZE);
+            }
+        }
+        catch (IOException e)
+        {
+            log_.error("append :: Error extending [{}]. Changes to inode numbers are no longer recorded. {}",
+                       file_, e.getMessage());
+            failed_ = true;
+            return;
+        }
+
+        int start = chunk_.position();
+
+        // The size is written last, so that a reader never sees a record whose
+        // size is set but whose contents are missing.
+        chunk_.position(start + 4);
+        chunk_.put(_op);
+        chunk_.putInt(_inodeNumber);
+        chunk_.putInt(_parent);
+        chunk_.putShort((short) name.length);
+        chunk_.put(name);
+
+        crc_.reset();
+        crc_.update(slice(start + 4, chunk_.position()));
+
+        chunk_.putInt((int) crc_.getValue());
+        chunk_.putInt(start, size - 4);
+
+        ++records_;
+
+        if (appendedDuringRewrite_ != null)
+        {
+            appendedDuringRewrite_.add(new Record(_op, _inodeNumber, _parent, _name));
+        }
+    }
+
+    private ByteBuffer slice(int _from, int _to)
+    {
+        ByteBuffer buffer = chunk_.duplicate();
+        buffer.limit(_to).position(_from);
+        return buffer;
+    }
+
+    private void erase(int _from)
+    {
+        byte[] zeros = new byte[64 * 1024];
+
+        for (int i = _from; i < chunk_.capacity(); i += zeros.length)
+        {
+            chunk_.position(i);
+            chunk_.put(zeros, 0, Math.min(zeros.length, chunk_.capacity() - i));
+        }
+
+        chunk_.position(_from);
+    }
+
+    private void closeQuietly()
+    {
+        try
+        {
+            if (channel_ != null)
+            {
+                channel_.close();
+            }
+        }
+        catch (IOException e)
+        {
+            log_.error("close :: {}", e.getMessage());
+        }
+    }
+
+    private static final class Record
+    {
+        private final byte op_;
+        private final int inodeNumber_;
+        private final int parent_;
+        private final String name_;
+
+        Record(byte _op, int _inodeNumber, int _parent, String _name)
+        {
+            op_ = _op;
+            inodeNumber_ = _inodeNumber;
+            parent_ = _parent;
+            name_ = _name;
+        }
+    }
+}
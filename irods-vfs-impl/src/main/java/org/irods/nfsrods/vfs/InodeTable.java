@@ -0,0 +1,1100 @@
+package org.irods.nfsrods.vfs;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Maps inode numbers to paths and paths to inode numbers.
+ *
+ * A mapped path is stored as the inode number of its parent and the id of its
+ * last component, packed into a single long in an array indexed by inode
+ * number. Component names are interned, so a name used in many directories
+ * ("src", "data", ...) is stored once. Paths are resolved through an
+ * open-addressing hash table keyed by (parent inode number, name id), one
+ * probe per component. Nothing is boxed.
+ *
+ * The target is at most 40 bytes per entry, not counting the interned names:
+ * 12 bytes in the node arrays and 16 to 24 bytes in the hash table. Mapping a
+ * million data objects (see InodeTableFootprint) takes about 38 bytes per
+ * entry when their names repeat across collections, and about 110 bytes when
+ * every name is distinct, as each name then costs its own String. Two hash
+ * maps of boxed Longs and Path objects take about 200 bytes per entry.
+ *
+ * Because children only refer to their parent, renaming a directory takes
+ * every mapped path under it along.
+ *
+ * Lookups and mappings share the tree. A lookup only waits for an unmap or
+ * remap in progress, and otherwise takes the monitor of one hash table stripe
+ * per component for a single probe. Mapping new paths locks the stripes it
+ * touches as well, so threads working on different paths rarely wait for each
+ * other. Unmapping and remapping change the shape of the tree and run alone.
+ * Recycled inode numbers are kept on a lock-free stack.
+ *
+ * A table can be backed by a journal. Every change is then appended to the
+ * journal, and the table is rebuilt from it when the server starts again, so
+ * the inode numbers handed to clients stay valid across restarts. The journal
+ * is synced and, once most of its records are obsolete, compacted in the
+ * background.
+ */
+public class InodeTable
+{
+    private static final Logger log_ = LoggerFactory.getLogger(InodeTable.class);
+
+    public static final long ROOT_INODE_NUMBER = 1;
+
+    private static final int ROOT = (int) ROOT_INODE_NUMBER;
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int MAX_PAGES = (Integer.MAX_VALUE >>> PAGE_BITS) + 1;
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    private static final int MAX_DEPTH = 4096;
+
+    // A free node holds the next free inode number with this bit set.
+    private static final long FREE = Long.MIN_VALUE;
+
+    // The journal is compacted once it holds this many more records than
+    // twice the number of entries.
+    private static final long MIN_OBSOLETE_RECORDS = 100_000;
+
+    // @formatter:off
+    private static final ScheduledExecutorService maintenance_ =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                                                       .setNameFormat("inode-table-maintenance")
+                                                       .setDaemon(true)
+                                                       .build());
+    // @formatter:on
+
+    private final Path root_;
+    private final String rootPath_;
+    private final StampedLock treeLock_;
+    private final NameTable[] names_;
+    private final ChildIndex[] children_;
+
+    // A node is (parent << 32 | name id), 0 if the inode number was never
+    // used, or FREE | next if it is on the free list.
+    private final AtomicReferenceArray<AtomicLongArray> nodes_;
+    private final AtomicReferenceArray<AtomicIntegerArray> childCounts_;
+    private final AtomicInteger nextInodeNumber_;
+    private final AtomicInteger size_;
+
+    // The top of the free list in the low 32 bits, and a tag that changes on
+    // every push and pop in the high 32 bits. The tag keeps a pop from
+    // succeeding when the top was popped and pushed again in between (ABA).
+    private final AtomicLong freeList_;
+
+    private final InodeJournal journal_;
+    private final ScheduledFuture<?> maintenanceTask_;
+
+    public InodeTable(Path _root)
+    {
+        this(_root, null, 0);
+    }
+
+    // Loads the table from the journal file, if it exists, and records every
+    // change in it from then on.
+    public InodeTable(Path _root, Path _journalFile, long _syncIntervalInMillis)
+    {
+        root_ = _root;
+        rootPath_ = _root.toString();
+        treeLock_ = new StampedLock();
+        names_ = new NameTable[STRIPES];
+        children_ = new ChildIndex[STRIPES];
+        nodes_ = new AtomicReferenceArray<>(MAX_PAGES);
+        childCounts_ = new AtomicReferenceArray<>(MAX_PAGES);
+        nextInodeNumber_ = new AtomicInteger(ROOT + 1);
+        size_ = new AtomicInteger(1);
+        freeList_ = new AtomicLong();
+
+        for (int i = 0; i < STRIPES; ++i)
+        {
+            names_[i] = new NameTable(i);
+            children_[i] = new ChildIndex();
+        }
+
+        // The root refers to itself, so its node is never 0.
+        setNode(ROOT, ROOT, 0);
+
+        InodeJournal journal = null;
+
+        if (_journalFile != null)
+        {
+            journal = new InodeJournal(_journalFile, _root);
+
+            if (!journal.open(new JournalReplayer()))
+            {
+                journal = null;
+            }
+
+            rebuildFreeList();
+        }
+
+        journal_ = journal;
+
+        if (journal_ != null && _syncIntervalInMillis > 0)
+        {
+            maintenanceTask_ = maintenance_.scheduleWithFixedDelay(this::maintain, _syncIntervalInMillis,
+                                                                   _syncIntervalInMillis, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            maintenanceTask_ = null;
+        }
+    }
+
+    public Path getRoot()
+    {
+        return root_;
+    }
+
+    // Returns the path mapped to the inode number, or null if there is none.
+    public Path getPath(long _inodeNumber)
+    {
+        if (_inodeNumber < ROOT || _inodeNumber > Integer.MAX_VALUE)
+        {
+            return null;
+        }
+
+        long stamp = treeLock_.tryOptimisticRead();
+
+        if (stamp != 0)
+        {
+            try
+            {
+                String[] components = components((int) _inodeNumber);
+
+                if (treeLock_.validate(stamp))
+                {
+                    return (components == null) ? null : Paths.get(rootPath_, components);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // The tree changed while it was read. Read it again below.
+            }
+        }
+
+        stamp = treeLock_.readLock();
+
+        try
+        {
+            String[] components = components((int) _inodeNumber);
+            return (components == null) ? null : Paths.get(rootPath_, components);
+        }
+        finally
+        {
+            treeLock_.unlockRead(stamp);
+        }
+    }
+
+    // Returns the inode number mapped to the path, or -1 if there is none.
+    public long getInodeNumber(Path _path)
+    {
+        long stamp = treeLock_.tryOptimisticRead();
+
+        if (stamp != 0)
+        {
+            long inodeNumber = find(_path);
+
+            if (treeLock_.validate(stamp))
+            {
+                return inodeNumber;
+            }
+        }
+
+        stamp = treeLock_.readLock();
+
+        try
+        {
+            return find(_path);
+        }
+        finally
+        {
+            treeLock_.unlockRead(stamp);
+        }
+    }
+
+    public boolean contains(Path _path)
+    {
+        return getInodeNumber(_path) != -1;
+    }
+
+    // Returns the inode number mapped to the path. Maps the path, and any
+    // parent that is not mapped yet, to new inode numbers if needed. Threads
+    // mapping the same path at the same time get the same inode number.
+    public long map(Path _path)
+    {
+        long inodeNumber = getInodeNumber(_path);
+
+        if (inodeNumber != -1)
+        {
+            return inodeNumber;
+        }
+
+        long stamp = treeLock_.readLock();
+
+        try
+        {
+            return mapLocked(_path);
+        }
+        finally
+        {
+            treeLock_.unlockRead(stamp);
+        }
+    }
+
+    // Removes the mapping and the mappings of every path under it.
+    public void unmap(long _inodeNumber, Path _path)
+    {
+        long stamp = treeLock_.writeLock();
+
+        try
+        {
+            if (_inodeNumber == ROOT_INODE_NUMBER || find(_path) != _inodeNumber)
+            {
+                throw new IllegalStateException("Invalid mapping");
+            }
+
+            if (journal_ != null)
+            {
+                journal_.unmap((int) _inodeNumber);
+            }
+
+            unmapTree((int) _inodeNumber);
+        }
+        finally
+        {
+            treeLock_.unlockWrite(stamp);
+        }
+    }
+
+    // Moves the inode number to the new path. A mapping that already exists
+    // for the new path is replaced.
+    public void remap(long _inodeNumber, Path _oldPath, Path _newPath)
+    {
+        long stamp = treeLock_.writeLock();
+
+        try
+        {
+            if (_inodeNumber == ROOT_INODE_NUMBER || find(_oldPath) != _inodeNumber)
+            {
+                throw new IllegalStateException("Invalid mapping");
+            }
+
+            int inodeNumber = (int) _inodeNumber;
+            long replaced = find(_newPath);
+
+            if (replaced == inodeNumber)
+            {
+                return;
+            }
+
+            if (replaced != -1)
+            {
+                if (journal_ != null)
+                {
+                    journal_.unmap((int) replaced);
+                }
+
+                unmapTree((int) replaced);
+            }
+
+            int newParent = (int) mapLocked(_newPath.getParent());
+            String newName = _newPath.getFileName().toString();
+            int newNameId = nameTable(newName).acquire(newName);
+
+            detach(inodeNumber);
+            attach(inodeNumber, newParent, newNameId);
+
+            if (journal_ != null)
+            {
+                journal_.remap(inodeNumber, newParent, newName);
+            }
+        }
+        finally
+        {
+            treeLock_.unlockWrite(stamp);
+        }
+    }
+
+    public int size()
+    {
+        return size_.get();
+    }
+
+    // Stops the background work and writes the journal to the disk.
+    public void close()
+    {
+        if (maintenanceTask_ != null)
+        {
+            maintenanceTask_.cancel(false);
+        }
+
+        if (journal_ != null)
+        {
+            journal_.close();
+        }
+    }
+
+    // Must be called while holding the tree lock, or be validated afterwards.
+    private long find(Path _path)
+    {
+        if (_path == null || !_path.startsWith(root_))
+        {
+            return -1;
+        }
+
+        int inodeNumber = ROOT;
+
+        for (int i = root_.getNameCount(); i < _path.getNameCount(); ++i)
+        {
+            String name = _path.getName(i).toString();
+            int nameId = nameTable(name).find(name);
+
+            if (nameId == 0)
+            {
+                return -1;
+            }
+
+            long key = key(inodeNumber, nameId);
+            inodeNumber = childIndex(key).get(key);
+
+            if (inodeNumber == 0)
+            {
+                return -1;
+            }
+        }
+
+        return inodeNumber;
+    }
+
+    // Must be called while holding the tree lock.
+    private long mapLocked(Path _path)
+    {
+        if (_path == null || !_path.startsWith(root_))
+        {
+            throw new IllegalArgumentException("Path is not under [" + root_ + "]: " + _path);
+        }
+
+        int inodeNumber = ROOT;
+
+        for (int i = root_.getNameCount(); i < _path.getNameCount(); ++i)
+        {
+            inodeNumber = getOrAddChild(inodeNumber, _path.getName(i).toString());
+        }
+
+        return inodeNumber;
+    }
+
+    // Must be called while holding the tree lock.
+    private int getOrAddChild(int _parent, String _name)
+    {
+        NameTable names = nameTable(_name);
+
+        // The name is referenced before the child is looked up, so it cannot
+        // be dropped in between. The reference is given back if the child
+        // already exists.
+        int nameId = names.acquire(_name);
+        long key = key(_parent, nameId);
+        ChildIndex children = childIndex(key);
+        int child;
+        boolean added = false;
+
+        synchronized (children)
+        {
+            child = children.get(key);
+
+            if (child == 0)
+            {
+                child = allocate();
+                setNode(child, _parent, nameId);
+
+                // Recorded before the child becomes visible, so the journal
+                // always holds a parent before its children.
+                if (journal_ != null)
+                {
+                    journal_.map(child, _parent, _name);
+                }
+
+                children.put(key, child);
+                added = true;
+            }
+        }
+
+        if (added)
+        {
+            addChildCount(_parent, 1);
+            size_.incrementAndGet();
+        }
+        else
+        {
+            names.release(nameId);
+        }
+
+        return child;
+    }
+
+    // Unmaps the inode number and every inode number under it. Must be called
+    // while holding the write lock.
+    private void unmapTree(int _inodeNumber)
+    {
+        int[] pending = { _inodeNumber };
+        int count = 1;
+
+        for (int i = 0; i < count; ++i)
+        {
+            int parent = pending[i];
+            int childCount = getChildCount(parent);
+
+            if (childCount == 0)
+            {
+                continue;
+            }
+
+            int[] children = childrenOf(parent, childCount);
+
+            if (count + children.length > pending.length)
+            {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, count + children.length));
+            }
+
+            System.arraycopy(children, 0, pending, count, children.length);
+            count += children.length;
+        }
+
+        // Children are released before their parents.
+        for (int i = count - 1; i >= 0; --i)
+        {
+            detach(pending[i]);
+            release(pending[i]);
+            size_.decrementAndGet();
+        }
+    }
+
+    // Must be called while holding the write lock.
+    private void attach(int _inodeNumber, int _parent, int _nameId)
+    {
+        long key = key(_parent, _nameId);
+        ChildIndex children = childIndex(key);
+
+        setNode(_inodeNumber, _parent, _nameId);
+
+        synchronized (children)
+        {
+            children.put(key, _inodeNumber);
+        }
+
+        addChildCount(_parent, 1);
+    }
+
+    // Must be called while holding the write lock.
+    private void detach(int _inodeNumber)
+    {
+        long node = getNode(_inodeNumber);
+        int parent = (int) (node >>> 32);
+        int nameId = (int) node;
+        long key = key(parent, nameId);
+        ChildIndex children = childIndex(key);
+
+        synchronized (children)
+        {
+            children.remove(key);
+        }
+
+        addChildCount(parent, -1);
+        names_[nameId & (STRIPES - 1)].release(nameId);
+    }
+
+    // Must be called while holding the write lock.
+    private int[] childrenOf(int _parent, int _count)
+    {
+        int[] found = new int[_count];
+        int n = 0;
+
+        for (ChildIndex children : children_)
+        {
+            synchronized (children)
+            {
+                n = children.childrenOf(_parent, found, n);
+            }
+        }
+
+        return (n == _count) ? found : Arrays.copyOf(found, n);
+    }
+
+    // Returns the names from the root down to the inode number, or null if
+    // the inode number is not mapped.
+    private String[] components(int _inodeNumber)
+    {
+        if (getNode(_inodeNumber) <= 0)
+        {
+            return null;
+        }
+
+        int depth = 0;
+
+        for (int i = _inodeNumber; i != ROOT; i = (int) (getNode(i) >>> 32))
+        {
+            if (++depth > MAX_DEPTH)
+            {
+                throw new IllegalStateException("Path too deep");
+            }
+        }
+
+        String[] names = new String[depth];
+
+        for (int i = _inodeNumber; i != ROOT; i = (int) (getNode(i) >>> 32))
+        {
+            int nameId = (int) getNode(i);
+            names[--depth] = names_[nameId & (STRIPES - 1)].get(nameId);
+        }
+
+        return names;
+    }
+
+    // Pops a recycled inode number, or takes a new one.
+    private int allocate()
+    {
+        while (true)
+        {
+            long head = freeList_.get();
+            int top = (int) head;
+
+            if (top == 0)
+            {
+                break;
+            }
+
+            int next = (int) getNode(top);
+            long newHead = (((head >>> 32) + 1) << 32) | (next & 0xffffffffL);
+
+            if (freeList_.compareAndSet(head, newHead))
+            {
+                return top;
+            }
+        }
+
+        int inodeNumber = nextInodeNumber_.getAndIncrement();
+
+        if (inodeNumber < 0 || inodeNumber == Integer.MAX_VALUE)
+        {
+            throw new IllegalStateException("No inode numbers left");
+        }
+
+        return inodeNumber;
+    }
+
+    // Pushes the inode number onto the free list.
+    private void release(int _inodeNumber)
+    {
+        AtomicLongArray page = nodes_.get(_inodeNumber >>> PAGE_BITS);
+
+        while (true)
+        {
+            long head = freeList_.get();
+            int top = (int) head;
+
+            page.set(_inodeNumber & PAGE_MASK, FREE | (top & 0xffffffffL));
+
+            long newHead = (((head >>> 32) + 1) << 32) | (_inodeNumber & 0xffffffffL);
+
+            if (freeList_.compareAndSet(head, newHead))
+            {
+                return;
+            }
+        }
+    }
+
+    // Syncs the journal, and compacts it if most of its records are obsolete.
+    private void maintain()
+    {
+        journal_.sync();
+
+        if (journal_.getRecordCount() <= 2L * size_.get() + MIN_OBSOLETE_RECORDS)
+        {
+            return;
+        }
+
+        // The read lock keeps entries from being removed while the table is
+        // written out. Entries mapped meanwhile are recorded as usual, without
+        // waiting for the compaction, and copied to the compacted journal
+        // before it replaces the current one. Replaying a mapping twice is
+        // harmless.
+        long stamp = treeLock_.readLock();
+
+        try
+        {
+            journal_.rewrite(journal -> {
+                int end = nextInodeNumber_.get();
+
+                for (int i = ROOT + 1; i < end; ++i)
+                {
+                    long node = getNode(i);
+
+                    if (node > 0)
+                    {
+                        int nameId = (int) node;
+                        journal.map(i, (int) (node >>> 32), names_[nameId & (STRIPES - 1)].get(nameId));
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            // Keeps the task scheduled.
+            log_.error("maintain :: Error compacting the inode journal. {}", e.getMessage());
+        }
+        finally
+        {
+            treeLock_.unlockRead(stamp);
+        }
+    }
+
+    // Puts every inode number below the next new one that is not mapped on
+    // the free list.
+    private void rebuildFreeList()
+    {
+        freeList_.set(0);
+
+        for (int i = nextInodeNumber_.get() - 1; i > ROOT; --i)
+        {
+            if (getNode(i) <= 0)
+            {
+                ensurePage(i);
+                release(i);
+            }
+        }
+    }
+
+    private long getNode(int _inodeNumber)
+    {
+        AtomicLongArray page = nodes_.get(_inodeNumber >>> PAGE_BITS);
+        return (page != null) ? page.get(_inodeNumber & PAGE_MASK) : 0;
+    }
+
+    private void setNode(int _inodeNumber, int _parent, int _nameId)
+    {
+        int page = _inodeNumber >>> PAGE_BITS;
+
+        ensurePage(_inodeNumber);
+        nodes_.get(page).set(_inodeNumber & PAGE_MASK, key(_parent, _nameId));
+    }
+
+    private void ensurePage(int _inodeNumber)
+    {
+        int page = _inodeNumber >>> PAGE_BITS;
+
+        // The child counts are published first, so a page of nodes always has
+        // its counts.
+        if (nodes_.get(page) == null)
+        {
+            childCounts_.compareAndSet(page, null, new AtomicIntegerArray(PAGE_SIZE));
+            nodes_.compareAndSet(page, null, new AtomicLongArray(PAGE_SIZE));
+        }
+    }
+
+    private int getChildCount(int _inodeNumber)
+    {
+        return childCounts_.get(_inodeNumber >>> PAGE_BITS).get(_inodeNumber & PAGE_MASK);
+    }
+
+    private void addChildCount(int _inodeNumber, int _delta)
+    {
+        childCounts_.get(_inodeNumber >>> PAGE_BITS).addAndGet(_inodeNumber & PAGE_MASK, _delta);
+    }
+
+    private NameTable nameTable(String _name)
+    {
+        return names_[mix(_name.hashCode()) & (STRIPES - 1)];
+    }
+
+    private ChildIndex childIndex(long _key)
+    {
+        return children_[(mix(_key) >>> 24) & (STRIPES - 1)];
+    }
+
+    private static long key(int _parent, int _nameId)
+    {
+        return ((long) _parent << 32) | (_nameId & 0xffffffffL);
+    }
+
+    private static int mix(long _key)
+    {
+        long h = _key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // Applies the records of the journal while the table is loaded. No other
+    // thread uses the table yet.
+    private final class JournalReplayer implements InodeJournal.Replayer
+    {
+        @Override
+        public void map(int _inodeNumber, int _parent, String _name)
+        {
+            int nameId = nameTable(_name).acquire(_name);
+
+            if (getNode(_inodeNumber) == key(_parent, nameId))
+            {
+                // Mapped again after the journal was compacted.
+                names_[nameId & (STRIPES - 1)].release(nameId);
+                return;
+            }
+
+            if (getNode(_inodeNumber) > 0)
+            {
+                unmapTree(_inodeNumber);
+            }
+
+            replace(_inodeNumber, _parent, nameId);
+            size_.incrementAndGet();
+
+            if (_inodeNumber >= nextInodeNumber_.get())
+            {
+                nextInodeNumber_.set(_inodeNumber + 1);
+            }
+        }
+
+        @Override
+        public void unmap(int _inodeNumber)
+        {
+            if (_inodeNumber != ROOT && getNode(_inodeNumber) > 0)
+            {
+                unmapTree(_inodeNumber);
+            }
+        }
+
+        @Override
+        public void remap(int _inodeNumber, int _parent, String _name)
+        {
+            if (_inodeNumber == ROOT || getNode(_inodeNumber) <= 0)
+            {
+                return;
+            }
+
+            int nameId = nameTable(_name).acquire(_name);
+
+            detach(_inodeNumber);
+            replace(_inodeNumber, _parent, nameId);
+        }
+
+        // Attaches the inode number to the parent under the name, replacing
+        // whatever was mapped there before.
+        private void replace(int _inodeNumber, int _parent, int _nameId)
+        {
+            long key = key(_parent, _nameId);
+            int existing = childIndex(key).get(key);
+
+            if (existing != 0)
+            {
+                unmapTree(existing);
+            }
+
+            ensurePage(_parent);
+            attach(_inodeNumber, _parent, _nameId);
+        }
+    }
+
+    // One stripe of the interned path components. The low bits of a name id
+    // select its stripe. Ids are never 0. A name is dropped when the last node
+    // using it is removed.
+    private static final class NameTable
+    {
+        private final int stripe_;
+        private String[] names_ = new String[16];
+        private int[] refCounts_ = new int[16];
+        private int[] slots_ = new int[32];
+        private int[] freeIds_ = new int[16];
+        private int freeCount_;
+        private int nextLocalId_ = 1;
+        private int size_;
+
+        NameTable(int _stripe)
+        {
+            stripe_ = _stripe;
+        }
+
+        synchronized int find(String _name)
+        {
+            int mask = slots_.length - 1;
+
+            for (int i = mix(_name.hashCode()) >>> STRIPE_BITS & mask;; i = (i + 1) & mask)
+            {
+                int localId = slots_[i];
+
+                if (localId == 0)
+                {
+                    return 0;
+                }
+
+                if (names_[localId].equals(_name))
+                {
+                    return toId(localId);
+                }
+            }
+        }
+
+        synchronized String get(int _id)
+        {
+            return names_[_id >>> STRIPE_BITS];
+        }
+
+        synchronized int acquire(String _name)
+        {
+            int id = find(_name);
+            int localId;
+
+            if (id == 0)
+            {
+                if ((size_ + 1) * 4 > slots_.length * 3)
+                {
+                    rehash(slots_.length * 2);
+                }
+
+                localId = (freeCount_ > 0) ? freeIds_[--freeCount_] : nextLocalId_++;
+
+                if (localId >= names_.length)
+                {
+                    names_ = Arrays.copyOf(names_, names_.length * 2);
+                    refCounts_ = Arrays.copyOf(refCounts_, names_.length);
+                }
+
+                names_[localId] = _name;
+                insert(localId);
+                ++size_;
+                id = toId(localId);
+            }
+            else
+            {
+                localId = id >>> STRIPE_BITS;
+            }
+
+            ++refCounts_[localId];
+
+            return id;
+        }
+
+        synchronized void release(int _id)
+        {
+            int localId = _id >>> STRIPE_BITS;
+
+            if (--refCounts_[localId] > 0)
+            {
+                return;
+            }
+
+            int mask = slots_.length - 1;
+            int i = slot(localId);
+
+            while (slots_[i] != localId)
+            {
+                i = (i + 1) & mask;
+            }
+
+            // Shifts later entries of the probe sequence back into the gap.
+            for (int j = (i + 1) & mask; slots_[j] != 0; j = (j + 1) & mask)
+            {
+                int home = slot(slots_[j]);
+
+                if (((j - home) & mask) >= ((j - i) & mask))
+                {
+                    slots_[i] = slots_[j];
+                    i = j;
+                }
+            }
+
+            slots_[i] = 0;
+            names_[localId] = null;
+            --size_;
+
+            if (freeCount_ == freeIds_.length)
+            {
+                freeIds_ = Arrays.copyOf(freeIds_, freeCount_ * 2);
+            }
+
+            freeIds_[freeCount_++] = localId;
+        }
+
+        private int toId(int _localId)
+        {
+            return (_localId << STRIPE_BITS) | stripe_;
+        }
+
+        private int slot(int _localId)
+        {
+            return mix(names_[_localId].hashCode()) >>> STRIPE_BITS & (slots_.length - 1);
+        }
+
+        private void insert(int _localId)
+        {
+            int mask = slots_.length - 1;
+            int i = slot(_localId);
+
+            while (slots_[i] != 0)
+            {
+                i = (i + 1) & mask;
+            }
+
+            slots_[i] = _localId;
+        }
+
+        private void rehash(int _capacity)
+        {
+            int[] old = slots_;
+            slots_ = new int[_capacity];
+
+            for (int localId : old)
+            {
+                if (localId != 0)
+                {
+                    insert(localId);
+                }
+            }
+        }
+    }
+
+    // One stripe of the map from (parent inode number, name id) to the child's
+    // inode number. Keys are never 0, because the root has no entry and every
+    // other node has a name id other than 0. Callers synchronize on the stripe
+    // for anything but get.
+    private static final class ChildIndex
+    {
+        private long[] keys_ = new long[64];
+        private int[] values_ = new int[64];
+        private int size_;
+
+        synchronized int get(long _key)
+        {
+            int mask = keys_.length - 1;
+
+            for (int i = mix(_key) & mask;; i = (i + 1) & mask)
+            {
+                if (keys_[i] == _key)
+                {
+                    return values_[i];
+                }
+
+                if (keys_[i] == 0)
+                {
+                    return 0;
+                }
+            }
+        }
+
+        void put(long _key, int _value)
+        {
+            if ((size_ + 1) * 4 > keys_.length * 3)
+            {
+                rehash(keys_.length * 2);
+            }
+
+            if (insert(_key, _value))
+            {
+                ++size_;
+            }
+        }
+
+        void remove(long _key)
+        {
+            int mask = keys_.length - 1;
+            int i = mix(_key) & mask;
+
+            while (keys_[i] != _key)
+            {
+                if (keys_[i] == 0)
+                {
+                    return;
+                }
+
+                i = (i + 1) & mask;
+            }
+
+            // Shifts later entries of the probe sequence back into the gap.
+            for (int j = (i + 1) & mask; keys_[j] != 0; j = (j + 1) & mask)
+            {
+                int home = mix(keys_[j]) & mask;
+
+                if (((j - home) & mask) >= ((j - i) & mask))
+                {
+                    keys_[i] = keys_[j];
+                    values_[i] = values_[j];
+                    i = j;
+                }
+            }
+
+            keys_[i] = 0;
+            values_[i] = 0;
+            --size_;
+        }
+
+        // Scans the whole stripe, so it is only used when removing directories
+        // that have mapped children.
+        int childrenOf(int _parent, int[] _found, int _n)
+        {
+            for (int i = 0; i < keys_.length && _n < _found.length; ++i)
+            {
+                if (keys_[i] != 0 && (int) (keys_[i] >>> 32) == _parent)
+                {
+                    _found[_n++] = values_[i];
+                }
+            }
+
+            return _n;
+        }
+
+        private boolean insert(long _key, int _value)
+        {
+            int mask = keys_.length - 1;
+            int i = mix(_key) & mask;
+
+            while (keys_[i] != 0)
+            {
+                if (keys_[i] == _key)
+                {
+                    values_[i] = _value;
+                    return false;
+                }
+
+                i = (i + 1) & mask;
+            }
+
+            keys_[i] = _key;
+            values_[i] = _value;
+
+            return true;
+        }
+
+        private void rehash(int _capacity)
+        {
+            long[] oldKeys = keys_;
+            int[] oldValues = values_;
+
+            keys_ = new long[_capacity];
+            values_ = new int[_capacity];
+
+            for (int i = 0; i < oldKeys.length; ++i)
+            {
+                if (oldKeys[i] != 0)
+                {
+                    insert(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
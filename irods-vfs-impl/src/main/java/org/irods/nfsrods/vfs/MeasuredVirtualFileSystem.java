@@ -0,0 +1,715 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.Principal;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.security.auth.Subject;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.dcache.nfs.v4.NfsIdMapping;
+import org.dcache.nfs.v4.xdr.nfsace4;
+import org.dcache.nfs.vfs.AclCheckable;
+import org.dcache.nfs.vfs.DirectoryStream;
+import org.dcache.nfs.vfs.FsStat;
+import org.dcache.nfs.vfs.Inode;
+import org.dcache.nfs.vfs.Stat;
+import org.dcache.nfs.vfs.Stat.Type;
+import org.dcache.nfs.vfs.VirtualFileSystem;
+import org.irods.nfsrods.config.NFSServerConfig;
+import org.irods.nfsrods.config.ServerConfig;
+import org.irods.nfsrods.metrics.LatencyStats;
+import org.irods.nfsrods.metrics.LatencyStatsMBean;
+import org.irods.nfsrods.metrics.MBeans;
+import org.irods.nfsrods.utils.JSONUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Measures every request made to a file system and publishes the results
+ * over JMX.
+ *
+ * For each operation and each user, the latencies, failures and iRODS calls
+ * are recorded. The number of bytes read and written and the connection
+ * counts of the pool are published as well. Recording a request does not
+ * allocate, so measuring is always on.
+ *
+ * A sample of the requests is traced as well. When a traced request takes
+ * longer than the slow operation threshold, a single record with the timing
+ * of each of its iRODS calls is logged.
+ */
+public class MeasuredVirtualFileSystem implements VirtualFileSystem, FileSystemStatsMBean
+{
+    private static final Logger log_ = LoggerFactory.getLogger(MeasuredVirtualFileSystem.class);
+
+    enum Operation
+    {
+        // @formatter:off
+        ACCESS("access"),
+        COMMIT("commit"),
+        CREATE("create"),
+        DIRECTORY_VERIFIER("directoryVerifier"),
+        GET_ACL("getAcl"),
+        GETATTR("getattr"),
+        GET_FS_STAT("getFsStat"),
+        GET_ROOT_INODE("getRootInode"),
+        HAS_IO_LAYOUT("hasIOLayout"),
+        LINK("link"),
+        LIST("list"),
+        LOOKUP("lookup"),
+        MKDIR("mkdir"),
+        MOVE("move"),
+        PARENT_OF("parentOf"),
+        READ("read"),
+        READLINK("readlink"),
+        REMOVE("remove"),
+        SET_ACL("setAcl"),
+        SETATTR("setattr"),
+        SYMLINK("symlink"),
+        WRITE("write");
+        // @formatter:on
+
+        private final String name_;
+
+        Operation(String _name)
+        {
+            name_ = _name;
+        }
+    }
+
+    // The state of the request running on a thread. It is reused by the
+    // thread's requests, which do not nest. Primitive results are not passed
+    // through succeeded(T), which would box them.
+    private static final class Sample
+    {
+        private long start_;
+        private long calls_;
+        private int userID_;
+        private boolean succeeded_;
+        private Inode inode_;
+        private String name_;
+        private RequestTrace trace_;
+
+        <T> T succeeded(T _result)
+        {
+            succeeded_ = true;
+            return _result;
+        }
+
+        void succeeded()
+        {
+            succeeded_ = true;
+        }
+    }
+
+    private final IRODSVirtualFileSystem vfs_;
+    private final IRODSIdMap idMapper_;
+    private final IRODSConnectionPool pool_;
+    private final LatencyStats[] opStats_;
+    private final NonBlockingHashMapLong<LatencyStats> userStats_;
+    private final ThreadLocal<Sample> samples_;
+    private final LongAdder bytesRead_;
+    private final LongAdder bytesWritten_;
+    private final long slowOpThreshold_;
+    private final double traceSampleRate_;
+
+    public MeasuredVirtualFileSystem(IRODSVirtualFileSystem _vfs, ServerConfig _config, IRODSIdMap _idMapper)
+    {
+        NFSServerConfig config = _config.getNfsServerConfig();
+
+        vfs_ = _vfs;
+        idMapper_ = _idMapper;
+        pool_ = _idMapper.getConnectionPool();
+        opStats_ = new LatencyStats[Operation.values().length];
+        userStats_ = new NonBlockingHashMapLong<>();
+        samples_ = ThreadLocal.withInitial(Sample::new);
+        bytesRead_ = new LongAdder();
+        bytesWritten_ = new LongAdder();
+        slowOpThreshold_ = TimeUnit.MILLISECONDS.toNanos(config.getSlowOperationThresholdInMilliseconds());
+        traceSampleRate_ = (slowOpThreshold_ > 0) ? config.getSlowOperationTraceSampleRate() : 0;
+
+        for (Operation op : Operation.values())
+        {
+            opStats_[op.ordinal()] = new LatencyStats();
+            MBeans.register(opStats_[op.ordinal()], LatencyStatsMBean.class, "Operations", op.name_);
+        }
+
+        MBeans.register(this, FileSystemStatsMBean.class, "FileSystem", "irods");
+
+        // The metrics of evicted users are dropped. They start over if the
+        // user comes back.
+        _idMapper.addEvictionListener(user -> {
+            if (userStats_.remove(user.getUserID()) != null)
+            {
+                MBeans.unregister("Users", userName(user.getUserID()));
+            }
+        });
+    }
+
+    // Removes the metrics from JMX.
+    public void close()
+    {
+        for (Operation op : Operation.values())
+        {
+            MBeans.unregister("Operations", op.name_);
+        }
+
+        userStats_.keySet().forEach(userID -> MBeans.unregister("Users", userName(userID.intValue())));
+        MBeans.unregister("FileSystem", "irods");
+    }
+
+    @Override
+    public int access(Inode _inode, int _mode) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            int result = vfs_.access(_inode, _mode);
+            sample.succeeded();
+            return result;
+        }
+        finally
+        {
+            end(Operation.ACCESS, sample);
+        }
+    }
+
+    @Override
+    public void commit(Inode _inode, long _offset, int _count) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            vfs_.commit(_inode, _offset, _count);
+            sample.succeeded();
+        }
+        finally
+        {
+            end(Operation.COMMIT, sample);
+        }
+    }
+
+    @Override
+    public Inode create(Inode _parent, Type _type, String _name, Subject _subject, int _mode) throws IOException
+    {
+        Sample sample = begin(_parent, _name);
+
+        try
+        {
+            return sample.succeeded(vfs_.create(_parent, _type, _name, _subject, _mode));
+        }
+        finally
+        {
+            end(Operation.CREATE, sample);
+        }
+    }
+
+    @Override
+    public byte[] directoryVerifier(Inode _inode) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            return sample.succeeded(vfs_.directoryVerifier(_inode));
+        }
+        finally
+        {
+            end(Operation.DIRECTORY_VERIFIER, sample);
+        }
+    }
+
+    @Override
+    public nfsace4[] getAcl(Inode _inode) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            return sample.succeeded(vfs_.getAcl(_inode));
+        }
+        finally
+        {
+            end(Operation.GET_ACL, sample);
+        }
+    }
+
+    @Override
+    public Stat getattr(Inode _inode) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            return sample.succeeded(vfs_.getattr(_inode));
+        }
+        finally
+        {
+            end(Operation.GETATTR, sample);
+        }
+    }
+
+    @Override
+    public FsStat getFsStat() throws IOException
+    {
+        Sample sample = begin();
+
+        try
+        {
+            return sample.succeeded(vfs_.getFsStat());
+        }
+        finally
+        {
+            end(Operation.GET_FS_STAT, sample);
+        }
+    }
+
+    @Override
+    public Inode getRootInode() throws IOException
+    {
+        Sample sample = begin();
+
+        try
+        {
+            return sample.succeeded(vfs_.getRootInode());
+        }
+        finally
+        {
+            end(Operation.GET_ROOT_INODE, sample);
+        }
+    }
+
+    @Override
+    public boolean hasIOLayout(Inode _inode) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            boolean result = vfs_.hasIOLayout(_inode);
+            sample.succeeded();
+            return result;
+        }
+        finally
+        {
+            end(Operation.HAS_IO_LAYOUT, sample);
+        }
+    }
+
+    @Override
+    public Inode link(Inode _parent, Inode _existing, String _target, Subject _subject) throws IOException
+    {
+        Sample sample = begin(_parent, _target);
+
+        try
+        {
+            return sample.succeeded(vfs_.link(_parent, _existing, _target, _subject));
+        }
+        finally
+        {
+            end(Operation.LINK, sample);
+        }
+    }
+
+    @Override
+    public DirectoryStream list(Inode _inode, byte[] _verifier, long _cookie) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            return sample.succeeded(vfs_.list(_inode, _verifier, _cookie));
+        }
+        finally
+        {
+            end(Operation.LIST, sample);
+        }
+    }
+
+    @Override
+    public Inode lookup(Inode _parent, String _path) throws IOException
+    {
+        Sample sample = begin(_parent, _path);
+
+        try
+        {
+            return sample.succeeded(vfs_.lookup(_parent, _path));
+        }
+        finally
+        {
+            end(Operation.LOOKUP, sample);
+        }
+    }
+
+    @Override
+    public Inode mkdir(Inode _parent, String _path, Subject _subject, int _mode) throws IOException
+    {
+        Sample sample = begin(_parent, _path);
+
+        try
+        {
+            return sample.succeeded(vfs_.mkdir(_parent, _path, _subject, _mode));
+        }
+        finally
+        {
+            end(Operation.MKDIR, sample);
+        }
+    }
+
+    @Override
+    public boolean move(Inode _inode, String _oldName, Inode _dest, String _newName) throws IOException
+    {
+        Sample sample = begin(_inode, _oldName);
+
+        try
+        {
+            boolean result = vfs_.move(_inode, _oldName, _dest, _newName);
+            sample.succeeded();
+            return result;
+        }
+        finally
+        {
+            end(Operation.MOVE, sample);
+        }
+    }
+
+    @Override
+    public Inode parentOf(Inode _inode) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            return sample.succeeded(vfs_.parentOf(_inode));
+        }
+        finally
+        {
+            end(Operation.PARENT_OF, sample);
+        }
+    }
+
+    @Override
+    public int read(Inode _inode, byte[] _data, long _offset, int _count) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            int count = vfs_.read(_inode, _data, _offset, _count);
+            bytesRead_.add(Math.max(count, 0));
+            sample.succeeded();
+            return count;
+        }
+        finally
+        {
+            end(Operation.READ, sample);
+        }
+    }
+
+    @Override
+    public String readlink(Inode _inode) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            return sample.succeeded(vfs_.readlink(_inode));
+        }
+        finally
+        {
+            end(Operation.READLINK, sample);
+        }
+    }
+
+    @Override
+    public void remove(Inode _parent, String _path) throws IOException
+    {
+        Sample sample = begin(_parent, _path);
+
+        try
+        {
+            vfs_.remove(_parent, _path);
+            sample.succeeded();
+        }
+        finally
+        {
+            end(Operation.REMOVE, sample);
+        }
+    }
+
+    @Override
+    public void setAcl(Inode _inode, nfsace4[] _acl) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            vfs_.setAcl(_inode, _acl);
+            sample.succeeded();
+        }
+        finally
+        {
+            end(Operation.SET_ACL, sample);
+        }
+    }
+
+    @Override
+    public void setattr(Inode _inode, Stat _stat) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            vfs_.setattr(_inode, _stat);
+            sample.succeeded();
+        }
+        finally
+        {
+            end(Operation.SETATTR, sample);
+        }
+    }
+
+    @Override
+    public Inode symlink(Inode _parent, String _linkName, String _targetName, Subject _subject, int _mode) throws IOException
+    {
+        Sample sample = begin(_parent, _linkName);
+
+        try
+        {
+            return sample.succeeded(vfs_.symlink(_parent, _linkName, _targetName, _subject, _mode));
+        }
+        finally
+        {
+            end(Operation.SYMLINK, sample);
+        }
+    }
+
+    @Override
+    public WriteResult write(Inode _inode, byte[] _data, long _offset, int _count, StabilityLevel _stabilityLevel) throws IOException
+    {
+        Sample sample = begin(_inode);
+
+        try
+        {
+            WriteResult result = vfs_.write(_inode, _data, _offset, _count, _stabilityLevel);
+            bytesWritten_.add(result.getBytesWritten());
+            return sample.succeeded(result);
+        }
+        finally
+        {
+            end(Operation.WRITE, sample);
+        }
+    }
+
+    @Override
+    public AclCheckable getAclCheckable()
+    {
+        return vfs_.getAclCheckable();
+    }
+
+    @Override
+    public NfsIdMapping getIdMapper()
+    {
+        return vfs_.getIdMapper();
+    }
+
+    @Override
+    public long getBytesRead()
+    {
+        return bytesRead_.sum();
+    }
+
+    @Override
+    public long getBytesWritten()
+    {
+        return bytesWritten_.sum();
+    }
+
+    @Override
+    public long getIRODSCalls()
+    {
+        return pool_.getCallCount();
+    }
+
+    @Override
+    public long getOpenedConnections()
+    {
+        return pool_.getOpenedConnectionCount();
+    }
+
+    @Override
+    public long getClosedConnections()
+    {
+        return pool_.getClosedConnectionCount();
+    }
+
+    @Override
+    public int getOpenConnections()
+    {
+        return pool_.getConnectionCount();
+    }
+
+    @Override
+    public int getActiveUsers()
+    {
+        return userStats_.size();
+    }
+
+    @Override
+    public int getLoggedInUsers()
+    {
+        return idMapper_.getUserCount();
+    }
+
+    @Override
+    public long getEvictedUsers()
+    {
+        return idMapper_.getEvictedUserCount();
+    }
+
+    private Sample begin()
+    {
+        return begin(null, null);
+    }
+
+    private Sample begin(Inode _inode)
+    {
+        return begin(_inode, null);
+    }
+
+    // The inode and name are only looked at when a slow request is logged.
+    private Sample begin(Inode _inode, String _name)
+    {
+        Sample sample = samples_.get();
+        sample.userID_ = getUserID();
+        sample.succeeded_ = false;
+        sample.inode_ = _inode;
+        sample.name_ = _name;
+        sample.trace_ = null;
+
+        if (traceSampleRate_ > 0 && ThreadLocalRandom.current().nextDouble() < traceSampleRate_)
+        {
+            sample.trace_ = new RequestTrace();
+            RequestTrace.attach(sample.trace_);
+        }
+
+        sample.calls_ = IRODSConnectionPool.getCallCountOfCurrentThread();
+        sample.start_ = System.nanoTime();
+
+        return sample;
+    }
+
+    private void end(Operation _op, Sample _sample)
+    {
+        long latency = System.nanoTime() - _sample.start_;
+        long calls = IRODSConnectionPool.getCallCountOfCurrentThread() - _sample.calls_;
+
+        opStats_[_op.ordinal()].record(latency, !_sample.succeeded_, calls);
+
+        if (_sample.userID_ >= 0)
+        {
+            getUserStats(_sample.userID_).record(latency, !_sample.succeeded_, calls);
+        }
+
+        if (_sample.trace_ != null)
+        {
+            RequestTrace.attach(null);
+
+            if (latency >= slowOpThreshold_)
+            {
+                logSlowOperation(_op, _sample, latency, calls);
+            }
+        }
+
+        // Do not keep the request's objects reachable from the thread.
+        _sample.inode_ = null;
+        _sample.name_ = null;
+        _sample.trace_ = null;
+    }
+
+    private void logSlowOperation(Operation _op, Sample _sample, long _latency, long _calls)
+    {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("operation", _op.name_);
+        record.put("user", (_sample.userID_ >= 0) ? userName(_sample.userID_) : null);
+        record.put("inode", (_sample.inode_ != null) ? IRODSVirtualFileSystem.toInodeNumber(_sample.inode_) : null);
+        record.put("path", (_sample.inode_ != null) ? vfs_.getPathOrNull(_sample.inode_) : null);
+        record.put("name", _sample.name_);
+        record.put("succeeded", _sample.succeeded_);
+        record.put("duration_in_microseconds", TimeUnit.NANOSECONDS.toMicros(_latency));
+        record.put("irods_calls", _calls);
+        record.put("calls", _sample.trace_.getCalls());
+
+        try
+        {
+            log_.warn("logSlowOperation :: {}", JSONUtils.toSingleLineJSON(record));
+        }
+        catch (JsonProcessingException e)
+        {
+            log_.error(e.getMessage());
+        }
+    }
+
+    private LatencyStats getUserStats(int _userID)
+    {
+        LatencyStats stats = userStats_.get(_userID);
+
+        if (stats == null)
+        {
+            LatencyStats newStats = new LatencyStats();
+            stats = userStats_.putIfAbsent(_userID, newStats);
+
+            if (stats == null)
+            {
+                stats = newStats;
+                MBeans.register(stats, LatencyStatsMBean.class, "Users", userName(_userID));
+            }
+        }
+
+        return stats;
+    }
+
+    private String userName(int _userID)
+    {
+        String name = idMapper_.getIdentityCache().getNameById(_userID);
+        return (name != null) ? name : Integer.toString(_userID);
+    }
+
+    // Returns the iRODS user id of the request's subject, or -1 for requests
+    // made without one, such as those of the mount protocol.
+    private static int getUserID()
+    {
+        Subject subject = Subject.getSubject(AccessController.getContext());
+
+        if (subject == null)
+        {
+            return -1;
+        }
+
+        Iterator<Principal> principals = subject.getPrincipals().iterator();
+
+        if (!principals.hasNext())
+        {
+            return -1;
+        }
+
+        try
+        {
+            return Integer.parseInt(principals.next().getName());
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.cliffc.high_scale_lib.NonBlockingHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers paths that recently failed to resolve.
+ *
+ * Whether a path is visible depends on the user's permissions, so misses are
+ * recorded per user. Creating a path invalidates it for every user.
+ */
+public class NegativeLookupCache
+{
+    private static final Logger log_ = LoggerFactory.getLogger(NegativeLookupCache.class);
+
+    private final Cache<String, Set<Integer>> cache_;
+
+    public NegativeLookupCache(long _timeoutInMillis, long _maxEntries)
+    {
+        // @formatter:off
+        cache_ = CacheBuilder.newBuilder()
+            .expireAfterWrite(_timeoutInMillis, TimeUnit.MILLISECONDS)
+            .maximumSize(_maxEntries)
+            .build();
+        // @formatter:on
+    }
+
+    public boolean contains(int _userID, String _path)
+    {
+        Set<Integer> userIDs = cache_.getIfPresent(_path);
+        return userIDs != null && userIDs.contains(_userID);
+    }
+
+    public void add(int _userID, String _path)
+    {
+        log_.debug("add :: [{}] does not exist for user [{}]", _path, _userID);
+
+        try
+        {
+            cache_.get(_path, NonBlockingHashSet::new).add(_userID);
+        }
+        catch (ExecutionException e)
+        {
+            // Creating a set never fails.
+        }
+    }
+
+    public void invalidate(String _path)
+    {
+        cache_.invalidate(_path);
+    }
+}
@@ -0,0 +1,247 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reads large ranges of large data objects over several connections at once.
+ *
+ * A range is split into consecutive parts of at least the minimum part size,
+ * one per stream. Each part is read through its own handle of the handle
+ * cache, and so over its own connection, directly into its place in the
+ * caller's buffer. The calling thread reads the first part. Handles stay open
+ * between reads, so a sequential reader keeps each stream positioned where its
+ * part of the next range starts.
+ *
+ * Reads of small data objects and small ranges go to the handle cache as they
+ * are. Every part holds a pooled connection, so there are no more reading
+ * threads than the pool has connections.
+ */
+public class ParallelReader
+{
+    private static final Logger log_ = LoggerFactory.getLogger(ParallelReader.class);
+
+    private final DataObjectHandleCache handleCache_;
+    private final int maxStreams_;
+    private final long minFileSize_;
+    private final int minPartSize_;
+    private final ThreadPoolExecutor executor_;
+
+    public ParallelReader(int _maxStreams,
+                          long _minFileSizeInBytes,
+                          int _minPartSizeInBytes,
+                          int _maxThreads,
+                          DataObjectHandleCache _handleCache)
+    {
+        handleCache_ = _handleCache;
+        maxStreams_ = Math.max(1, _maxStreams);
+        minFileSize_ = Math.max(0, _minFileSizeInBytes);
+        minPartSize_ = Math.max(4096, _minPartSizeInBytes);
+
+        int maxThreads = Math.max(1, _maxThreads);
+
+        // Parts run on the caller's thread when all threads are busy, so a read
+        // never waits behind other reads' parts.
+        // @formatter:off
+        executor_ = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<>(maxThreads),
+                                           new ThreadFactoryBuilder()
+                                               .setNameFormat("parallel-read-%d")
+                                               .setDaemon(true)
+                                               .build(),
+                                           new ThreadPoolExecutor.CallerRunsPolicy());
+        // @formatter:on
+        executor_.allowCoreThreadTimeOut(true);
+    }
+
+    public boolean isEnabled()
+    {
+        return maxStreams_ > 1;
+    }
+
+    // Reads into the buffer starting at the buffer offset. The size of the data
+    // object decides whether the range is split. Pass -1 if it is not known.
+    // Returns the number of bytes read, or -1 at the end of the file.
+    public int read(IRODSUser _user,
+                    long _inodeNumber,
+                    Path _path,
+                    long _fileSize,
+                    byte[] _data,
+                    int _dataOffset,
+                    long _offset,
+                    int _count)
+        throws IOException,
+        JargonException
+    {
+        int streams = (_fileSize >= minFileSize_) ? Math.min(maxStreams_, _count / minPartSize_) : 1;
+
+        if (streams <= 1)
+        {
+            return handleCache_.read(_user, _inodeNumber, _path, _data, _dataOffset, _offset, _count);
+        }
+
+        log_.debug("read :: Reading [{}] bytes of [{}] over [{}] streams.", _count, _path, streams);
+
+        // The size may be out of date, so the range is not cut short at it.
+        // Parts past the end of the file come back empty.
+        int partSize = _count / streams;
+        List<Future<Integer>> parts = new ArrayList<>(streams - 1);
+
+        for (int i = 1; i < streams; ++i)
+        {
+            final int start = i * partSize;
+            final int length = (i == streams - 1) ? _count - start : partSize;
+
+            parts.add(executor_.submit(() -> readFully(_user, _inodeNumber, _path, _data, _dataOffset + start,
+                                                       _offset + start, length)));
+        }
+
+        // The first part is read while the others are in flight. Every part is
+        // waited for, even after one has failed, so that none is still writing
+        // into the caller's buffer when the read returns.
+        Exception failure = null;
+        int bytesRead = 0;
+        boolean complete = false;
+
+        try
+        {
+            bytesRead = readFully(_user, _inodeNumber, _path, _data, _dataOffset, _offset, partSize);
+            complete = (bytesRead == partSize);
+        }
+        catch (IOException | JargonException | RuntimeException e)
+        {
+            failure = e;
+        }
+
+        // The parts are contiguous, so the result ends at the first part that
+        // came up short.
+        for (int i = 0; i < parts.size(); ++i)
+        {
+            try
+            {
+                int n = await(parts.get(i));
+                int length = (i == parts.size() - 1) ? _count - (i + 1) * partSize : partSize;
+
+                if (complete)
+                {
+                    bytesRead += n;
+                    complete = (n == length);
+                }
+            }
+            catch (IOException | JargonException | RuntimeException e)
+            {
+                if (failure == null)
+                {
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure instanceof IOException)
+        {
+            throw (IOException) failure;
+        }
+
+        if (failure instanceof JargonException)
+        {
+            throw (JargonException) failure;
+        }
+
+        if (failure != null)
+        {
+            throw (RuntimeException) failure;
+        }
+
+        return (bytesRead == 0) ? -1 : bytesRead;
+    }
+
+    public void close()
+    {
+        executor_.shutdownNow();
+    }
+
+    private int readFully(IRODSUser _user, long _inodeNumber, Path _path, byte[] _data, int _dataOffset, long _offset, int _count)
+        throws IOException,
+        JargonException
+    {
+        int filled = 0;
+
+        while (filled < _count)
+        {
+            int n = handleCache_.read(_user, _inodeNumber, _path, _data, _dataOffset + filled, _offset + filled,
+                                      _count - filled);
+
+            if (n <= 0)
+            {
+                break;
+            }
+
+            filled += n;
+        }
+
+        return filled;
+    }
+
+    // Waits for the part without giving up when interrupted, because the part
+    // writes into the caller's buffer.
+    private static int await(Future<Integer> _part) throws IOException, JargonException
+    {
+        boolean interrupted = false;
+
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return _part.get();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof IOException)
+                    {
+                        throw (IOException) cause;
+                    }
+
+                    if (cause instanceof JargonException)
+                    {
+                        throw (JargonException) cause;
+                    }
+
+                    if (cause instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) cause;
+                    }
+
+                    throw new IOException(cause);
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Prefetches the blocks following a sequential reader.
+ *
+ * Reads are tracked per user and path. A read that starts near the end of the
+ * previous read is sequential. While a file is read sequentially, the blocks
+ * ahead of the reader are fetched in the background and later reads are copied
+ * from them. The number of blocks fetched ahead (the window) starts at one and
+ * doubles every time a read is served entirely from prefetched blocks, up to
+ * the configured maximum. A read anywhere else turns prefetching off for the
+ * file until it is read sequentially again.
+ *
+ * Blocks are taken from a fixed number of buffers. When all buffers are in use,
+ * nothing more is prefetched until some are released. Every block being
+ * fetched holds a pooled connection, so there are no more fetching threads
+ * than the pool has connections.
+ *
+ * Data is read through a ParallelReader, so the blocks of large data objects
+ * are each fetched over several connections.
+ */
+public class ReadAheadCache
+{
+    private static final Logger log_ = LoggerFactory.getLogger(ReadAheadCache.class);
+
+    private static final int MAX_QUEUED_BLOCKS = 256;
+
+    private final ParallelReader reader_;
+    private final int blockSize_;
+    private final int maxWindow_;
+    private final BlockingQueue<byte[]> freeBuffers_;
+    private final AtomicInteger unallocatedBuffers_;
+    private final Cache<String, ConcurrentMap<Integer, Stream>> streams_;
+    private final ThreadPoolExecutor executor_;
+
+    public ReadAheadCache(int _blockSize,
+                          int _maxWindowInBlocks,
+                          long _maxMemoryInBytes,
+                          long _idleTimeoutInMillis,
+                          int _maxThreads,
+                          ParallelReader _reader)
+    {
+        reader_ = _reader;
+        blockSize_ = Math.max(4096, _blockSize);
+        maxWindow_ = Math.max(0, _maxWindowInBlocks);
+
+        int maxBuffers = (int) Math.min(Integer.MAX_VALUE, _maxMemoryInBytes / blockSize_);
+        freeBuffers_ = new ArrayBlockingQueue<>(Math.max(1, maxBuffers));
+        unallocatedBuffers_ = new AtomicInteger(maxBuffers);
+
+        int maxThreads = Math.max(1, _maxThreads);
+
+        // @formatter:off
+        streams_ = CacheBuilder.newBuilder()
+            .expireAfterAccess(_idleTimeoutInMillis, TimeUnit.MILLISECONDS)
+            .removalListener((RemovalNotification<String, ConcurrentMap<Integer, Stream>> n) ->
+                n.getValue().values().forEach(Stream::dropAll))
+            .build();
+
+        executor_ = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                                           new ArrayBlockingQueue<>(MAX_QUEUED_BLOCKS),
+                                           new ThreadFactoryBuilder()
+                                               .setNameFormat("read-ahead-%d")
+                                               .setDaemon(true)
+                                               .build());
+        // @formatter:on
+        executor_.allowCoreThreadTimeOut(true);
+    }
+
+    // The size of the data object is passed on to the ParallelReader. Pass -1
+    // if it is not known.
+    public int read(IRODSUser _user, long _inodeNumber, Path _path, long _fileSize, byte[] _data, long _offset, int _count)
+        throws IOException,
+        JargonException
+    {
+        if (maxWindow_ == 0 || _count <= 0)
+        {
+            return reader_.read(_user, _inodeNumber, _path, _fileSize, _data, 0, _offset, _count);
+        }
+
+        Stream stream = getStream(_user.getUserID(), _path.toString());
+        List<Block> pinned = stream.access(_user, _inodeNumber, _path, _fileSize, _offset, _count);
+
+        try
+        {
+            if (pinned != null)
+            {
+                int bytesRead = copy(pinned, _data, _offset, _count);
+
+                if (bytesRead != Integer.MIN_VALUE)
+                {
+                    return bytesRead;
+                }
+            }
+        }
+        finally
+        {
+            if (pinned != null)
+            {
+                stream.unpin(pinned);
+            }
+        }
+
+        return reader_.read(_user, _inodeNumber, _path, _fileSize, _data, 0, _offset, _count);
+    }
+
+    // Drops the prefetched blocks of the path and of paths under it.
+    public void invalidate(String _path)
+    {
+        final String prefix = _path + "/";
+        streams_.asMap().keySet().removeIf(p -> p.equals(_path) || p.startsWith(prefix));
+    }
+
+    public void close()
+    {
+        executor_.shutdownNow();
+        streams_.invalidateAll();
+    }
+
+    private Stream getStream(int _userID, String _path) throws IOException
+    {
+        try
+        {
+            return streams_.get(_path, ConcurrentHashMap::new).computeIfAbsent(_userID, id -> new Stream());
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Copies the range from the pinned blocks. Returns the number of bytes
+    // copied, -1 at the end of the file, or Integer.MIN_VALUE if a block could
+    // not be fetched.
+    private int copy(List<Block> _blocks, byte[] _data, long _offset, int _count)
+    {
+        final long end = _offset + _count;
+        int copied = 0;
+
+        for (Block block : _blocks)
+        {
+            int length = await(block);
+
+            if (length < 0)
+            {
+                return Integer.MIN_VALUE;
+            }
+
+            long blockStart = block.index_ * blockSize_;
+            long from = Math.max(_offset, blockStart);
+            long to = Math.min(end, blockStart + length);
+
+            if (to > from)
+            {
+                int n = (int) (to - from);
+                System.arraycopy(block.buffer_, (int) (from - blockStart), _data, (int) (from - _offset), n);
+                copied += n;
+            }
+
+            // A short block marks the end of the file.
+            if (length < blockSize_)
+            {
+                break;
+            }
+        }
+
+        return (copied == 0) ? -1 : copied;
+    }
+
+    private static int await(Block _block)
+    {
+        try
+        {
+            return _block.future_.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        catch (ExecutionException e)
+        {
+            return -1;
+        }
+    }
+
+    private byte[] allocateBuffer()
+    {
+        byte[] buffer = freeBuffers_.poll();
+
+        if (buffer != null)
+        {
+            return buffer;
+        }
+
+        if (unallocatedBuffers_.getAndDecrement() > 0)
+        {
+            return new byte[blockSize_];
+        }
+
+        unallocatedBuffers_.incrementAndGet();
+
+        return null;
+    }
+
+    private void releaseBuffer(byte[] _buffer)
+    {
+        if (!freeBuffers_.offer(_buffer))
+        {
+            unallocatedBuffers_.incrementAndGet();
+        }
+    }
+
+    private final class Stream
+    {
+        // Blocks by index. Guarded by the stream.
+        private final TreeMap<Long, Block> blocks_ = new TreeMap<>();
+        private long lastEnd_ = -1;
+        private int window_;
+        private long eof_ = Long.MAX_VALUE;
+
+        // Records the read and schedules prefetching. Returns the blocks covering
+        // the range, pinned, or null if the range has not been prefetched.
+        synchronized List<Block> access(IRODSUser _user, long _inodeNumber, Path _path, long _fileSize, long _offset, int _count)
+        {
+            final long first = _offset / blockSize_;
+            final long last = (_offset + _count - 1) / blockSize_;
+
+            if (!isSequential(_offset))
+            {
+                if (window_ > 0)
+                {
+                    log_.debug("access :: Random access to [{}]. Read-ahead disabled.", _path);
+                }
+
+                dropAll();
+                window_ = 0;
+                lastEnd_ = _offset + _count;
+
+                return null;
+            }
+
+            lastEnd_ = Math.max(lastEnd_, _offset + _count);
+
+            // Blocks behind the reader are no longer needed. One block is kept,
+            // because clients issue several reads at once and they may arrive
+            // slightly out of order.
+            dropBefore(first - 1);
+
+            List<Block> pinned = new ArrayList<>();
+
+            for (long i = first; i <= last && i * blockSize_ < eof_; ++i)
+            {
+                Block block = blocks_.get(i);
+
+                if (block == null)
+                {
+                    break;
+                }
+
+                ++block.pins_;
+                pinned.add(block);
+            }
+
+            boolean hit = !pinned.isEmpty() && (pinned.size() == last - first + 1 || eofWithin(pinned));
+
+            if (!hit)
+            {
+                unpinLocked(pinned);
+                pinned = null;
+            }
+
+            window_ = hit ? Math.min(maxWindow_, Math.max(1, window_ * 2)) : Math.max(1, window_);
+
+            prefetch(_user, _inodeNumber, _path, _fileSize, last + 1);
+
+            return pinned;
+        }
+
+        synchronized void unpin(List<Block> _blocks)
+        {
+            unpinLocked(_blocks);
+        }
+
+        synchronized void dropAll()
+        {
+            dropBefore(Long.MAX_VALUE);
+        }
+
+        private boolean isSequential(long _offset)
+        {
+            if (lastEnd_ == -1)
+            {
+                return _offset == 0;
+            }
+
+            long tolerance = (long) Math.max(1, window_) * blockSize_;
+
+            return _offset >= lastEnd_ - tolerance && _offset <= lastEnd_ + tolerance;
+        }
+
+        private boolean eofWithin(List<Block> _pinned)
+        {
+            Block last = _pinned.get(_pinned.size() - 1);
+            return last.future_.isDone() && !last.future_.isCompletedExceptionally() && last.future_.join() < blockSize_;
+        }
+
+        private void prefetch(IRODSUser _user, long _inodeNumber, Path _path, long _fileSize, long _fromIndex)
+        {
+            for (long i = _fromIndex; i < _fromIndex + window_ && i * blockSize_ < eof_; ++i)
+            {
+                if (blocks_.containsKey(i))
+                {
+                    continue;
+                }
+
+                byte[] buffer = allocateBuffer();
+
+                if (buffer == null)
+                {
+                    log_.debug("prefetch :: No read-ahead buffers available.");
+                    return;
+                }
+
+                Block block = new Block(i, buffer);
+                blocks_.put(i, block);
+
+                try
+                {
+                    executor_.execute(() -> fill(_user, _inodeNumber, _path, _fileSize, block));
+                }
+                catch (RejectedExecutionException e)
+                {
+                    blocks_.remove(i);
+                    releaseBuffer(buffer);
+                    return;
+                }
+            }
+        }
+
+        private void fill(IRODSUser _user, long _inodeNumber, Path _path, long _fileSize, Block _block)
+        {
+            final long blockStart = _block.index_ * blockSize_;
+            int filled = 0;
+
+            try
+            {
+                while (filled < blockSize_)
+                {
+                    int n = reader_.read(_user, _inodeNumber, _path, _fileSize, _block.buffer_, filled, blockStart + filled,
+                                         blockSize_ - filled);
+
+                    if (n <= 0)
+                    {
+                        break;
+                    }
+
+                    filled += n;
+                }
+
+                if (filled < blockSize_)
+                {
+                    synchronized (this)
+                    {
+                        eof_ = Math.min(eof_, blockStart + filled);
+                    }
+                }
+
+                _block.future_.complete(filled);
+            }
+            catch (IOException | JargonException | RuntimeException e)
+            {
+                log_.debug("fill :: Error prefetching [{}] at offset [{}]. {}", _path, blockStart, e.getMessage());
+                _block.future_.completeExceptionally(e);
+            }
+        }
+
+        private void dropBefore(long _index)
+        {
+            Iterator<Map.Entry<Long, Block>> it = blocks_.headMap(_index).entrySet().iterator();
+
+            while (it.hasNext())
+            {
+                Block block = it.next().getValue();
+                it.remove();
+                block.dropped_ = true;
+
+                if (block.pins_ == 0)
+                {
+                    recycle(block);
+                }
+            }
+        }
+
+        private void unpinLocked(List<Block> _blocks)
+        {
+            for (Block block : _blocks)
+            {
+                if (--block.pins_ == 0 && block.dropped_)
+                {
+                    recycle(block);
+                }
+            }
+        }
+
+        // The buffer is released once no fetch is writing into it.
+        private void recycle(Block _block)
+        {
+            _block.future_.whenComplete((n, e) -> releaseBuffer(_block.buffer_));
+        }
+    }
+
+    private static final class Block
+    {
+        private final long index_;
+        private final byte[] buffer_;
+        private final CompletableFuture<Integer> future_;
+
+        // Guarded by the owning stream.
+        private int pins_;
+        private boolean dropped_;
+
+        Block(long _index, byte[] _buffer)
+        {
+            index_ = _index;
+            buffer_ = _buffer;
+            future_ = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.irods.nfsrods.vfs;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.dcache.oncrpc4j.rpc.OncRpcSvcBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Creates the threads that NFS requests run on.
+ *
+ * Every request blocks its thread until iRODS answers, so the number of
+ * requests in flight is limited by the number of threads. The modes are
+ *
+ *     worker_threads   the fixed pool of worker threads of the RPC layer
+ *     elastic_pool     a pool that grows to the configured maximum number of
+ *                      threads and shrinks when they are idle
+ *     virtual_threads  a virtual thread per request (Java 21 and later)
+ *
+ * In the last two modes, the I/O threads of the RPC layer decode requests and
+ * hand them to the executor, so a slow request never holds up reading others
+ * off the network.
+ */
+public final class RequestExecutors
+{
+    private static final Logger log_ = LoggerFactory.getLogger(RequestExecutors.class);
+
+    // @formatter:off
+    public static final String WORKER_THREADS  = "worker_threads";
+    public static final String ELASTIC_POOL    = "elastic_pool";
+    public static final String VIRTUAL_THREADS = "virtual_threads";
+    // @formatter:on
+
+    private RequestExecutors()
+    {
+    }
+
+    // Returns the executor for the mode, or null if requests run on the worker
+    // threads of the RPC layer. Throws IllegalArgumentException if the mode is
+    // not known.
+    public static ExecutorService create(String _mode, int _maxThreads)
+    {
+        if (_mode == null || WORKER_THREADS.equals(_mode))
+        {
+            return null;
+        }
+
+        if (ELASTIC_POOL.equals(_mode))
+        {
+            return newElasticPool(_maxThreads);
+        }
+
+        if (VIRTUAL_THREADS.equals(_mode))
+        {
+            ExecutorService executor = newVirtualThreadExecutor();
+
+            if (executor != null)
+            {
+                return executor;
+            }
+
+            log_.warn("create :: Virtual threads require Java 21 or later. Using an elastic pool instead.");
+
+            return newElasticPool(_maxThreads);
+        }
+
+        throw new IllegalArgumentException("Unknown execution mode [" + _mode + "]");
+    }
+
+    // Sets up the RPC layer to run requests on the executor returned by
+    // create().
+    public static OncRpcSvcBuilder configure(OncRpcSvcBuilder _builder, ExecutorService _executor)
+    {
+        if (_executor == null)
+        {
+            return _builder.withWorkerThreadIoStrategy();
+        }
+
+        return _builder.withSameThreadIoStrategy().withWorkerThreadExecutionService(_executor);
+    }
+
+    static ExecutorService newElasticPool(int _maxThreads)
+    {
+        int maxThreads = Math.max(1, _maxThreads);
+
+        // Below the maximum, every request starts a new thread, even when others
+        // are idle, as that is how the executor fills its core. Threads go away
+        // after a minute without work, so an idle server keeps none. Once the
+        // maximum is reached, requests wait in the queue.
+        // @formatter:off
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<>(),
+                                                             new ThreadFactoryBuilder()
+                                                                 .setNameFormat("nfs-request-%d")
+                                                                 .setDaemon(true)
+                                                                 .build());
+        // @formatter:on
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    // Returns an executor that starts a virtual thread per task, or null if the
+    // runtime does not have virtual threads. The server is built for Java 8, so
+    // the API is looked up at run time.
+    static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "nfs-request-", 0L);
+
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            log_.debug("newVirtualThreadExecutor :: Virtual threads are not available. {}", e.toString());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The iRODS calls made while serving a sampled request.
+ *
+ * A trace is attached to the thread serving the request. The connection pool
+ * carries it over to the connection threads that run the request's
+ * operations, where the calls to Jargon are timed.
+ */
+final class RequestTrace
+{
+    private static final ThreadLocal<RequestTrace> current_ = new ThreadLocal<>();
+
+    private static final class Call
+    {
+        private final String name_;
+        private final String thread_;
+        private final long start_;
+        private final long end_;
+
+        Call(String _name, String _thread, long _start, long _end)
+        {
+            name_ = _name;
+            thread_ = _thread;
+            start_ = _start;
+            end_ = _end;
+        }
+    }
+
+    private final long start_;
+    private final List<Call> calls_;
+
+    RequestTrace()
+    {
+        start_ = System.nanoTime();
+        calls_ = new ArrayList<>();
+    }
+
+    // Returns the trace attached to the current thread, or null if the
+    // current thread is not serving a sampled request.
+    static RequestTrace current()
+    {
+        return current_.get();
+    }
+
+    // Attaches the trace to the current thread and returns the trace that was
+    // attached before. Passing null detaches the current trace.
+    static RequestTrace attach(RequestTrace _trace)
+    {
+        RequestTrace previous = current_.get();
+
+        if (_trace == null)
+        {
+            current_.remove();
+        }
+        else
+        {
+            current_.set(_trace);
+        }
+
+        return previous;
+    }
+
+    // Calls may be added from several connection threads at once.
+    void addCall(String _name, long _start, long _end)
+    {
+        Call call = new Call(_name, Thread.currentThread().getName(), _start, _end);
+
+        synchronized (calls_)
+        {
+            calls_.add(call);
+        }
+    }
+
+    // Returns the calls in the order they started, with times in microseconds
+    // relative to the start of the request.
+    List<Map<String, Object>> getCalls()
+    {
+        List<Call> calls;
+
+        synchronized (calls_)
+        {
+            calls = new ArrayList<>(calls_);
+        }
+
+        calls.sort(Comparator.comparingLong(call -> call.start_));
+
+        List<Map<String, Object>> records = new ArrayList<>(calls.size());
+
+        for (Call call : calls)
+        {
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("call", call.name_);
+            record.put("thread", call.thread_);
+            record.put("start_in_microseconds", TimeUnit.NANOSECONDS.toMicros(call.start_ - start_));
+            record.put("duration_in_microseconds", TimeUnit.NANOSECONDS.toMicros(call.end_ - call.start_));
+            records.add(record);
+        }
+
+        return records;
+    }
+}
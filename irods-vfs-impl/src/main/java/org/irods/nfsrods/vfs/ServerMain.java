@@ -2,6 +2,7 @@ package org.irods.nfsrods.vfs;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.log4j.PropertyConfigurator;
 import org.dcache.nfs.ExportFile;
@@ -9,7 +10,6 @@ import org.dcache.nfs.v3.MountServer;
 import org.dcache.nfs.v3.NfsServerV3;
 import org.dcache.nfs.v4.MDSOperationFactory;
 import org.dcache.nfs.v4.NFSServerV41;
-import org.dcache.nfs.vfs.VirtualFileSystem;
 import org.dcache.oncrpc4j.rpc.OncRpcProgram;
 import org.dcache.oncrpc4j.rpc.OncRpcSvc;
 import org.dcache.oncrpc4j.rpc.OncRpcSvcBuilder;
@@ -56,6 +56,19 @@ public class ServerMain
         }
 
         NFSServerConfig nfsSvrConfig = config.getNfsServerConfig();
+        ExecutorService requestExecutor = null;
+
+        try
+        {
+            requestExecutor = RequestExecutors.create(nfsSvrConfig.getExecutionMode(),
+                                                      nfsSvrConfig.getExecutionMaxThreads());
+        }
+        catch (IllegalArgumentException e)
+        {
+            log_.error("main :: Error reading server config." + System.lineSeparator() + e.getMessage());
+            System.exit(1);
+        }
+
         IRODSFileSystem ifsys = IRODSFileSystem.instance();
         OncRpcSvc nfsSvc = null;
 
@@ -64,38 +77,54 @@ public class ServerMain
         try
         {
             IRODSAccessObjectFactory ifactory = ifsys.getIRODSAccessObjectFactory();
-            IRODSIdMap idMapper = new IRODSIdMap(config, ifactory);
+            IRODSConnectionPool connPool = new IRODSConnectionPool(config.getIRODSClientConfig(), ifactory);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHandler<>(connPool, "Closing pooled iRODS connections")));
+
+            IRODSIdMap idMapper = new IRODSIdMap(config, connPool);
 
             // @formatter:off
             GssSessionManager gssSessionMgr = new GssSessionManager(idMapper,
                                                                     nfsSvrConfig.getKerberosServicePrincipal(),
                                                                     nfsSvrConfig.getKerberosKeytab());
 
-            nfsSvc = new OncRpcSvcBuilder()
+            OncRpcSvcBuilder nfsSvcBuilder = new OncRpcSvcBuilder()
                 .withPort(nfsSvrConfig.getPort())
                 .withTCP()
                 .withAutoPublish()
-                .withWorkerThreadIoStrategy()
                 .withGssSessionManager(gssSessionMgr)
-                .withSubjectPropagation()
-                .build();
+                .withSubjectPropagation();
+            // @formatter:on
+
+            log_.info("main :: Running requests in execution mode [{}].", nfsSvrConfig.getExecutionMode());
+
+            nfsSvc = RequestExecutors.configure(nfsSvcBuilder, requestExecutor).build();
 
             Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHandler<>(nfsSvc, "Shutting down NFS services")));
-            // @formatter:on
+
+            if (requestExecutor != null)
+            {
+                Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHandler<>(requestExecutor, "Stopping request threads")));
+            }
 
             ExportFile exportFile = new ExportFile(new File(EXPORTS_CONFIG_PATH));
-            VirtualFileSystem vfs = new IRODSVirtualFileSystem(idMapper);
+            IRODSVirtualFileSystem vfs = new IRODSVirtualFileSystem(config, idMapper);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHandler<>(vfs, "Closing open data objects")));
+
+            // Requests are measured and the results published over JMX.
+            MeasuredVirtualFileSystem measuredVfs = new MeasuredVirtualFileSystem(vfs, config, idMapper);
 
             // @formatter:off
             NFSServerV41 nfs4 = new NFSServerV41.Builder()
                 .withExportFile(exportFile)
-                .withVfs(vfs)
+                .withVfs(measuredVfs)
                 .withOperationFactory(new MDSOperationFactory())
                 .build();
             // @formatter:on
 
-            NfsServerV3 nfs3 = new NfsServerV3(exportFile, vfs);
-            MountServer mountd = new MountServer(exportFile, vfs);
+            NfsServerV3 nfs3 = new NfsServerV3(exportFile, measuredVfs);
+            MountServer mountd = new MountServer(exportFile, measuredVfs);
 
             nfsSvc.register(new OncRpcProgram(100003, 4), nfs4);
             nfsSvc.register(new OncRpcProgram(100003, 3), nfs3);
@@ -123,8 +152,11 @@ public class ServerMain
         try
         {
             // @formatter:off
-            if      (_obj instanceof OncRpcSvc)       { ((OncRpcSvc) _obj).stop(); }
-            else if (_obj instanceof IRODSFileSystem) { ((IRODSFileSystem) _obj).closeAndEatExceptions(); }
+            if      (_obj instanceof OncRpcSvc)              { ((OncRpcSvc) _obj).stop(); }
+            else if (_obj instanceof IRODSVirtualFileSystem) { ((IRODSVirtualFileSystem) _obj).close(); }
+            else if (_obj instanceof IRODSConnectionPool)    { ((IRODSConnectionPool) _obj).close(); }
+            else if (_obj instanceof IRODSFileSystem)        { ((IRODSFileSystem) _obj).closeAndEatExceptions(); }
+            else if (_obj instanceof ExecutorService)        { ((ExecutorService) _obj).shutdown(); }
             // @formatter:on
         }
         catch (Exception e)
@@ -0,0 +1,112 @@
+package org.irods.nfsrods.vfs;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+
+/**
+ * Times the calls made to Jargon for traced requests.
+ *
+ * While a trace is attached to the calling thread, the access objects and
+ * file factories handed out are wrapped so that each of their calls is added
+ * to the trace. Without a trace, calls go straight to Jargon and nothing is
+ * wrapped. Files and streams are not wrapped, because Jargon expects its own
+ * implementations of them.
+ */
+final class TracedAccessObjectFactory implements InvocationHandler
+{
+    private final Object target_;
+    private final String name_;
+    private final boolean timed_;
+
+    private TracedAccessObjectFactory(Object _target, String _name, boolean _timed)
+    {
+        target_ = _target;
+        name_ = _name;
+        timed_ = _timed;
+    }
+
+    static IRODSAccessObjectFactory wrap(IRODSAccessObjectFactory _factory)
+    {
+        // Getting an access object does not talk to iRODS, so the calls of the
+        // factory itself are not timed.
+        return (IRODSAccessObjectFactory) newProxy(IRODSAccessObjectFactory.class, _factory, false);
+    }
+
+    @Override
+    public Object invoke(Object _proxy, Method _method, Object[] _args) throws Throwable
+    {
+        if (_method.getDeclaringClass() == Object.class)
+        {
+            if ("equals".equals(_method.getName()))
+            {
+                return _proxy == _args[0];
+            }
+
+            if ("hashCode".equals(_method.getName()))
+            {
+                return System.identityHashCode(_proxy);
+            }
+
+            return invokeTarget(_method, _args);
+        }
+
+        RequestTrace trace = RequestTrace.current();
+
+        if (trace == null)
+        {
+            return invokeTarget(_method, _args);
+        }
+
+        Class<?> type = _method.getReturnType();
+        boolean wrapped = isWrapped(type);
+        long start = System.nanoTime();
+
+        try
+        {
+            Object result = invokeTarget(_method, _args);
+            return (wrapped && result != null) ? newProxy(type, result, true) : result;
+        }
+        finally
+        {
+            if (timed_ && !wrapped)
+            {
+                trace.addCall(name_ + "." + _method.getName(), start, System.nanoTime());
+            }
+        }
+    }
+
+    private Object invokeTarget(Method _method, Object[] _args) throws Throwable
+    {
+        try
+        {
+            return _method.invoke(target_, _args);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    private static boolean isWrapped(Class<?> _type)
+    {
+        if (!_type.isInterface() || !_type.getName().startsWith("org.irods.jargon."))
+        {
+            return false;
+        }
+
+        String name = _type.getSimpleName();
+
+        return name.endsWith("AO") || name.endsWith("Factory");
+    }
+
+    private static Object newProxy(Class<?> _type, Object _target, boolean _timed)
+    {
+        return Proxy.newProxyInstance(_type.getClassLoader(),
+                                      new Class<?>[] {_type},
+                                      new TracedAccessObjectFactory(_target, _type.getSimpleName(), _timed));
+    }
+}
@@ -0,0 +1,528 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Buffers UNSTABLE writes until the client commits them.
+ *
+ * Writes are kept per user and inode number, and indexed by path for the
+ * attribute lookups that need the buffered size of a file. Adjacent and overlapping writes
+ * are merged, so the data reaches iRODS in few large writes instead of one
+ * write per WRITE call. A buffer is written out when the client commits, when
+ * it grows past its size limit, when the memory limit of all buffers is
+ * reached, or when it has not been written to for a while.
+ *
+ * An error writing a buffer in the background is reported by the next commit
+ * of the file. Clients only send unstable data again when the write verifier
+ * changes, so the application sees the failed commit as an I/O error.
+ */
+public class WriteBehindCache
+{
+    private static final Logger log_ = LoggerFactory.getLogger(WriteBehindCache.class);
+
+    private final DataObjectHandleCache handleCache_;
+    private final long maxBytesPerFile_;
+    private final long maxMemory_;
+    private final long flushInterval_;
+    private final ConcurrentMap<Key, Buffer> buffers_;
+    private final ConcurrentMap<String, Set<Buffer>> buffersByPath_;
+    private final AtomicLong bufferedBytes_;
+    private final ScheduledExecutorService flusher_;
+
+    public WriteBehindCache(long _maxBytesPerFile,
+                            long _maxMemoryInBytes,
+                            long _flushIntervalInMillis,
+                            DataObjectHandleCache _handleCache)
+    {
+        handleCache_ = _handleCache;
+        maxBytesPerFile_ = Math.max(0, _maxBytesPerFile);
+        maxMemory_ = Math.max(0, _maxMemoryInBytes);
+        flushInterval_ = Math.max(100, _flushIntervalInMillis);
+        buffers_ = new ConcurrentHashMap<>();
+        buffersByPath_ = new ConcurrentHashMap<>();
+        bufferedBytes_ = new AtomicLong();
+
+        // @formatter:off
+        flusher_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("write-behind-flusher")
+            .setDaemon(true)
+            .build());
+        // @formatter:on
+
+        long interval = Math.max(100, flushInterval_ / 2);
+        flusher_.scheduleWithFixedDelay(this::flushIdleBuffers, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled()
+    {
+        return maxBytesPerFile_ > 0 && maxMemory_ > 0;
+    }
+
+    // Buffers the write. The buffer is written out before returning if the
+    // write is stable, or if a buffer limit is reached. Returns true if the
+    // data has been written to iRODS.
+    public boolean write(IRODSUser _user,
+                         long _inodeNumber,
+                         Path _path,
+                         byte[] _data,
+                         long _offset,
+                         int _count,
+                         boolean _stable)
+        throws IOException,
+        JargonException
+    {
+        final Key key = new Key(_user.getUserID(), _inodeNumber);
+
+        while (true)
+        {
+            Buffer buffer = buffers_.computeIfAbsent(key, k -> addBuffer(new Buffer(_user, _inodeNumber, _path)));
+
+            synchronized (buffer)
+            {
+                if (buffer.closed_)
+                {
+                    continue;
+                }
+
+                buffer.add(_data, _offset, _count);
+
+                if (_stable || buffer.bytes_ >= maxBytesPerFile_ || bufferedBytes_.get() > maxMemory_)
+                {
+                    flushLocked(buffer);
+                    return true;
+                }
+
+                return false;
+            }
+        }
+    }
+
+    // Writes out the user's buffer for the inode. Throws if this or an earlier
+    // attempt to write the buffer failed.
+    public void flush(int _userID, long _inodeNumber) throws IOException
+    {
+        Buffer buffer = buffers_.get(new Key(_userID, _inodeNumber));
+
+        if (buffer == null)
+        {
+            return;
+        }
+
+        synchronized (buffer)
+        {
+            IOException error = buffer.error_;
+
+            try
+            {
+                if (error == null)
+                {
+                    flushLocked(buffer);
+                }
+            }
+            catch (IOException e)
+            {
+                error = e;
+            }
+            catch (JargonException e)
+            {
+                error = new IOException(e);
+            }
+
+            // The error is reported once. The buffer is forgotten either way.
+            buffer.clear();
+            buffer.closed_ = true;
+            removeBuffer(buffer);
+
+            if (error != null)
+            {
+                throw error;
+            }
+        }
+    }
+
+    // Writes out every buffer for the path or for paths under it, so that the
+    // data can be read back or the data object renamed. Errors are kept for
+    // the commit of the user who wrote the data.
+    public void flush(String _path)
+    {
+        flush(matching(_path, b -> true));
+    }
+
+    // Writes out the buffers of all users but the given one for the path or
+    // for paths under it.
+    public void flushOthers(String _path, int _userID)
+    {
+        flush(matching(_path, b -> b.key_.userID_ != _userID));
+    }
+
+    // Drops the user's buffers for the path or for paths under it without
+    // writing them out. Only call this once the data objects are gone.
+    public void discard(String _path, int _userID)
+    {
+        for (Buffer buffer : matching(_path, b -> b.key_.userID_ == _userID))
+        {
+            synchronized (buffer)
+            {
+                buffer.clear();
+                buffer.closed_ = true;
+                removeBuffer(buffer);
+            }
+        }
+    }
+
+    // Returns the size of the data object including the buffered writes, or
+    // -1 if nothing is buffered for it.
+    public long getBufferedSize(String _path)
+    {
+        Set<Buffer> buffers = buffersByPath_.get(_path);
+        long size = -1;
+
+        if (buffers != null)
+        {
+            for (Buffer buffer : buffers)
+            {
+                size = Math.max(size, buffer.end_);
+            }
+        }
+
+        return size;
+    }
+
+    public void close()
+    {
+        flusher_.shutdownNow();
+
+        for (Buffer buffer : buffers_.values())
+        {
+            synchronized (buffer)
+            {
+                try
+                {
+                    flushLocked(buffer);
+                }
+                catch (IOException | JargonException e)
+                {
+                    log_.error("close :: Error writing buffered data for [{}]. {}", buffer.path_, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void flush(List<Buffer> _buffers)
+    {
+        for (Buffer buffer : _buffers)
+        {
+            synchronized (buffer)
+            {
+                if (buffer.closed_ || buffer.error_ != null)
+                {
+                    continue;
+                }
+
+                try
+                {
+                    flushLocked(buffer);
+                    buffer.closed_ = true;
+                    removeBuffer(buffer);
+                }
+                catch (IOException | JargonException e)
+                {
+                    log_.error("flush :: Error writing buffered data for [{}]. {}", buffer.path_, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private List<Buffer> matching(String _path, Predicate<Buffer> _filter)
+    {
+        final String prefix = _path + "/";
+        final List<Buffer> buffers = new ArrayList<>();
+
+        for (Map.Entry<String, Set<Buffer>> entry : buffersByPath_.entrySet())
+        {
+            if (!entry.getKey().equals(_path) && !entry.getKey().startsWith(prefix))
+            {
+                continue;
+            }
+
+            for (Buffer buffer : entry.getValue())
+            {
+                if (_filter.test(buffer))
+                {
+                    buffers.add(buffer);
+                }
+            }
+        }
+
+        return buffers;
+    }
+
+    private Buffer addBuffer(Buffer _buffer)
+    {
+        buffersByPath_.compute(_buffer.path_, (path, buffers) -> {
+            Set<Buffer> set = (buffers != null) ? buffers : ConcurrentHashMap.newKeySet();
+            set.add(_buffer);
+            return set;
+        });
+
+        return _buffer;
+    }
+
+    private void removeBuffer(Buffer _buffer)
+    {
+        if (buffers_.remove(_buffer.key_, _buffer))
+        {
+            buffersByPath_.computeIfPresent(_buffer.path_, (path, buffers) -> {
+                buffers.remove(_buffer);
+                return buffers.isEmpty() ? null : buffers;
+            });
+        }
+    }
+
+    private void flushIdleBuffers()
+    {
+        final long now = System.currentTimeMillis();
+
+        for (Buffer buffer : buffers_.values())
+        {
+            synchronized (buffer)
+            {
+                if (buffer.closed_ || now - buffer.lastWrite_ < flushInterval_)
+                {
+                    continue;
+                }
+
+                if (buffer.error_ == null && buffer.bytes_ > 0)
+                {
+                    try
+                    {
+                        flushLocked(buffer);
+                    }
+                    catch (IOException | JargonException | RuntimeException e)
+                    {
+                        log_.error("flushIdleBuffers :: Error writing buffered data for [{}]. {}",
+                                   buffer.path_, e.getMessage());
+                    }
+                }
+                else if (buffer.error_ == null)
+                {
+                    buffer.closed_ = true;
+                    removeBuffer(buffer);
+                }
+            }
+        }
+    }
+
+    // Writes the extents out in order. On failure, the remaining extents are
+    // dropped and the error is kept for the next commit. Must be called while
+    // holding the buffer's lock.
+    private void flushLocked(Buffer _buffer) throws IOException, JargonException
+    {
+        Iterator<Extent> it = _buffer.extents_.values().iterator();
+
+        try
+        {
+            while (it.hasNext())
+            {
+                Extent extent = it.next();
+
+                log_.debug("flushLocked :: Writing [{}] bytes at offset [{}] to [{}] ...",
+                           extent.length_, extent.offset_, _buffer.path_);
+
+                handleCache_.write(_buffer.user_, _buffer.inodeNumber_, _buffer.file_, extent.buffer_, extent.offset_,
+                                   extent.length_);
+
+                it.remove();
+                _buffer.bytes_ -= extent.length_;
+                bufferedBytes_.addAndGet(-extent.length_);
+            }
+
+            _buffer.end_ = -1;
+        }
+        catch (IOException | JargonException | RuntimeException e)
+        {
+            _buffer.error_ = (e instanceof IOException) ? (IOException) e : new IOException(e);
+            _buffer.clear();
+            throw e;
+        }
+    }
+
+    private static final class Key
+    {
+        private final int userID_;
+        private final long inodeNumber_;
+
+        Key(int _userID, long _inodeNumber)
+        {
+            userID_ = _userID;
+            inodeNumber_ = _inodeNumber;
+        }
+
+        @Override
+        public boolean equals(Object _other)
+        {
+            if (this == _other)
+            {
+                return true;
+            }
+
+            if (!(_other instanceof Key))
+            {
+                return false;
+            }
+
+            Key other = (Key) _other;
+
+            return userID_ == other.userID_ && inodeNumber_ == other.inodeNumber_;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(userID_, inodeNumber_);
+        }
+    }
+
+    private final class Buffer
+    {
+        private final Key key_;
+        private final IRODSUser user_;
+        private final long inodeNumber_;
+        private final Path file_;
+        private final String path_;
+
+        // Extents by offset. They never overlap or touch. Guarded by the buffer.
+        private final TreeMap<Long, Extent> extents_;
+        private long bytes_;
+        private long lastWrite_;
+        private IOException error_;
+        private boolean closed_;
+
+        // The end of the last extent, or -1 if there are none.
+        private volatile long end_;
+
+        Buffer(IRODSUser _user, long _inodeNumber, Path _path)
+        {
+            key_ = new Key(_user.getUserID(), _inodeNumber);
+            user_ = _user;
+            inodeNumber_ = _inodeNumber;
+            file_ = _path;
+            path_ = _path.toString();
+            extents_ = new TreeMap<>();
+            end_ = -1;
+        }
+
+        // Merges the range into the extents. The new data replaces any data
+        // buffered for the same bytes.
+        void add(byte[] _data, long _offset, int _count)
+        {
+            final long end = _offset + _count;
+
+            Map.Entry<Long, Extent> floor = extents_.floorEntry(_offset);
+            Extent base = (floor != null && floor.getValue().end() >= _offset) ? floor.getValue() : null;
+            long mergedEnd = end;
+
+            List<Extent> following = new ArrayList<>();
+
+            for (Extent extent : extents_.subMap(_offset, false, end, true).values())
+            {
+                following.add(extent);
+                mergedEnd = Math.max(mergedEnd, extent.end());
+            }
+
+            long before = bytes_;
+
+            if (base == null)
+            {
+                base = new Extent(_offset);
+                extents_.put(_offset, base);
+            }
+            else
+            {
+                mergedEnd = Math.max(mergedEnd, base.end());
+                bytes_ -= base.length_;
+            }
+
+            base.grow((int) (mergedEnd - base.offset_));
+
+            for (Extent extent : following)
+            {
+                if (extent != base)
+                {
+                    int at = (int) (extent.offset_ - base.offset_);
+                    System.arraycopy(extent.buffer_, 0, base.buffer_, at, extent.length_);
+                    extents_.remove(extent.offset_);
+                    bytes_ -= extent.length_;
+                }
+            }
+
+            System.arraycopy(_data, 0, base.buffer_, (int) (_offset - base.offset_), _count);
+
+            bytes_ += base.length_;
+            bufferedBytes_.addAndGet(bytes_ - before);
+            lastWrite_ = System.currentTimeMillis();
+            end_ = Math.max(end_, mergedEnd);
+        }
+
+        void clear()
+        {
+            bufferedBytes_.addAndGet(-bytes_);
+            extents_.clear();
+            bytes_ = 0;
+            end_ = -1;
+        }
+    }
+
+    private static final class Extent
+    {
+        private final long offset_;
+        private byte[] buffer_;
+        private int length_;
+
+        Extent(long _offset)
+        {
+            offset_ = _offset;
+            buffer_ = new byte[0];
+        }
+
+        long end()
+        {
+            return offset_ + length_;
+        }
+
+        // Extends the extent to the length. The capacity doubles, so a file
+        // written sequentially is not copied on every write.
+        void grow(int _length)
+        {
+            if (_length > buffer_.length)
+            {
+                byte[] buffer = new byte[Math.max(_length, buffer_.length * 2)];
+                System.arraycopy(buffer_, 0, buffer, 0, length_);
+                buffer_ = buffer;
+            }
+
+            length_ = Math.max(length_, _length);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.irods.nfsrods.vfs;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+import org.openjdk.jcstress.infra.results.II_Result;
+import org.openjdk.jcstress.infra.results.III_Result;
+
+/**
+ * Checks that mapping paths is atomic: threads racing to map the same path
+ * agree on its inode number, and threads mapping different paths never share
+ * one.
+ */
+public class InodeTableMapStress
+{
+    private static final Path ROOT = Paths.get("/tempZone");
+
+    private InodeTableMapStress()
+    {
+    }
+
+    @JCStressTest
+    @Description("Two threads map the same new path, and its new parent.")
+    @Outcome(id = "1, 3", expect = Expect.ACCEPTABLE, desc = "Both got the same inode number. Two entries were added.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "The path was mapped twice.")
+    @State
+    public static class SamePath
+    {
+        private final InodeTable table_ = new InodeTable(ROOT);
+        private final Path path_ = ROOT.resolve("home").resolve("data");
+        private long first_;
+        private long second_;
+
+        @Actor
+        public void actor1()
+        {
+            first_ = table_.map(path_);
+        }
+
+        @Actor
+        public void actor2()
+        {
+            second_ = table_.map(path_);
+        }
+
+        @Arbiter
+        public void arbiter(II_Result _r)
+        {
+            _r.r1 = (first_ == second_ && table_.getInodeNumber(path_) == first_) ? 1 : 0;
+            _r.r2 = table_.size();
+        }
+    }
+
+    @JCStressTest
+    @Description("Two threads map different new paths in the same new collection.")
+    @Outcome(id = "1, 4, 1", expect = Expect.ACCEPTABLE, desc = "Distinct inode numbers, both resolvable.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "Inode numbers were shared or mappings were lost.")
+    @State
+    public static class DistinctPaths
+    {
+        private final InodeTable table_ = new InodeTable(ROOT);
+        private final Path first_ = ROOT.resolve("home").resolve("a");
+        private final Path second_ = ROOT.resolve("home").resolve("b");
+        private long firstInodeNumber_;
+        private long secondInodeNumber_;
+
+        @Actor
+        public void actor1()
+        {
+            firstInodeNumber_ = table_.map(first_);
+        }
+
+        @Actor
+        public void actor2()
+        {
+            secondInodeNumber_ = table_.map(second_);
+        }
+
+        @Arbiter
+        public void arbiter(III_Result _r)
+        {
+            boolean resolvable = first_.equals(table_.getPath(firstInodeNumber_)) &&
+                                 second_.equals(table_.getPath(secondInodeNumber_));
+
+            _r.r1 = (firstInodeNumber_ != secondInodeNumber_) ? 1 : 0;
+            _r.r2 = table_.size();
+            _r.r3 = resolvable ? 1 : 0;
+        }
+    }
+
+    @JCStressTest
+    @Description("A thread resolves a path while another maps it.")
+    @Outcome(id = "-1", expect = Expect.ACCEPTABLE, desc = "Resolved before the path was mapped.")
+    @Outcome(id = "1", expect = Expect.ACCEPTABLE, desc = "Resolved to the inode number it was mapped to.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "Resolved to another inode number.")
+    @State
+    public static class LookupVersusMap
+    {
+        private final InodeTable table_ = new InodeTable(ROOT);
+        private final Path path_ = ROOT.resolve("home").resolve("data");
+        private long mapped_;
+        private long found_;
+
+        @Actor
+        public void actor1()
+        {
+            mapped_ = table_.map(path_);
+        }
+
+        @Actor
+        public void actor2()
+        {
+            found_ = table_.getInodeNumber(path_);
+        }
+
+        @Arbiter
+        public void arbiter(I_Result _r)
+        {
+            _r.r1 = (found_ == -1) ? -1 : (found_ == mapped_) ? 1 : 0;
+        }
+    }
+}
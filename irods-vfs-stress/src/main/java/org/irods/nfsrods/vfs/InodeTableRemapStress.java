@@ -0,0 +1,104 @@
+package org.irods.nfsrods.vfs;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+/**
+ * Checks that remapping is atomic: a renamed collection takes its children
+ * along, and readers see every path either before or after the rename.
+ */
+public class InodeTableRemapStress
+{
+    private static final Path ROOT = Paths.get("/tempZone");
+
+    private InodeTableRemapStress()
+    {
+    }
+
+    @JCStressTest
+    @Description("A thread resolves the inode number of a child while another renames its parent.")
+    @Outcome(id = "1", expect = Expect.ACCEPTABLE, desc = "Saw the path before the rename.")
+    @Outcome(id = "2", expect = Expect.ACCEPTABLE, desc = "Saw the path after the rename.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "Saw a path that never existed, or none.")
+    @State
+    public static class RemapVersusGetPath
+    {
+        private final InodeTable table_ = new InodeTable(ROOT);
+        private final Path oldDir_ = ROOT.resolve("old");
+        private final Path newDir_ = ROOT.resolve("new");
+        private final long dirInodeNumber_ = table_.map(oldDir_);
+        private final long fileInodeNumber_ = table_.map(oldDir_.resolve("file"));
+        private Path seen_;
+
+        @Actor
+        public void actor1()
+        {
+            table_.remap(dirInodeNumber_, oldDir_, newDir_);
+        }
+
+        @Actor
+        public void actor2()
+        {
+            seen_ = table_.getPath(fileInodeNumber_);
+        }
+
+        @Arbiter
+        public void arbiter(I_Result _r)
+        {
+            // @formatter:off
+            if      (oldDir_.resolve("file").equals(seen_)) { _r.r1 = 1; }
+            else if (newDir_.resolve("file").equals(seen_)) { _r.r1 = 2; }
+            else                                            { _r.r1 = 0; }
+            // @formatter:on
+        }
+    }
+
+    @JCStressTest
+    @Description("A thread maps a new child of a collection while another renames the collection.")
+    @Outcome(id = "1", expect = Expect.ACCEPTABLE, desc = "Mapped before the rename and moved along with it.")
+    @Outcome(id = "2", expect = Expect.ACCEPTABLE, desc = "Mapped after the rename under a new collection.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "The child's path and inode number disagree.")
+    @State
+    public static class RemapVersusMap
+    {
+        private final InodeTable table_ = new InodeTable(ROOT);
+        private final Path oldDir_ = ROOT.resolve("old");
+        private final Path newDir_ = ROOT.resolve("new");
+        private final long dirInodeNumber_ = table_.map(oldDir_);
+        private long childInodeNumber_;
+
+        @Actor
+        public void actor1()
+        {
+            table_.remap(dirInodeNumber_, oldDir_, newDir_);
+        }
+
+        @Actor
+        public void actor2()
+        {
+            childInodeNumber_ = table_.map(oldDir_.resolve("child"));
+        }
+
+        @Arbiter
+        public void arbiter(I_Result _r)
+        {
+            Path path = table_.getPath(childInodeNumber_);
+            boolean consistent = path != null && table_.getInodeNumber(path) == childInodeNumber_;
+
+            // @formatter:off
+            if      (consistent && path.equals(newDir_.resolve("child"))) { _r.r1 = 1; }
+            else if (consistent && path.equals(oldDir_.resolve("child"))) { _r.r1 = 2; }
+            else                                                          { _r.r1 = 0; }
+            // @formatter:on
+        }
+    }
+}
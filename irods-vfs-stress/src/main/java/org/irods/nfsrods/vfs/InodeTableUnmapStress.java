@@ -0,0 +1,118 @@
+package org.irods.nfsrods.vfs;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.Description;
+import org.openjdk.jcstress.annotations.Expect;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * Checks that unmapping is atomic and that the free list of recycled inode
+ * numbers never hands out a number twice.
+ */
+public class InodeTableUnmapStress
+{
+    private static final Path ROOT = Paths.get("/tempZone");
+
+    private InodeTableUnmapStress()
+    {
+    }
+
+    @JCStressTest
+    @Description("A thread unmaps a path while another maps a new one, which may reuse its inode number.")
+    @Outcome(id = "1, 0", expect = Expect.ACCEPTABLE, desc = "The new paths have their own inode numbers.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "An inode number was shared, or the unmapped path is still mapped.")
+    @State
+    public static class UnmapVersusMap
+    {
+        private final InodeTable table_ = new InodeTable(ROOT);
+        private final Path removed_ = ROOT.resolve("removed");
+        private final Path added_ = ROOT.resolve("added");
+        private final Path addedLater_ = ROOT.resolve("added-later");
+        private final long removedInodeNumber_ = table_.map(removed_);
+        private long addedInodeNumber_;
+
+        @Actor
+        public void actor1()
+        {
+            table_.unmap(removedInodeNumber_, removed_);
+        }
+
+        @Actor
+        public void actor2()
+        {
+            addedInodeNumber_ = table_.map(added_);
+        }
+
+        @Arbiter
+        public void arbiter(II_Result _r)
+        {
+            long addedLater = table_.map(addedLater_);
+
+            // @formatter:off
+            boolean distinct = addedInodeNumber_ != addedLater                 &&
+                               added_.equals(table_.getPath(addedInodeNumber_)) &&
+                               addedLater_.equals(table_.getPath(addedLater));
+            // @formatter:on
+
+            _r.r1 = distinct ? 1 : 0;
+            _r.r2 = table_.contains(removed_) ? 1 : 0;
+        }
+    }
+
+    @JCStressTest
+    @Description("Two threads each unmap a path and map a new one, racing on the free list.")
+    @Outcome(id = "1", expect = Expect.ACCEPTABLE, desc = "Every mapped path has its own inode number.")
+    @Outcome(expect = Expect.FORBIDDEN, desc = "The free list handed out an inode number twice or lost one.")
+    @State
+    public static class FreeList
+    {
+        private final InodeTable table_ = new InodeTable(ROOT);
+        private final Path[] old_ = { ROOT.resolve("old1"), ROOT.resolve("old2") };
+        private final Path[] new_ = { ROOT.resolve("new1"), ROOT.resolve("new2") };
+        private final long[] oldInodeNumbers_ = { table_.map(old_[0]), table_.map(old_[1]) };
+        private final long[] newInodeNumbers_ = new long[2];
+
+        @Actor
+        public void actor1()
+        {
+            replace(0);
+        }
+
+        @Actor
+        public void actor2()
+        {
+            replace(1);
+        }
+
+        @Arbiter
+        public void arbiter(I_Result _r)
+        {
+            // Both freed numbers were reused, and nothing else was allocated.
+            long reused = newInodeNumbers_[0] + newInodeNumbers_[1];
+
+            // @formatter:off
+            boolean valid = newInodeNumbers_[0] != newInodeNumbers_[1]                 &&
+                            new_[0].equals(table_.getPath(newInodeNumbers_[0]))       &&
+                            new_[1].equals(table_.getPath(newInodeNumbers_[1]))       &&
+                            reused == oldInodeNumbers_[0] + oldInodeNumbers_[1]        &&
+                            table_.size() == 3;
+            // @formatter:on
+
+            _r.r1 = valid ? 1 : 0;
+        }
+
+        private void replace(int _index)
+        {
+            table_.unmap(oldInodeNumbers_[_index], old_[_index]);
+            newInodeNumbers_[_index] = table_.map(new_[_index]);
+        }
+    }
+}